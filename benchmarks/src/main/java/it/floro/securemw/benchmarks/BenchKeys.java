@@ -0,0 +1,19 @@
+package it.floro.securemw.benchmarks;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/** Chiavi fisse per i benchmark (mai usate fuori da qui). */
+final class BenchKeys {
+
+    static final String AES_KEY_B64 = Base64.getEncoder().encodeToString(filled(32, (byte) 0x11));
+    static final String HMAC_KEY_B64 = Base64.getEncoder().encodeToString(filled(32, (byte) 0x22));
+
+    private BenchKeys() {}
+
+    private static byte[] filled(int len, byte b) {
+        byte[] out = new byte[len];
+        Arrays.fill(out, b);
+        return out;
+    }
+}
@@ -0,0 +1,36 @@
+package it.floro.securemw.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Esegue tutte le suite (o quelle filtrate dal primo argomento, regex JMH) a 1 thread e a
+ * N thread (= core disponibili), con profiler GC per i tassi di allocazione.
+ *
+ * <pre>java -cp target/benchmarks.jar it.floro.securemw.benchmarks.BenchmarkRunner [regex]</pre>
+ */
+public final class BenchmarkRunner {
+
+    private BenchmarkRunner() {}
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : "it\\.floro\\.securemw\\.benchmarks\\..*";
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        for (int threads : new int[]{1, cores}) {
+            Options opt = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-result-t" + threads + ".json")
+                    .build();
+            new Runner(opt).run();
+            if (cores == 1) break;
+        }
+    }
+}
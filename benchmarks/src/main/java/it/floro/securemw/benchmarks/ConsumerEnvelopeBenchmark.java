@@ -0,0 +1,91 @@
+package it.floro.securemw.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.floro.securemw.common.crypto.Crypto;
+import it.floro.securemw.common.crypto.PayloadCodec;
+import it.floro.securemw.common.envelope.EnvelopeAad;
+import it.floro.securemw.processor_svc.envelope.Envelope;
+import it.floro.securemw.processor_svc.TelemetryConsumer;
+import it.floro.securemw.processor_svc.envelope.EnvelopeParser;
+import it.floro.securemw.producer_svc.TelemetryProducer;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Percorso di TelemetryConsumer senza I/O: parse dell'envelope, verify HMAC (o AAD di meta), decrypt,
+ * decompressione se presente e letture del payload ({@link EnvelopeParser#readings}, con i campi numerici
+ * per i rollup). Anti-replay e DB sono esclusi (misurati a parte).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ConsumerEnvelopeBenchmark {
+
+    @Param({"json", "binary"})
+    String format;
+
+    @Param({"AES-256-GCM+HMAC-SHA256", "AES-256-GCM-AAD"})
+    String alg;
+
+    // letture per envelope: 1 = lettura singola, >1 = micro-batch del producer
+    @Param({"1", "10"})
+    int readings;
+
+    ObjectMapper mapper;
+    EnvelopeParser parser;
+    Crypto crypto;
+    byte[] record;
+
+    @Setup
+    public void setup() throws Exception {
+        mapper = new ObjectMapper();
+        parser = new EnvelopeParser(mapper);
+        crypto = new Crypto(BenchKeys.AES_KEY_B64, BenchKeys.HMAC_KEY_B64);
+        TelemetryProducer producer = new TelemetryProducer(null, BenchKeys.AES_KEY_B64, BenchKeys.HMAC_KEY_B64);
+        producer.setAlg(alg);
+        boolean binary = "binary".equals(format);
+        if (readings == 1) {
+            record = producer.buildEnvelope("cnc-23", TelemetryProducer.randomReading(), binary);
+        } else {
+            Instant start = Instant.now().truncatedTo(ChronoUnit.MICROS);
+            List<TelemetryProducer.TimedReading> batch = new ArrayList<>(readings);
+            for (int i = 0; i < readings; i++) {
+                batch.add(new TelemetryProducer.TimedReading(start.plusMillis(i), TelemetryProducer.randomReading()));
+            }
+            record = producer.buildBatchEnvelope("cnc-23", batch, binary);
+        }
+    }
+
+    @Benchmark
+    public Envelope parseOnly() throws Exception {
+        return parser.parse(record);
+    }
+
+    @Benchmark
+    public List<EnvelopeParser.Reading> parseVerifyDecrypt(Blackhole bh) throws Exception {
+        Envelope env = parser.parse(record);
+        byte[] aad = EnvelopeAad.forEnvelope(env.algWithCodec(), env.keyId(), env.deviceId(), Instant.parse(env.ts()),
+                env.traceId(), env.nonce());
+        if (aad == null) {
+            crypto.verifyHmac(env.iv(), env.ciphertext(), env.sig());
+        }
+
+        byte[] plain = new byte[Crypto.plaintextLength(env.ciphertext().remaining())];
+        int n = crypto.decrypt(env.iv(), env.ciphertext().duplicate(), ByteBuffer.wrap(plain), aad);
+        if (env.codec() != PayloadCodec.NONE) {
+            plain = env.codec().decompress(plain, 0, n, TelemetryConsumer.MAX_PAYLOAD_BYTES);
+            n = plain.length;
+        }
+        return parser.readings(plain, 0, n, Instant.parse(env.ts()), () -> (field, v) -> bh.consume(v));
+    }
+}
@@ -0,0 +1,68 @@
+package it.floro.securemw.benchmarks;
+
+import it.floro.securemw.common.crypto.Crypto;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Costo per messaggio delle primitive di {@link Crypto} al variare della dimensione del payload.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CryptoBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        // thread-safe: Mac/Cipher sono per-thread dentro Crypto
+        final Crypto crypto = new Crypto(BenchKeys.AES_KEY_B64, BenchKeys.HMAC_KEY_B64);
+    }
+
+    @State(Scope.Thread)
+    public static class Input {
+        @Param({"64", "512", "4096", "65536"})
+        int payloadSize;
+
+        byte[] plaintext;
+        byte[] iv;
+        byte[] ciphertext;
+        byte[] sig;
+        byte[] out;
+
+        @Setup
+        public void setup(Shared s) {
+            plaintext = new byte[payloadSize];
+            ThreadLocalRandom.current().nextBytes(plaintext);
+            Crypto.EncResult enc = s.crypto.encrypt(plaintext);
+            iv = enc.iv();
+            ciphertext = enc.ciphertext();
+            sig = s.crypto.sign(iv, ciphertext);
+            out = new byte[Crypto.plaintextLength(ciphertext.length)];
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> encryptAndSign(Shared s, Input in) {
+        return s.crypto.encryptAndSign(in.plaintext);
+    }
+
+    @Benchmark
+    public void verifyHmac(Shared s, Input in) {
+        s.crypto.verifyHmac(in.iv, in.ciphertext, in.sig);
+    }
+
+    @Benchmark
+    public byte[] decrypt(Shared s, Input in) {
+        return s.crypto.decrypt(in.iv, in.ciphertext);
+    }
+
+    @Benchmark
+    public int decryptInto(Shared s, Input in) {
+        return s.crypto.decrypt(in.iv, in.ciphertext, 0, in.ciphertext.length, in.out, 0);
+    }
+}
@@ -0,0 +1,96 @@
+package it.floro.securemw.benchmarks;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import it.floro.securemw.processor_svc.db.MessageRepository;
+import org.openjdk.jmh.annotations.*;
+import org.postgresql.util.PGobject;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+
+import java.nio.ByteBuffer;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Preparazione dei parametri di una riga raw/decoded prima dell'INSERT.
+ * rawRow/decodedRow: layout compatto attuale (JSON come testo + CAST, iv/sig/ciphertext bytea), riga e
+ * parametri costruiti come fa MessageRepository per l'INSERT;
+ * *Legacy: PGobject(jsonb) per meta/security e ciphertext in Base64, come prima (confronto).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PersistenceConversionBenchmark {
+
+    static final Instant TS = Instant.parse("2025-01-01T00:00:00Z");
+
+    String metaJson;
+    String securityJson;
+    String payloadJson;
+
+    ByteBuffer iv;
+    ByteBuffer sig;
+    ByteBuffer ciphertext;
+    UUID id;
+
+    @Setup
+    public void setup() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode meta = (ObjectNode) mapper.readTree("""
+                {"schema":"telemetry.v1","deviceId":"cnc-23","ts":"2025-01-01T00:00:00Z",
+                 "traceId":"0b8f5d3e-6c1b-4e0a-9c55-2a8b7c1f4d21","nonce":"5f0e3f0a-1d2b-4c3d-8e9f-0a1b2c3d4e5f"}
+                """);
+        ObjectNode security = (ObjectNode) mapper.readTree("""
+                {"alg":"AES-256-GCM+HMAC-SHA256","iv":"AAECAwQFBgcICQoL",
+                 "sig":"q83vEjRWeJq83vEjRWeJq83vEjRWeJq83vEjRWeJq80="}
+                """);
+        metaJson = meta.toString();
+        securityJson = security.toString();
+        payloadJson = "{\"temperature\":71.3,\"vibration\":0.013}";
+
+        // slice di un record più grande, come per l'envelope binario
+        byte[] record = new byte[12 + 32 + 48];
+        iv = ByteBuffer.wrap(record, 0, 12).slice();
+        sig = ByteBuffer.wrap(record, 12, 32).slice();
+        ciphertext = ByteBuffer.wrap(record, 44, 48).slice();
+        id = UUID.randomUUID();
+    }
+
+    @Benchmark
+    public MapSqlParameterSource rawRow() {
+        return MessageRepository.rawParams(new MessageRepository.RawRow("telemetry.v1", 0, 42L, TS, "cnc-23", TS,
+                "0b8f5d3e-6c1b-4e0a-9c55-2a8b7c1f4d21", "5f0e3f0a-1d2b-4c3d-8e9f-0a1b2c3d4e5f",
+                "AES-256-GCM+HMAC-SHA256", null, metaJson,
+                MessageRepository.bytes(iv), MessageRepository.bytes(sig), MessageRepository.bytes(ciphertext), null));
+    }
+
+    @Benchmark
+    public MapSqlParameterSource decodedRow() {
+        return MessageRepository.decodedParams(new MessageRepository.DecodedRow(id, "cnc-23", TS,
+                "0b8f5d3e-6c1b-4e0a-9c55-2a8b7c1f4d21", payloadJson, true, true));
+    }
+
+    @Benchmark
+    public Object[] rawRowLegacy() throws SQLException {
+        byte[] ct = MessageRepository.bytes(ciphertext);
+        return new Object[]{jsonb(metaJson), jsonb(securityJson), Base64.getEncoder().encodeToString(ct)};
+    }
+
+    @Benchmark
+    public PGobject[] decodedRowLegacy() throws SQLException {
+        return new PGobject[]{jsonb(metaJson), jsonb(payloadJson)};
+    }
+
+    private static PGobject jsonb(String json) throws SQLException {
+        PGobject obj = new PGobject();
+        obj.setType("jsonb");
+        obj.setValue(json);
+        return obj;
+    }
+}
@@ -0,0 +1,43 @@
+package it.floro.securemw.benchmarks;
+
+import it.floro.securemw.producer_svc.TelemetryProducer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Costruzione dell'envelope lato producer (serializzazione payload + meta, cifratura, firma),
+ * esattamente come in {@link TelemetryProducer#sendSecureTelemetry()} ma senza l'invio Kafka.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProducerEnvelopeBenchmark {
+
+    @Param({"json", "binary"})
+    String format;
+
+    @Param({"AES-256-GCM+HMAC-SHA256", "AES-256-GCM-AAD"})
+    String alg;
+
+    TelemetryProducer producer;
+    Map<String, Object> reading;
+    boolean binary;
+
+    @Setup
+    public void setup() {
+        producer = new TelemetryProducer(null, BenchKeys.AES_KEY_B64, BenchKeys.HMAC_KEY_B64);
+        producer.setAlg(alg);
+        reading = TelemetryProducer.randomReading();
+        binary = "binary".equals(format);
+    }
+
+    @Benchmark
+    public byte[] buildEnvelope() throws Exception {
+        return producer.buildEnvelope("cnc-23", reading, binary);
+    }
+}
@@ -5,6 +5,7 @@ import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.GeneralSecurityException;
 import java.security.SecureRandom;
@@ -15,12 +16,24 @@ import java.util.Objects;
 public class Crypto {
 
     public static final int GCM_TAG_BITS = 128;    // tag GCM = 16 byte
+    public static final int GCM_TAG_LEN  = GCM_TAG_BITS / 8;
     public static final int GCM_IV_LEN   = 12;     // iv raccomandato = 12 byte
+    public static final int HMAC_LEN     = 32;     // HMAC-SHA256 = 32 byte
+
+    private static final String HMAC_ALG = "HmacSHA256";
+    private static final String AES_GCM  = "AES/GCM/NoPadding";
 
     private final SecretKey aesKey;
     private final SecretKey hmacKey;
     private final SecureRandom rng = new SecureRandom();
 
+    // Istanze riusate per thread: getInstance() (lookup del provider) e init della chiave HMAC
+    // vengono pagati una volta per thread invece che a ogni messaggio.
+    private final ThreadLocal<Mac> macs = ThreadLocal.withInitial(this::newMac);
+    private final ThreadLocal<Cipher> ciphers = ThreadLocal.withInitial(Crypto::newCipher);
+    private final ThreadLocal<byte[]> macScratch = ThreadLocal.withInitial(() -> new byte[HMAC_LEN]);
+    private final ThreadLocal<byte[]> ivScratch = ThreadLocal.withInitial(() -> new byte[GCM_IV_LEN]);
+
     /**
      * @param aesKeyB64  chiave AES (32 byte → 256 bit) codificata Base64
      * @param hmacKeyB64 chiave HMAC (32 byte) codificata Base64
@@ -37,30 +50,78 @@ public class Crypto {
         }
 
         this.aesKey  = new SecretKeySpec(aes, "AES");
-        this.hmacKey = new SecretKeySpec(hmk, "HmacSHA256");
+        this.hmacKey = new SecretKeySpec(hmk, HMAC_ALG);
     }
 
     //HMAC
 
     // Calcola HMAC-SHA256 su data.
     public byte[] sign(byte[] data) {
-        try {
-            Mac mac = Mac.getInstance("HmacSHA256");
-            mac.init(hmacKey);
-            return mac.doFinal(data);
-        } catch (GeneralSecurityException e) {
-            throw new RuntimeException("HMAC sign error", e);
-        }
+        Mac mac = macs.get();
+        mac.update(data);
+        return mac.doFinal();
+    }
+
+    // Calcola HMAC-SHA256 su (iv || ciphertext) in modo incrementale, senza concatenare.
+    public byte[] sign(byte[] iv, byte[] ciphertext) {
+        Mac mac = macs.get();
+        mac.update(iv);
+        mac.update(ciphertext);
+        return mac.doFinal();
     }
 
     //Verifica HMAC-SHA256; solleva eccezione se non coincide.
     public void verifyHmac(byte[] data, byte[] expectedSig) {
-        byte[] actual = sign(data);
+        Mac mac = macs.get();
+        mac.update(data);
+        checkMac(mac, expectedSig);
+    }
+
+    // Verifica HMAC-SHA256 su (iv || ciphertext) senza allocare il messaggio concatenato.
+    public void verifyHmac(byte[] iv, byte[] ciphertext, byte[] expectedSig) {
+        Mac mac = macs.get();
+        mac.update(iv);
+        mac.update(ciphertext);
+        checkMac(mac, expectedSig);
+    }
+
+    /**
+     * Variante su ByteBuffer (es. slice dentro il record Kafka): legge da position a limit
+     * di ciascun buffer senza modificarne la position.
+     */
+    public void verifyHmac(ByteBuffer iv, ByteBuffer ciphertext, ByteBuffer expectedSig) {
+        Mac mac = macs.get();
+        update(mac, iv);
+        update(mac, ciphertext);
+        byte[] actual = doFinal(mac);
         if (!constantTimeEquals(actual, expectedSig)) {
             throw new IllegalStateException("Bad signature");
         }
     }
 
+    private void checkMac(Mac mac, byte[] expectedSig) {
+        if (!constantTimeEquals(doFinal(mac), expectedSig)) {
+            throw new IllegalStateException("Bad signature");
+        }
+    }
+
+    // doFinal nel buffer per-thread: evita l'array da 32 byte a ogni verifica.
+    private byte[] doFinal(Mac mac) {
+        byte[] out = macScratch.get();
+        try {
+            mac.doFinal(out, 0);
+            return out;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("HMAC sign error", e);
+        }
+    }
+
+    private static void update(Mac mac, ByteBuffer buf) {
+        int pos = buf.position();
+        mac.update(buf);
+        buf.position(pos);
+    }
+
     //AES
 
     // Genera un IV casuale da 12 byte (raccomandazione NIST per GCM).
@@ -72,20 +133,29 @@ public class Crypto {
 
     //Cifra con IV casuale; ritorna iv + ciphertext in un contenitore.
     public EncResult encrypt(byte[] plaintext) {
+        return encryptWithAad(plaintext, null);
+    }
+
+    // Come sopra, autenticando anche aad (associated data: non cifrati, coperti dal tag GCM).
+    public EncResult encryptWithAad(byte[] plaintext, byte[] aad) {
         byte[] iv = newIv();
-        byte[] ct = encrypt(iv, plaintext);
+        byte[] ct = encrypt(iv, plaintext, aad);
         return new EncResult(iv, ct);
     }
 
     // Cifra con IV fornito (12 byte).
     public byte[] encrypt(byte[] iv, byte[] plaintext) {
+        return encrypt(iv, plaintext, null);
+    }
+
+    public byte[] encrypt(byte[] iv, byte[] plaintext, byte[] aad) {
         try {
             if (iv == null || iv.length != GCM_IV_LEN) {
                 throw new IllegalArgumentException("IV must be 12 bytes for GCM");
             }
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_BITS, iv);
-            cipher.init(Cipher.ENCRYPT_MODE, aesKey, spec);
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.ENCRYPT_MODE, aesKey, new GCMParameterSpec(GCM_TAG_BITS, iv));
+            updateAad(cipher, aad);
             return cipher.doFinal(plaintext);
         } catch (GeneralSecurityException e) {
             throw new RuntimeException("AES-GCM encrypt error", e);
@@ -98,15 +168,81 @@ public class Crypto {
             if (iv == null || iv.length != GCM_IV_LEN) {
                 throw new IllegalArgumentException("IV must be 12 bytes for GCM");
             }
-            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
-            GCMParameterSpec spec = new GCMParameterSpec(GCM_TAG_BITS, iv);
-            cipher.init(Cipher.DECRYPT_MODE, aesKey, spec);
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, aesKey, new GCMParameterSpec(GCM_TAG_BITS, iv));
             return cipher.doFinal(ciphertext);
         } catch (GeneralSecurityException e) {
             throw new RuntimeException("AES-GCM decrypt error", e);
         }
     }
 
+    /**
+     * Decifra ciphertext[ctOff, ctOff+ctLen) dentro un buffer fornito dal chiamante.
+     * out deve avere almeno {@link #plaintextLength(int)} byte liberi da outOff.
+     * @return numero di byte in chiaro scritti
+     */
+    public int decrypt(byte[] iv, byte[] ciphertext, int ctOff, int ctLen, byte[] out, int outOff) {
+        return decrypt(iv, ciphertext, ctOff, ctLen, out, outOff, null);
+    }
+
+    // Come sopra, verificando anche aad: tag non valido se differiscono da quelli usati in cifratura.
+    public int decrypt(byte[] iv, byte[] ciphertext, int ctOff, int ctLen, byte[] out, int outOff, byte[] aad) {
+        try {
+            if (iv == null || iv.length != GCM_IV_LEN) {
+                throw new IllegalArgumentException("IV must be 12 bytes for GCM");
+            }
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, aesKey, new GCMParameterSpec(GCM_TAG_BITS, iv));
+            updateAad(cipher, aad);
+            return cipher.doFinal(ciphertext, ctOff, ctLen, out, outOff);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("AES-GCM decrypt error", e);
+        }
+    }
+
+    /**
+     * Variante su ByteBuffer: consuma ciphertext (position → limit) e scrive il chiaro in out
+     * a partire dalla sua position; l'iv non viene modificato.
+     * @return numero di byte in chiaro scritti
+     */
+    public int decrypt(ByteBuffer iv, ByteBuffer ciphertext, ByteBuffer out) {
+        return decrypt(iv, ciphertext, out, null);
+    }
+
+    public int decrypt(ByteBuffer iv, ByteBuffer ciphertext, ByteBuffer out, byte[] aad) {
+        try {
+            if (iv == null || iv.remaining() != GCM_IV_LEN) {
+                throw new IllegalArgumentException("IV must be 12 bytes for GCM");
+            }
+            GCMParameterSpec spec;
+            if (iv.hasArray()) {
+                spec = new GCMParameterSpec(GCM_TAG_BITS, iv.array(), iv.arrayOffset() + iv.position(), GCM_IV_LEN);
+            } else {
+                byte[] tmp = ivScratch.get();
+                iv.get(iv.position(), tmp);
+                spec = new GCMParameterSpec(GCM_TAG_BITS, tmp);
+            }
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, aesKey, spec);
+            updateAad(cipher, aad);
+            return cipher.doFinal(ciphertext, out);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("AES-GCM decrypt error", e);
+        }
+    }
+
+    // Gli associated data vanno passati dopo init e prima di qualunque dato da cifrare/decifrare.
+    private static void updateAad(Cipher cipher, byte[] aad) {
+        if (aad != null && aad.length > 0) {
+            cipher.updateAAD(aad);
+        }
+    }
+
+    // Lunghezza del chiaro corrispondente a un ciphertext GCM (ciphertext = chiaro + tag).
+    public static int plaintextLength(int ciphertextLen) {
+        return Math.max(0, ciphertextLen - GCM_TAG_LEN);
+    }
+
     //Utility
 
     public static String b64(byte[] data) {
@@ -129,6 +265,33 @@ public class Crypto {
         return res == 0;
     }
 
+    public static boolean constantTimeEquals(byte[] a, ByteBuffer b) {
+        if (a == null || b == null) return false;
+        if (a.length != b.remaining()) return false;
+        int base = b.position();
+        int res = 0;
+        for (int i = 0; i < a.length; i++) res |= (a[i] ^ b.get(base + i));
+        return res == 0;
+    }
+
+    private Mac newMac() {
+        try {
+            Mac mac = Mac.getInstance(HMAC_ALG);
+            mac.init(hmacKey);
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("HMAC init error", e);
+        }
+    }
+
+    private static Cipher newCipher() {
+        try {
+            return Cipher.getInstance(AES_GCM);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("AES-GCM init error", e);
+        }
+    }
+
     /** Contenitore risultato cifratura (iv + ciphertext). */
     public record EncResult(byte[] iv, byte[] ciphertext) {}
 
@@ -138,10 +301,7 @@ public class Crypto {
         byte[] ct = enc.ciphertext();
 
         // HMAC su (iv || ciphertext)
-        byte[] msgForMac = new byte[iv.length + ct.length];
-        System.arraycopy(iv, 0, msgForMac, 0, iv.length);
-        System.arraycopy(ct, 0, msgForMac, iv.length, ct.length);
-        byte[] sig = sign(msgForMac);
+        byte[] sig = sign(iv, ct);
 
         return Map.of(
                 "iv",        b64(iv),
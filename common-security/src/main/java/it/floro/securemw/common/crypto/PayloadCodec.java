@@ -0,0 +1,138 @@
+package it.floro.securemw.common.crypto;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressione del payload prima della cifratura (dopo non serve: il ciphertext non si comprime,
+ * né nel batch Kafka né in messages_raw).
+ *
+ * Il codec è dichiarato come suffisso di security.alg (es. "AES-256-GCM+HMAC-SHA256+DEFLATE")
+ * e, nell'envelope binario, nei 4 bit alti del byte dell'algoritmo; NONE = nessun suffisso,
+ * quindi gli envelope esistenti restano validi.
+ *
+ * DEFLATE_DICT usa un dizionario predefinito con le chiavi ricorrenti dello schema telemetry.v1:
+ * su payload di poche decine di byte è l'unico modo di guadagnare qualcosa.
+ */
+public enum PayloadCodec {
+
+    NONE((byte) 0, ""),
+    DEFLATE((byte) 1, "+DEFLATE"),
+    DEFLATE_DICT((byte) 2, "+DEFLATE-DICT");
+
+    // Le parti più frequenti in fondo: deflate codifica più corte le distanze brevi.
+    // Non modificare: producer e processor devono usare lo stesso dizionario (nuovo dizionario = nuovo codec).
+    private static final byte[] TELEMETRY_V1_DICT = (
+            "\"status\":\"ok\",\"rpm\":,\"pressure\":,\"humidity\":,\"spindleLoad\":"
+                    + ",\"ts\":\"2025-,\"vibration\":0.01{\"temperature\":7")
+            .getBytes(StandardCharsets.US_ASCII);
+
+    // Deflater/Inflater allocano memoria nativa: uno per thread, riusato con reset()
+    private static final ThreadLocal<Deflater> DEFLATERS =
+            ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_COMPRESSION, true));
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(() -> new Inflater(true));
+
+    private final byte id;
+    private final String suffix;
+
+    PayloadCodec(byte id, String suffix) {
+        this.id = id;
+        this.suffix = suffix;
+    }
+
+    public byte id() {
+        return id;
+    }
+
+    public String suffix() {
+        return suffix;
+    }
+
+    /**
+     * Comprime se il payload è lungo almeno {@code minSize} e il risultato è davvero più corto;
+     * altrimenti restituisce il payload invariato con codec NONE.
+     */
+    public Compressed compress(byte[] plaintext, int minSize) {
+        if (this == NONE || plaintext.length < minSize) {
+            return new Compressed(NONE, plaintext);
+        }
+        Deflater d = DEFLATERS.get();
+        d.reset();
+        if (this == DEFLATE_DICT) {
+            d.setDictionary(TELEMETRY_V1_DICT);
+        }
+        d.setInput(plaintext);
+        d.finish();
+        // oltre plaintext.length non conviene: si interrompe e si manda in chiaro
+        byte[] out = new byte[plaintext.length];
+        int n = 0;
+        while (!d.finished() && n < out.length) {
+            n += d.deflate(out, n, out.length - n);
+        }
+        if (!d.finished()) {
+            return new Compressed(NONE, plaintext);
+        }
+        return new Compressed(this, Arrays.copyOf(out, n));
+    }
+
+    /**
+     * Decomprime {@code in[off, off+len)}.
+     * @throws IllegalStateException se i dati non sono validi o superano {@code maxLen} (zip bomb)
+     */
+    public byte[] decompress(byte[] in, int off, int len, int maxLen) {
+        if (this == NONE) {
+            return Arrays.copyOfRange(in, off, off + len);
+        }
+        Inflater inf = INFLATERS.get();
+        inf.reset();
+        if (this == DEFLATE_DICT) {
+            inf.setDictionary(TELEMETRY_V1_DICT);
+        }
+        inf.setInput(in, off, len);
+        var out = new ByteArrayOutputStream(Math.min(maxLen, len * 4 + 64));
+        byte[] buf = new byte[Math.min(maxLen, 4096)];
+        try {
+            while (!inf.finished()) {
+                int n = inf.inflate(buf);
+                if (n == 0 && (inf.needsInput() || inf.needsDictionary())) {
+                    throw new IllegalStateException("Truncated compressed payload");
+                }
+                if (out.size() + n > maxLen) {
+                    throw new IllegalStateException("Decompressed payload exceeds " + maxLen + " bytes");
+                }
+                out.write(buf, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Bad compressed payload", e);
+        }
+        return out.toByteArray();
+    }
+
+    public static PayloadCodec fromId(int id) {
+        for (PayloadCodec c : values()) {
+            if (c.id == id) return c;
+        }
+        throw new IllegalArgumentException("Unknown payload codec id: " + id);
+    }
+
+    /** Codec dichiarato in security.alg (NONE se senza suffisso). */
+    public static PayloadCodec fromAlg(String alg) {
+        for (PayloadCodec c : values()) {
+            if (c != NONE && alg.endsWith(c.suffix)) return c;
+        }
+        return NONE;
+    }
+
+    /** security.alg senza il suffisso del codec. */
+    public static String baseAlg(String alg) {
+        PayloadCodec c = fromAlg(alg);
+        return alg.substring(0, alg.length() - c.suffix.length());
+    }
+
+    /** Payload da cifrare e codec con cui è stato (o non è stato) compresso. */
+    public record Compressed(PayloadCodec codec, byte[] data) {}
+}
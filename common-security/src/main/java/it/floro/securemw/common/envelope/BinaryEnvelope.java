@@ -0,0 +1,149 @@
+package it.floro.securemw.common.envelope;
+
+import it.floro.securemw.common.crypto.PayloadCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * Envelope binario versionato, alternativo a quello JSON+Base64.
+ *
+ * <pre>
+ * offset  len   campo
+ * 0       1     magic (0xB5: mai primo byte di un JSON valido)
+ * 1       1     versione
+ * 2       1     id algoritmo ({@link EnvelopeAlg}, bit 0-3) + codec del payload ({@link PayloadCodec}, bit 4-7)
+ * 3       1     lunghezza iv
+ * 4       1     lunghezza sig
+ * 5       4     lunghezza meta (big-endian)
+ * 9       4     lunghezza ciphertext (big-endian)
+ * 13      1     [v2] lunghezza keyId
+ * 13/14   ...   [v2] keyId (UTF-8), meta (JSON UTF-8), iv, sig, ciphertext
+ * </pre>
+ *
+ * La v1 (senza keyId) resta leggibile: il processor usa la chiave di default.
+ * Con {@link EnvelopeAlg#AES256_GCM_AAD} la sig è vuota (lunghezza 0).
+ */
+public final class BinaryEnvelope {
+
+    public static final byte MAGIC      = (byte) 0xB5;
+    public static final byte VERSION_1  = 1;
+    public static final byte VERSION_2  = 2;    // + keyId
+    public static final int  HEADER_LEN = 13;   // header comune a v1 e v2
+
+    private BinaryEnvelope() {}
+
+    // Il formato si riconosce dal primo byte: un envelope JSON inizia sempre con '{' (o spazi).
+    public static boolean isBinary(byte[] record) {
+        return record != null && record.length > 0 && record[0] == MAGIC;
+    }
+
+    /** Codifica in v2; {@code keyId} null o vuoto = chiave di default del processor. */
+    public static byte[] encode(EnvelopeAlg alg, String keyId, byte[] metaJson, byte[] iv, byte[] sig, byte[] ciphertext) {
+        return encode(alg, PayloadCodec.NONE, keyId, metaJson, iv, sig, ciphertext);
+    }
+
+    /** Come sopra, con il payload compresso da {@code codec} prima della cifratura. */
+    public static byte[] encode(EnvelopeAlg alg, PayloadCodec codec, String keyId,
+                                byte[] metaJson, byte[] iv, byte[] sig, byte[] ciphertext) {
+        Objects.requireNonNull(alg, "alg null");
+        Objects.requireNonNull(codec, "codec null");
+        byte[] kid = keyId == null ? new byte[0] : keyId.getBytes(StandardCharsets.UTF_8);
+        if (iv.length > 0xFF || sig.length > 0xFF || kid.length > 0xFF) {
+            throw new IllegalArgumentException("iv/sig/keyId too long for binary envelope");
+        }
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LEN + 1 + kid.length
+                + metaJson.length + iv.length + sig.length + ciphertext.length);
+        buf.put(MAGIC)
+                .put(VERSION_2)
+                .put((byte) (alg.id() | codec.id() << 4))
+                .put((byte) iv.length)
+                .put((byte) sig.length)
+                .putInt(metaJson.length)
+                .putInt(ciphertext.length)
+                .put((byte) kid.length)
+                .put(kid)
+                .put(metaJson)
+                .put(iv)
+                .put(sig)
+                .put(ciphertext);
+        return buf.array();
+    }
+
+    /** Parse dell'header: nessuna copia, la {@link View} punta dentro {@code record}. */
+    public static View parse(byte[] record) {
+        if (record == null || record.length < HEADER_LEN) {
+            throw new IllegalArgumentException("Binary envelope too short");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(record);
+        if (buf.get() != MAGIC) {
+            throw new IllegalArgumentException("Not a binary envelope (bad magic)");
+        }
+        int version = buf.get();
+        if (version != VERSION_1 && version != VERSION_2) {
+            throw new IllegalArgumentException("Unsupported binary envelope version: " + version);
+        }
+        int algByte = buf.get() & 0xFF;
+        EnvelopeAlg alg = EnvelopeAlg.fromId(algByte & 0x0F);
+        PayloadCodec codec = PayloadCodec.fromId(algByte >>> 4);
+        int ivLen = buf.get() & 0xFF;
+        int sigLen = buf.get() & 0xFF;
+        int metaLen = buf.getInt();
+        int ctLen = buf.getInt();
+
+        int keyIdOff = HEADER_LEN;
+        int keyIdLen = 0;
+        if (version >= VERSION_2) {
+            if (record.length < HEADER_LEN + 1) {
+                throw new IllegalArgumentException("Binary envelope too short");
+            }
+            keyIdLen = buf.get() & 0xFF;
+            keyIdOff = HEADER_LEN + 1;
+        }
+
+        if (metaLen < 0 || ctLen < 0
+                || (long) keyIdOff + keyIdLen + metaLen + ivLen + sigLen + ctLen != record.length) {
+            throw new IllegalArgumentException("Binary envelope length mismatch");
+        }
+
+        int metaOff = keyIdOff + keyIdLen;
+        int ivOff = metaOff + metaLen;
+        int sigOff = ivOff + ivLen;
+        int ctOff = sigOff + sigLen;
+        return new View(record, version, alg, codec, keyIdOff, keyIdLen, metaOff, metaLen, ivOff, ivLen, sigOff, sigLen, ctOff, ctLen);
+    }
+
+    /** Vista sugli slice di un envelope binario (offset/lunghezze dentro {@code buf}). */
+    public record View(byte[] buf,
+                       int version,
+                       EnvelopeAlg alg,
+                       PayloadCodec codec,
+                       int keyIdOff, int keyIdLen,
+                       int metaOff, int metaLen,
+                       int ivOff, int ivLen,
+                       int sigOff, int sigLen,
+                       int ctOff, int ctLen) {
+
+        // null se assente (v1 o keyId vuoto)
+        public String keyId() {
+            return keyIdLen == 0 ? null : new String(buf, keyIdOff, keyIdLen, StandardCharsets.UTF_8);
+        }
+
+        public ByteBuffer meta() {
+            return ByteBuffer.wrap(buf, metaOff, metaLen).slice();
+        }
+
+        public ByteBuffer iv() {
+            return ByteBuffer.wrap(buf, ivOff, ivLen).slice();
+        }
+
+        public ByteBuffer sig() {
+            return ByteBuffer.wrap(buf, sigOff, sigLen).slice();
+        }
+
+        public ByteBuffer ciphertext() {
+            return ByteBuffer.wrap(buf, ctOff, ctLen).slice();
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package it.floro.securemw.common.envelope;
+
+import it.floro.securemw.common.crypto.PayloadCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Codifica canonica dei metadati autenticati come associated data GCM ({@link EnvelopeAlg#aad()}).
+ *
+ * <pre>
+ * versione (1 byte), poi nell'ordine: alg (suffisso del codec compreso), keyId, deviceId,
+ * ts (epoch in microsecondi, 8 byte big-endian), traceId, nonce
+ * </pre>
+ * Ogni stringa è lunghezza (2 byte big-endian) + UTF-8; null e "" coincidono. Indipendente dal formato
+ * dell'envelope (JSON o binario) e dall'ordine/spaziatura dei campi nel JSON di meta. ts è ridotto ai
+ * microsecondi, la precisione con cui il processor lo conserva (messages_raw.event_ts): la rielaborazione
+ * ricostruisce gli stessi byte dalle colonne.
+ */
+public final class EnvelopeAad {
+
+    public static final byte VERSION = 1;
+
+    private EnvelopeAad() {}
+
+    /**
+     * AAD da verificare per un envelope ricevuto.
+     * @param alg security.alg con il suffisso del codec
+     * @return null se l'alg non usa associated data (integrità via HMAC)
+     */
+    public static byte[] forEnvelope(String alg, String keyId, String deviceId, Instant ts, String traceId, String nonce) {
+        EnvelopeAlg a = EnvelopeAlg.find(PayloadCodec.baseAlg(alg));
+        return a != null && a.aad() ? encode(alg, keyId, deviceId, ts, traceId, nonce) : null;
+    }
+
+    public static byte[] encode(String alg, String keyId, String deviceId, Instant ts, String traceId, String nonce) {
+        byte[] a = utf8(alg), k = utf8(keyId), d = utf8(deviceId), t = utf8(traceId), n = utf8(nonce);
+        ByteBuffer buf = ByteBuffer.allocate(1 + 5 * 2 + Long.BYTES + a.length + k.length + d.length + t.length + n.length);
+        buf.put(VERSION);
+        put(buf, a);
+        put(buf, k);
+        put(buf, d);
+        buf.putLong(Math.addExact(Math.multiplyExact(ts.getEpochSecond(), 1_000_000L), ts.getNano() / 1_000));
+        put(buf, t);
+        put(buf, n);
+        return buf.array();
+    }
+
+    private static void put(ByteBuffer buf, byte[] s) {
+        buf.putShort((short) s.length);
+        buf.put(s);
+    }
+
+    private static byte[] utf8(String s) {
+        byte[] b = s == null ? new byte[0] : s.getBytes(StandardCharsets.UTF_8);
+        if (b.length > 0xFFFF) {
+            throw new IllegalArgumentException("Metadata field too long for AAD: " + b.length + " bytes");
+        }
+        return b;
+    }
+}
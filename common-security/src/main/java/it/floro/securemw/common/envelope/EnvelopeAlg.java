@@ -0,0 +1,70 @@
+package it.floro.securemw.common.envelope;
+
+/**
+ * Algoritmi dell'envelope: nome testuale (campo security.alg), id compatto (header binario)
+ * e livello di sicurezza, usato per confrontarli con device_registry.min_algo.
+ */
+public enum EnvelopeAlg {
+
+    AES256_GCM_HMAC_SHA256((byte) 1, "AES-256-GCM+HMAC-SHA256", 1, false),
+
+    // solo AES-GCM: meta autenticato come associated data (EnvelopeAad), niente HMAC e sig vuota
+    AES256_GCM_AAD((byte) 2, "AES-256-GCM-AAD", 2, true);
+
+    private final byte id;
+    private final String algName;
+    private final int level;
+    private final boolean aad;
+
+    EnvelopeAlg(byte id, String algName, int level, boolean aad) {
+        this.id = id;
+        this.algName = algName;
+        this.level = level;
+        this.aad = aad;
+    }
+
+    public byte id() {
+        return id;
+    }
+
+    public String algName() {
+        return algName;
+    }
+
+    public int level() {
+        return level;
+    }
+
+    // true se l'integrità (di ciphertext e meta) è data dal solo tag GCM
+    public boolean aad() {
+        return aad;
+    }
+
+    // true se questo alg soddisfa il minimo richiesto
+    public boolean atLeast(EnvelopeAlg min) {
+        return level >= min.level;
+    }
+
+    public static EnvelopeAlg fromId(int id) {
+        for (EnvelopeAlg a : values()) {
+            if (a.id == id) return a;
+        }
+        throw new IllegalArgumentException("Unknown envelope alg id: " + id);
+    }
+
+    public static EnvelopeAlg fromName(String name) {
+        EnvelopeAlg a = find(name);
+        if (a == null) {
+            throw new IllegalArgumentException("Unknown envelope alg: " + name);
+        }
+        return a;
+    }
+
+    // Come fromName, ma null se sconosciuto.
+    public static EnvelopeAlg find(String name) {
+        for (EnvelopeAlg a : values()) {
+            if (a.algName.equals(name)) return a;
+        }
+        return null;
+    }
+}
@@ -3,9 +3,11 @@ package it.floro.securemw.processor_svc;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.kafka.annotation.EnableKafka;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
 @EnableKafka // abilita la gestione dei @KafkaListener
+@EnableScheduling // job periodici (snapshot anti-replay, ...)
 public class ProcessorSvcApplication {
 
 	public static void main(String[] args) {
@@ -1,135 +1,683 @@
 package it.floro.securemw.processor_svc;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import it.floro.securemw.common.crypto.Crypto;
+import it.floro.securemw.common.crypto.PayloadCodec;
+import it.floro.securemw.common.envelope.EnvelopeAad;
+import it.floro.securemw.processor_svc.db.MessageRepository;
+import it.floro.securemw.processor_svc.envelope.Envelope;
+import it.floro.securemw.processor_svc.envelope.EnvelopeParser;
+import it.floro.securemw.processor_svc.metrics.PipelineMetrics;
+import it.floro.securemw.processor_svc.metrics.PipelineMetrics.Stage;
+import it.floro.securemw.processor_svc.pipeline.KeyOrderedExecutor;
+import it.floro.securemw.processor_svc.retry.RetryPolicy;
+import it.floro.securemw.processor_svc.retry.RetryState;
+import it.floro.securemw.processor_svc.retry.RetryStateSigner;
+import it.floro.securemw.processor_svc.rollup.RollupAggregator;
+import it.floro.securemw.processor_svc.security.DeviceRegistry;
+import it.floro.securemw.processor_svc.security.KeyRing;
+import it.floro.securemw.processor_svc.security.ReplayGuard;
 import it.floro.securemw.processor_svc.service.PersistenceService;
+import it.floro.securemw.processor_svc.spool.SpoolRecord;
+import it.floro.securemw.processor_svc.spool.SpoolService;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.listener.ConsumerSeekAware;
+import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.stereotype.Component;
 
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.*;
-
 import java.util.concurrent.ConcurrentHashMap;
 
 @Slf4j
 @Component
-public class TelemetryConsumer {
+public class TelemetryConsumer implements ConsumerSeekAware {
+
+    // limite al payload decompresso: un envelope firmato ma malevolo non può esplodere in memoria
+    public static final int MAX_PAYLOAD_BYTES = 1 << 20;
 
-    private final ObjectMapper mapper;
-    private final KafkaTemplate<String, String> kafkaTemplate;
+    private final EnvelopeParser envelopeParser;
+    private final KafkaTemplate<String, byte[]> kafkaTemplate;
     private final PersistenceService persistence;
 
     @Value("${app.topics.dlq}")
     private final String dlqTopic;
 
-    private final Crypto crypto;
+    // Crypto per keyId, ricaricato a caldo da key_material
+    private final KeyRing keyRing;
+
+    // anti-replay: finestra su meta.ts + nonce ricordati solo dentro la finestra
+    private final ReplayGuard replayGuard;
+
+    // policy di device_registry (enabled, min_algo) in cache
+    private final DeviceRegistry deviceRegistry;
+
+    // presente solo con app.consumer.pipeline.enabled=true
+    private final ObjectProvider<KeyOrderedExecutor> pipeline;
+
+    // timer per stadio + contatori esiti/errori (Micrometer)
+    private final PipelineMetrics metrics;
+
+    // errori transitori => topic di retry con ritardo crescente, gli altri => DLQ
+    private final RetryPolicy retryPolicy;
+
+    // HMAC sullo stato negli header di retry/DLQ: id raw e nonce accettato non si possono falsificare
+    private final RetryStateSigner retrySigner;
+
+    // aggregati per device (minuto/ora/giorno) aggiornati dopo ogni salvataggio riuscito
+    private final RollupAggregator rollups;
 
-    // anti-replay (demo in-memory)
-    private final Set<String> usedNonces = ConcurrentHashMap.newKeySet();
+    // presente solo con app.spool.enabled=true: la modalità batch scrive sullo spool locale invece che su DB
+    private final ObjectProvider<SpoolService> spool;
+
+    // batch transazionale: offset su DB (consumer_offsets) salvati insieme ai messaggi
+    private final boolean transactional;
+    private final String groupId;
+    private final String topic;
+
+    // partizione -> prossimo offset non ancora persistito (solo modalità transazionale)
+    private final Map<Integer, Long> nextOffsets = new ConcurrentHashMap<>();
 
     public TelemetryConsumer(
-            ObjectMapper mapper,
-            @Value("${app.security.aesKeyB64}") String aesKeyB64,
-            @Value("${app.security.hmacKeyB64}") String hmacKeyB64,
-            KafkaTemplate<String, String> kafkaTemplate,
+            EnvelopeParser envelopeParser,
+            KeyRing keyRing,
+            KafkaTemplate<String, byte[]> kafkaTemplate,
             @Value("${app.topics.dlq}") String dlqTopic,
-            PersistenceService persistence
+            PersistenceService persistence,
+            ReplayGuard replayGuard,
+            DeviceRegistry deviceRegistry,
+            ObjectProvider<KeyOrderedExecutor> pipeline,
+            PipelineMetrics metrics,
+            RetryPolicy retryPolicy,
+            RetryStateSigner retrySigner,
+            RollupAggregator rollups,
+            ObjectProvider<SpoolService> spool,
+            @Value("${app.consumer.batch.enabled:false}") boolean batchEnabled,
+            @Value("${app.consumer.batch.transactional:false}") boolean transactional,
+            @Value("${spring.kafka.consumer.group-id}") String groupId,
+            @Value("${app.topics.telemetry}") String topic
     ) {
-        this.mapper = mapper;
-        this.crypto = new Crypto(aesKeyB64, hmacKeyB64);
+        this.envelopeParser = envelopeParser;
+        this.keyRing = keyRing;
         this.kafkaTemplate = kafkaTemplate;
         this.dlqTopic = dlqTopic;
         this.persistence = persistence;
+        this.replayGuard = replayGuard;
+        this.deviceRegistry = deviceRegistry;
+        this.pipeline = pipeline;
+        this.metrics = metrics;
+        this.retryPolicy = retryPolicy;
+        this.retrySigner = retrySigner;
+        this.rollups = rollups;
+        this.spool = spool;
+        this.transactional = batchEnabled && transactional;
+        this.groupId = groupId;
+        this.topic = topic;
     }
 
-    @KafkaListener(topics = "${app.topics.telemetry}", groupId = "${spring.kafka.consumer.group-id}")
-    public void onMessage(ConsumerRecord<String, String> record) {
-        final String value = record.value();
-        final String key = record.key();
-        final String topic = record.topic();
-        final int partition = record.partition();
-        final long offset = record.offset();
+    // Modalità transazionale: si riparte dagli offset salvati su DB, non da quelli committati sul gruppo.
+    @Override
+    public void onPartitionsAssigned(Map<TopicPartition, Long> assignments, ConsumerSeekCallback callback) {
+        if (!transactional) return;
+        List<Integer> partitions = assignments.keySet().stream()
+                .filter(tp -> tp.topic().equals(topic))
+                .map(TopicPartition::partition)
+                .toList();
+        Map<Integer, Long> stored;
+        try {
+            stored = persistence.loadOffsets(groupId, topic, partitions);
+        } catch (Exception ex) {
+            // si riparte dagli offset del gruppo: le riconsegne restano idempotenti su messages_raw/decoded
+            log.warn("Cannot load DB offsets for {} {}, using group offsets: {}", topic, partitions, ex.getMessage());
+            return;
+        }
+        stored.forEach((p, offset) -> {
+            nextOffsets.put(p, offset);
+            callback.seek(topic, p, offset);
+        });
+        log.info("Partitions assigned | topic={} | partitions={} | db offsets={}", topic, partitions, stored);
+    }
 
-        UUID rawId = null;
+    @Override
+    public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+        partitions.forEach(tp -> nextOffsets.remove(tp.partition()));
+    }
 
-        try {
-            // ----- parse envelope -----
-            JsonNode root = mapper.readTree(value);
-            ObjectNode meta = (ObjectNode) root.path("meta");
-            ObjectNode sec = (ObjectNode) root.path("security");
-            String ciphertextB64 = root.path("ciphertext").asText();
+    // Modalità record-per-record (default): attiva se né batch né pipeline sono abilitate
+    @KafkaListener(id = "telemetry-single",
+            topics = "${app.topics.telemetry}",
+            groupId = "${spring.kafka.consumer.group-id}",
+            autoStartup = "#{!${app.consumer.batch.enabled:false} and !${app.consumer.pipeline.enabled:false}}")
+    public void onMessage(ConsumerRecord<String, byte[]> record) {
+        process(record, RetryState.initial(record));
+    }
+
+    // Record dai topic di retry (vedi retry.RetryContainers), già trascorso il ritardo del livello.
+    public void onRetry(ConsumerRecord<String, byte[]> record) {
+        process(record, retrySigner.from(record));
+    }
 
-            String ivB64 = sec.path("iv").asText();
-            String sigB64 = sec.path("sig").asText();
-            String nonce = meta.path("nonce").asText();
+    private void process(ConsumerRecord<String, byte[]> record, RetryState state) {
+        UUID rawId = state.rawId();
+
+        try {
+            // ----- parse envelope + anti-replay -----
+            Inbound in = parse(record, state);
+            state = in.state();  // con il nonce accettato: i retry da qui in poi non lo ricontrollano
 
-            if (!usedNonces.add(nonce)) {
-                throw new IllegalStateException("Replay detected for nonce " + nonce);
+            // 1) Persisto SEMPRE il messaggio grezzo (audit + id per errori), una volta sola tra i tentativi
+            if (rawId == null) {
+                long t = System.nanoTime();
+                rawId = persistence.saveRaw(toRawRow(in));
+                metrics.lap(Stage.SAVE_RAW, t);
             }
 
-            // (facoltativo) headers Kafka -> JSON; qui null per semplicità
-            ObjectNode headers = null;
+            // 2) Verify HMAC + 3) Decrypt (un micro-batch dà più letture)
+            List<Decoded> dec = verifyAndDecrypt(in);
 
-            // 1) Persisto SEMPRE il messaggio grezzo (audit + id per errori)
-            rawId = persistence.saveRaw(topic, partition, offset, meta, sec, ciphertextB64, headers);
+            // 4) Persisto il decodificato (nei rollup solo le letture davvero inserite)
+            long t = System.nanoTime();
+            List<Decoded> inserted = saveDecoded(rawId, dec);
+            metrics.lap(Stage.SAVE_DECODED, t);
+            metrics.processed(1);
+            addRollups(inserted);
 
-            // 2) Verify HMAC su (iv || ciphertext)
-            byte[] iv = Base64.getDecoder().decode(ivB64);
-            byte[] ciphertext = Base64.getDecoder().decode(ciphertextB64);
-            byte[] sig = Base64.getDecoder().decode(sigB64);
+            log.debug("✅ Decrypted & persisted | key={} | readings={} | payload={}",
+                    record.key(), dec.size(), dec.get(0).payloadJson());
 
-            byte[] msgForMac = new byte[iv.length + ciphertext.length];
-            System.arraycopy(iv, 0, msgForMac, 0, iv.length);
-            System.arraycopy(ciphertext, 0, msgForMac, iv.length, ciphertext.length);
-            crypto.verifyHmac(msgForMac, sig); // throws se invalid
+        } catch (Exception ex) {
+            handleFailure(record, state, rawId, ex);
+        }
+    }
 
-            // 3) Decrypt
-            byte[] plain = crypto.decrypt(iv, ciphertext);
-            String payloadJson = new String(plain, StandardCharsets.UTF_8);
-            ObjectNode payload = (ObjectNode) mapper.readTree(payloadJson);
+    /**
+     * Modalità batch: verifica e decifra l'intera poll, poi persiste raw e decoded
+     * con inserimenti multi-riga. Gli errori del singolo record finiscono comunque in
+     * processing_errors + DLQ senza far fallire il resto della batch.
+     */
+    @KafkaListener(id = "telemetry-batch",
+            topics = "${app.topics.telemetry}",
+            groupId = "${spring.kafka.consumer.group-id}",
+            containerFactory = "batchListenerContainerFactory",
+            autoStartup = "${app.consumer.batch.enabled:false}")
+    public void onBatch(List<ConsumerRecord<String, byte[]>> records) {
+        if (transactional) {
+            onBatchTransactional(records);
+            return;
+        }
+        // ----- parse + anti-replay + verify/decrypt, tutto in memoria -----
+        List<Outcome> outcomes = new ArrayList<>(records.size());
+        for (ConsumerRecord<String, byte[]> record : records) {
+            Inbound in;
+            RetryState state = RetryState.initial(record);
+            try {
+                in = parse(record, state);
+            } catch (Exception ex) {
+                handleFailure(record, state, null, ex);
+                continue;
+            }
+            try {
+                outcomes.add(new Outcome(in, verifyAndDecrypt(in), null));
+            } catch (Exception ex) {
+                outcomes.add(new Outcome(in, null, ex));
+            }
+        }
+        if (outcomes.isEmpty()) return;
 
-            // 4) Persisto il decodificato
-            String deviceId = meta.path("deviceId").asText();
-            String tsStr = meta.path("ts").asText();
-            Instant eventTs = Instant.parse(tsStr); // se non valido, lancia e finisce in processing_errors
+        SpoolService spoolService = spool.getIfAvailable();
+        if (spoolService != null) {
+            outcomes = spool(spoolService, outcomes);
+            if (outcomes.isEmpty()) return;
+        }
 
-            persistence.saveDecoded(
-                    rawId, deviceId, eventTs,
-                    meta, payload,
-                    true,  // integrity_ok
-                    true   // auth_ok
-            );
+        // 1) raw in blocco (anche per i record che hanno fallito verify: servono gli id per gli errori)
+        List<MessageRepository.RawRow> rawRows = new ArrayList<>(outcomes.size());
+        for (Outcome o : outcomes) {
+            rawRows.add(toRawRow(o.in()));
+        }
 
-            log.info("✅ Decrypted & persisted | key={} | payload={}", key, payloadJson);
+        List<UUID> rawIds;
+        long t = System.nanoTime();
+        try {
+            rawIds = persistence.saveRawBatch(rawRows);
+            metrics.lap(Stage.SAVE_RAW_BATCH, t);
+        } catch (Exception ex) {
+            // la INSERT multi-riga è tutto-o-niente (es. un offset già presente): ripiego record per record
+            log.warn("Raw batch insert failed, falling back to per-record persistence ({} records): {}",
+                    outcomes.size(), ex.getMessage());
+            outcomes.forEach(this::persistOne);
+            return;
+        }
 
+        // 2) decoded in blocco per i soli record validi
+        List<MessageRepository.DecodedRow> decodedRows = new ArrayList<>(outcomes.size());
+        for (int i = 0; i < outcomes.size(); i++) {
+            Outcome o = outcomes.get(i);
+            if (o.error() == null) {
+                decodedRows.addAll(toDecodedRows(rawIds.get(i), o.decoded()));
+            }
+        }
+
+        Set<MessageRepository.DecodedKey> inserted = null;
+        t = System.nanoTime();
+        try {
+            inserted = persistence.saveDecodedBatch(decodedRows);
+            metrics.lap(Stage.SAVE_DECODED_BATCH, t);
         } catch (Exception ex) {
-            log.warn("Security/processing error | topic={} p={} off={} key={}: {}",
-                    topic, partition, offset, key, ex.getMessage());
+            log.warn("Decoded batch insert failed, falling back to per-record persistence ({} rows): {}",
+                    decodedRows.size(), ex.getMessage());
+        }
 
-            if (rawId != null) {
+        // 3) errori per record + eventuale ripiego sui decodificati
+        int persisted = 0;
+        for (int i = 0; i < outcomes.size(); i++) {
+            Outcome o = outcomes.get(i);
+            UUID rawId = rawIds.get(i);
+            if (o.error() != null) {
+                handleFailure(o.in().record(), o.in().state(), rawId, o.error());
+            } else if (inserted != null) {
+                addRollups(onlyInserted(rawId, o.decoded(), inserted));
+                persisted++;
+            } else {
                 try {
-                    persistence.saveError(
-                            rawId,
-                            "DECRYPT_OR_VERIFY",
-                            "PROCESSING_ERROR",
-                            ex.getClass().getSimpleName() + ": " + ex.getMessage(),
-                            dlqTopic,
-                            1
-                    );
-                } catch (Exception ignore) {
-                    // non bloccare il DLQ
+                    addRollups(saveDecoded(rawId, o.decoded()));
+                    persisted++;
+                } catch (Exception ex) {
+                    handleFailure(o.in().record(), o.in().state(), rawId, ex);
+                }
+            }
+        }
+
+        metrics.processed(persisted);
+        log.debug("✅ Batch decrypted & persisted | records={} | ok={} | failed={}",
+                records.size(), persisted, records.size() - persisted);
+    }
+
+    /**
+     * Modalità batch transazionale ({@code app.consumer.batch.transactional=true}): raw, decoded,
+     * rollup e prossimo offset per partizione della poll in un'unica transazione.
+     * I record sotto l'offset salvato sono già persistiti e vengono scartati prima di parse e crypto.
+     * DLQ/retry e processing_errors solo dopo il commit (un crash in mezzo li perde, non li duplica).
+     */
+    private void onBatchTransactional(List<ConsumerRecord<String, byte[]>> records) {
+        Map<Integer, Long> next = new HashMap<>();
+        List<Outcome> outcomes = new ArrayList<>(records.size());
+        List<Rejected> rejected = new ArrayList<>();
+        int skipped = 0;
+        for (ConsumerRecord<String, byte[]> record : records) {
+            if (record.offset() < nextOffsets.getOrDefault(record.partition(), 0L)) {
+                skipped++;
+                continue;
+            }
+            next.merge(record.partition(), record.offset() + 1, Math::max);
+            RetryState state = RetryState.initial(record);
+            Inbound in;
+            try {
+                in = parse(record, state);
+            } catch (Exception ex) {
+                rejected.add(new Rejected(record, state, ex));
+                continue;
+            }
+            try {
+                outcomes.add(new Outcome(in, verifyAndDecrypt(in), null));
+            } catch (Exception ex) {
+                outcomes.add(new Outcome(in, null, ex));
+            }
+        }
+        if (next.isEmpty()) {
+            log.debug("Batch already persisted, skipped {} records", skipped);
+            return;
+        }
+
+        List<UUID> rawIds = new ArrayList<>(outcomes.size());
+        long t = System.nanoTime();
+        try {
+            persistence.inTransaction(() -> {
+                List<MessageRepository.RawRow> rawRows = new ArrayList<>(outcomes.size());
+                for (Outcome o : outcomes) {
+                    rawRows.add(toRawRow(o.in()));
+                }
+                rawIds.addAll(persistence.saveRawBatch(rawRows));
+
+                List<MessageRepository.DecodedRow> decodedRows = new ArrayList<>(outcomes.size());
+                for (int i = 0; i < outcomes.size(); i++) {
+                    Outcome o = outcomes.get(i);
+                    if (o.error() == null) {
+                        decodedRows.addAll(toDecodedRows(rawIds.get(i), o.decoded()));
+                    }
+                }
+                Set<MessageRepository.DecodedKey> inserted = persistence.saveDecodedBatch(decodedRows);
+                RollupAggregator.Delta delta = rollups.delta();
+                for (int i = 0; i < outcomes.size(); i++) {
+                    Outcome o = outcomes.get(i);
+                    if (o.error() == null) {
+                        onlyInserted(rawIds.get(i), o.decoded(), inserted)
+                                .forEach(d -> delta.add(d.deviceId(), d.eventTs(), d.sample()));
+                    }
+                }
+                delta.write();
+                persistence.saveOffsets(groupId, topic, next);
+            });
+            metrics.lap(Stage.SAVE_BATCH_TX, t);
+        } catch (Exception ex) {
+            log.warn("Batch transaction failed, falling back to one transaction per record ({} records): {}",
+                    outcomes.size(), ex.getMessage());
+            outcomes.forEach(this::persistOneTx);
+            rejected.forEach(r -> handleFailure(r.record(), r.state(), null, r.error()));
+            saveOffsetsQuietly(next);
+            return;
+        }
+        next.forEach((p, off) -> nextOffsets.merge(p, off, Math::max));
+
+        int persisted = 0;
+        for (int i = 0; i < outcomes.size(); i++) {
+            Outcome o = outcomes.get(i);
+            if (o.error() != null) {
+                handleFailure(o.in().record(), o.in().state(), rawIds.get(i), o.error());
+            } else {
+                persisted++;
+            }
+        }
+        rejected.forEach(r -> handleFailure(r.record(), r.state(), null, r.error()));
+
+        metrics.processed(persisted);
+        log.debug("✅ Batch committed | records={} | ok={} | failed={} | skipped={}",
+                records.size(), persisted, records.size() - persisted - skipped, skipped);
+    }
+
+    /**
+     * Modalità pipeline: il thread del listener smista i record su corsie per chiave (deviceId),
+     * così l'ordine per device è preservato e device diversi procedono in parallelo.
+     * L'ack avviene a fine elaborazione, anche fuori ordine: il container committa
+     * solo offset con tutti i precedenti completati.
+     */
+    @KafkaListener(id = "telemetry-pipeline",
+            topics = "${app.topics.telemetry}",
+            groupId = "${spring.kafka.consumer.group-id}",
+            containerFactory = "pipelineListenerContainerFactory",
+            autoStartup = "#{${app.consumer.pipeline.enabled:false} and !${app.consumer.batch.enabled:false}}")
+    public void onPipelined(ConsumerRecord<String, byte[]> record, Acknowledgment ack) throws InterruptedException {
+        pipeline.getObject().submit(record.key(), () -> {
+            try {
+                onMessage(record);  // errori già gestiti (processing_errors + DLQ)
+            } finally {
+                ack.acknowledge();
+            }
+        });
+    }
+
+    /* ---------- pipeline steps ---------- */
+
+    // Parse dell'envelope (JSON o binario, dal magic byte), policy del device e anti-replay su ts e nonce.
+    // Tutto prima di saveRaw: i messaggi rifiutati qui non costano scritture su DB.
+    // L'anti-replay è l'ultimo passo che può fallire: se registra il nonce, lo stato ritornato lo segna
+    // (header x-nonce-accepted-at) e solo i retry con quel segno saltano il controllo. Un fallimento
+    // prima (registry, keyring) lascia il nonce da controllare al tentativo successivo.
+    private Inbound parse(ConsumerRecord<String, byte[]> record, RetryState state) throws Exception {
+        long t = System.nanoTime();
+        Envelope env = envelopeParser.parse(record.value());
+        t = metrics.lap(Stage.PARSE, t);
+
+        deviceRegistry.check(env.deviceId(), env.alg());
+        Crypto crypto = keyRing.forKeyId(env.keyId()); // chiave sconosciuta/ritirata => rifiuto prima del DB
+        t = metrics.lap(Stage.REGISTRY, t);
+
+        Instant eventTs = Instant.parse(env.ts()); // se non valido, lancia
+        if (!state.nonceAccepted()) {
+            state = state.withNonceAccepted(replayGuard.check(env.nonce(), eventTs));
+            metrics.lap(Stage.REPLAY, t);
+        }
+
+        // (facoltativo) headers Kafka -> JSON; qui null per semplicità
+        return new Inbound(record, state, env, crypto, eventTs, null);
+    }
+
+    // Verify HMAC su (iv || ciphertext) o AAD di meta, decrypt, eventuale decompressione e parse del payload,
+    // sugli slice dell'envelope. Una lettura per un envelope singolo, tutte quelle di un micro-batch.
+    private List<Decoded> verifyAndDecrypt(Inbound in) throws Exception {
+        Envelope env = in.env();
+        Crypto crypto = in.crypto();
+        long t = System.nanoTime();
+        byte[] aad = EnvelopeAad.forEnvelope(env.algWithCodec(), env.keyId(), env.deviceId(), in.eventTs(),
+                env.traceId(), env.nonce());
+        if (aad == null) {
+            crypto.verifyHmac(env.iv(), env.ciphertext(), env.sig()); // HMAC incrementale, throws se invalid
+        }
+        t = metrics.lap(Stage.VERIFY, t);
+
+        // con AAD il tag GCM copre anche meta: alterarlo fa fallire la decifratura
+        byte[] plain = new byte[Crypto.plaintextLength(env.ciphertext().remaining())];
+        int n = crypto.decrypt(env.iv(), env.ciphertext().duplicate(), ByteBuffer.wrap(plain), aad);
+        t = metrics.lap(Stage.DECRYPT, t);
+        if (env.codec() != PayloadCodec.NONE) {
+            plain = env.codec().decompress(plain, 0, n, MAX_PAYLOAD_BYTES);
+            n = plain.length;
+            t = metrics.lap(Stage.DECOMPRESS, t);
+        }
+        // validato in streaming, niente albero; stesso passaggio: valori delle metriche per i rollup
+        List<double[]> samples = new ArrayList<>(1);
+        List<EnvelopeParser.Reading> readings = envelopeParser.readings(plain, 0, n, in.eventTs(), () -> {
+            double[] sample = rollups.newSample();
+            samples.add(sample);
+            return (field, v) -> rollups.capture(sample, field, v);
+        });
+        metrics.lap(Stage.PAYLOAD_PARSE, t);
+
+        // micro-batch: il nonce dell'envelope copre tutte le letture, la prima ha ts = meta.ts (già controllato)
+        // e le altre sono crescenti: basta che l'ultima resti nella finestra anti-replay, valutata all'istante
+        // di accettazione del nonce, così anche un retry la ricontrolla con lo stesso esito
+        if (readings.size() > 1) {
+            replayGuard.checkWindow(readings.get(readings.size() - 1).ts(), in.state().nonceAcceptedAt());
+        }
+
+        List<Decoded> out = new ArrayList<>(readings.size());
+        for (int i = 0; i < readings.size(); i++) {
+            EnvelopeParser.Reading r = readings.get(i);
+            out.add(new Decoded(env.deviceId(), r.ts(), env.traceId(), r.payloadJson(), samples.get(i)));
+        }
+        return out;
+    }
+
+    // Lettura singola: INSERT semplice; micro-batch: tutte le letture in un'unica INSERT multi-riga.
+    // Ritorna le letture davvero inserite: a una riconsegna (righe già presenti) nessuna, così i rollup non le ricontano.
+    private List<Decoded> saveDecoded(UUID rawId, List<Decoded> readings) {
+        if (readings.size() == 1) {
+            Decoded d = readings.get(0);
+            return persistence.saveDecoded(rawId, d.deviceId(), d.eventTs(), d.traceId(), d.payloadJson(), true, true)
+                    ? readings : List.of();
+        }
+        return onlyInserted(rawId, readings, persistence.saveDecodedBatch(toDecodedRows(rawId, readings)));
+    }
+
+    private static List<Decoded> onlyInserted(UUID rawId, List<Decoded> readings, Set<MessageRepository.DecodedKey> inserted) {
+        List<Decoded> out = new ArrayList<>(readings.size());
+        for (Decoded d : readings) {
+            if (inserted.contains(MessageRepository.DecodedKey.of(rawId, d.eventTs()))) {
+                out.add(d);
+            }
+        }
+        return out;
+    }
+
+    private void addRollups(List<Decoded> readings) {
+        for (Decoded d : readings) {
+            rollups.add(d.deviceId(), d.eventTs(), d.sample());
+        }
+    }
+
+    // Ripiego della modalità batch: stessa sequenza di onMessage, riusando verify/decrypt già fatti.
+    private void persistOne(Outcome o) {
+        ConsumerRecord<String, byte[]> record = o.in().record();
+        RetryState state = o.in().state();
+        UUID rawId = null;
+        try {
+            rawId = persistence.saveRaw(toRawRow(o.in()));
+            if (o.error() != null) {
+                throw o.error();
+            }
+            addRollups(saveDecoded(rawId, o.decoded()));
+            metrics.processed(1);
+        } catch (Exception ex) {
+            handleFailure(record, state, rawId, ex);
+        }
+    }
+
+    /**
+     * Spool: i record vanno sul journal locale (fsync prima che il container committi gli offset),
+     * così la poll non tocca Postgres. I falliti ci vanno con la loro riga di processing_errors,
+     * scritta insieme al raw al drenaggio (stesso audit del percorso diretto), e solo dopo l'fsync
+     * partono su retry/DLQ (senza raw id: il retry ritrova il raw per offset).
+     * Ritorna i record rimasti fuori per spool pieno, da scrivere su DB come al solito.
+     */
+    private List<Outcome> spool(SpoolService spoolService, List<Outcome> outcomes) {
+        List<SpoolRecord> entries = new ArrayList<>(outcomes.size());
+        for (Outcome o : outcomes) {
+            if (o.error() != null) {
+                entries.add(SpoolRecord.failed(toRawRow(o.in()), errorRow(o.in().state().failed(null), o.error())));
+                continue;
+            }
+            List<SpoolRecord.Reading> readings = new ArrayList<>(o.decoded().size());
+            for (Decoded d : o.decoded()) {
+                readings.add(new SpoolRecord.Reading(d.eventTs(), d.payloadJson(), d.sample()));
+            }
+            entries.add(new SpoolRecord(toRawRow(o.in()), readings));
+        }
+        int spooled;
+        try {
+            spooled = spoolService.offer(entries);
+        } catch (InterruptedException e) {
+            // shutdown: tutto su DB (le righe eventualmente già nello spool non si duplicano)
+            Thread.currentThread().interrupt();
+            spooled = 0;
+        }
+        for (Outcome o : outcomes.subList(0, spooled)) {
+            if (o.error() != null) {
+                handleFailure(o.in().record(), o.in().state(), null, o.error());
+            }
+        }
+        return outcomes.subList(spooled, outcomes.size());
+    }
+
+    // Ripiego della modalità transazionale: un record per transazione, con il suo offset.
+    private void persistOneTx(Outcome o) {
+        RetryState state = o.in().state();
+        UUID[] rawId = new UUID[1];
+        try {
+            persistence.inTransaction(() -> {
+                rawId[0] = persistence.saveRaw(toRawRow(o.in()));
+                if (o.error() == null) {
+                    RollupAggregator.Delta delta = rollups.delta();
+                    saveDecoded(rawId[0], o.decoded()).forEach(d -> delta.add(d.deviceId(), d.eventTs(), d.sample()));
+                    delta.write();
                 }
+                persistence.saveOffsets(groupId, topic, Map.of(state.partition(), state.offset() + 1));
+            });
+        } catch (Exception ex) {
+            handleFailure(o.in().record(), state, null, ex);  // rollback: nessun raw id
+            return;
+        }
+        nextOffsets.merge(state.partition(), state.offset() + 1, Math::max);
+        if (o.error() != null) {
+            handleFailure(o.in().record(), state, rawId[0], o.error());
+        } else {
+            metrics.processed(1);
+        }
+    }
+
+    // Offset dei record scartati in parse (nessuna riga da scrivere): al peggio vengono riletti al riavvio.
+    private void saveOffsetsQuietly(Map<Integer, Long> next) {
+        try {
+            persistence.saveOffsets(groupId, topic, next);
+            next.forEach((p, off) -> nextOffsets.merge(p, off, Math::max));
+        } catch (Exception ex) {
+            log.warn("Cannot save offsets {}: {}", next, ex.getMessage());
+        }
+    }
+
+    // Errore transitorio con tentativi residui => topic di retry del livello successivo, altrimenti DLQ.
+    private void handleFailure(ConsumerRecord<String, byte[]> record, RetryState state, UUID rawId, Exception ex) {
+        metrics.failed(ex);
+        RetryState next = state.failed(rawId);
+        SpoolRecord.Failure failure = errorRow(next, ex);
+        String target = failure.target();
+
+        log.warn("Security/processing error | topic={} p={} off={} key={} attempt={} -> {}: {}",
+                state.topic(), state.partition(), state.offset(), record.key(), next.attempts(), target, ex.getMessage());
+
+        if (next.rawId() != null) {
+            try {
+                persistence.saveError(next.rawId(), failure.stage(), failure.code(), failure.message(), target, failure.attempts());
+            } catch (Exception ignore) {
+                // non bloccare retry/DLQ
             }
+        }
+
+        // invio il messaggio grezzo, con lo stato dei tentativi negli header (tempo misurato fino all'ack del broker)
+        long t = System.nanoTime();
+        var out = new ProducerRecord<>(target, null, record.key(), record.value(), retrySigner.toHeaders(next));
+        kafkaTemplate.send(out)
+                .whenComplete((res, err) -> metrics.record(Stage.DLQ_SEND, System.nanoTime() - t));
+    }
+
+    // Riga di processing_errors e destinazione (retry o DLQ) di un tentativo fallito.
+    private SpoolRecord.Failure errorRow(RetryState next, Exception ex) {
+        String retryTopic = retryPolicy.nextTopic(ex, next.attempts());
+        return new SpoolRecord.Failure(
+                "DECRYPT_OR_VERIFY",
+                retryTopic != null ? "TRANSIENT_ERROR" : "PROCESSING_ERROR",
+                ex.getClass().getSimpleName() + ": " + ex.getMessage(),
+                retryTopic != null ? retryTopic : dlqTopic,
+                next.attempts());
+    }
+
+    private static MessageRepository.RawRow toRawRow(Inbound in) {
+        RetryState s = in.state();
+        Envelope env = in.env();
+        return new MessageRepository.RawRow(
+                s.topic(), s.partition(), s.offset(), in.receivedAt(),
+                env.deviceId(), in.eventTs(), env.traceId(), env.nonce(), env.algWithCodec(), env.keyId(),
+                env.metaJson(),
+                MessageRepository.bytes(env.iv()),
+                MessageRepository.bytes(env.sig()),
+                MessageRepository.bytes(env.ciphertext()),
+                in.headersJson());
+    }
 
-            // invio il messaggio grezzo in DLQ
-            kafkaTemplate.send(dlqTopic, key, value);
+    // Una riga per lettura, tutte con l'id del raw: la chiave (id, event_ts) le distingue.
+    private static List<MessageRepository.DecodedRow> toDecodedRows(UUID rawId, List<Decoded> readings) {
+        List<MessageRepository.DecodedRow> rows = new ArrayList<>(readings.size());
+        for (Decoded d : readings) {
+            rows.add(new MessageRepository.DecodedRow(rawId, d.deviceId(), d.eventTs(), d.traceId(), d.payloadJson(), true, true));
         }
+        return rows;
     }
-}
\ No newline at end of file
+
+    /* ---------- holders ---------- */
+
+    private record Inbound(ConsumerRecord<String, byte[]> record,
+                           RetryState state,
+                           Envelope env,
+                           Crypto crypto,
+                           Instant eventTs,
+                           String headersJson) {
+
+        // chiave di partizione di messages_raw: il timestamp del record originale è lo stesso a ogni riconsegna
+        Instant receivedAt() {
+            return state.timestamp() >= 0 ? Instant.ofEpochMilli(state.timestamp()) : Instant.now();
+        }
+    }
+
+    private record Decoded(String deviceId, Instant eventTs, String traceId, String payloadJson, double[] sample) {}
+
+    private record Outcome(Inbound in, List<Decoded> decoded, Exception error) {}
+
+    // scartato in parse (envelope, device, chiave, replay): nessuna riga su DB
+    private record Rejected(ConsumerRecord<String, byte[]> record, RetryState state, Exception error) {}
+}
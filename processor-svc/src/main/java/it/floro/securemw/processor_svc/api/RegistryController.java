@@ -0,0 +1,47 @@
+package it.floro.securemw.processor_svc.api;
+
+import it.floro.securemw.processor_svc.security.DeviceRegistry;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.regex.Pattern;
+
+/**
+ * Applicazione immediata delle modifiche a device_registry, senza attendere il TTL della cache.
+ * <ul>
+ *   <li>{@code POST /api/registry/devices/{deviceId}/invalidate}: dopo la modifica di un device</li>
+ *   <li>{@code POST /api/registry/invalidate}: dopo modifiche in blocco</li>
+ * </ul>
+ */
+@RestController
+@RequestMapping("/api/registry")
+public class RegistryController {
+
+    private static final Pattern DEVICE_ID = Pattern.compile("[A-Za-z0-9._:-]{1,128}");
+
+    private final DeviceRegistry registry;
+
+    public RegistryController(DeviceRegistry registry) {
+        this.registry = registry;
+    }
+
+    @PostMapping("/devices/{deviceId}/invalidate")
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void invalidate(@PathVariable String deviceId) {
+        if (!DEVICE_ID.matcher(deviceId).matches()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "invalid deviceId");
+        }
+        registry.invalidate(deviceId);
+    }
+
+    @PostMapping("/invalidate")
+    @ResponseStatus(HttpStatus.NO_CONTENT)
+    public void invalidateAll() {
+        registry.invalidateAll();
+    }
+}
@@ -0,0 +1,90 @@
+package it.floro.securemw.processor_svc.api;
+
+import it.floro.securemw.processor_svc.db.ReprocessRepository.Filter;
+import it.floro.securemw.processor_svc.db.ReprocessRepository.Job;
+import it.floro.securemw.processor_svc.reprocess.ReprocessService;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * Job di rielaborazione di messages_raw ({@code app.reprocess.enabled=true}).
+ * <ul>
+ *   <li>{@code POST /api/reprocess/jobs?from=...&to=...[&deviceId=...][&errorStage=...]}: avvia un job</li>
+ *   <li>{@code GET /api/reprocess/jobs[/{id}]}: stato, posizione e contatori</li>
+ *   <li>{@code POST /api/reprocess/jobs/{id}/cancel} e {@code /resume}: ferma / riprende dal checkpoint</li>
+ * </ul>
+ */
+@RestController
+@RequestMapping("/api/reprocess")
+@ConditionalOnProperty(name = "app.reprocess.enabled", havingValue = "true")
+public class ReprocessController {
+
+    private static final Pattern DEVICE_ID = Pattern.compile("[A-Za-z0-9._:-]{1,128}");
+
+    private final ReprocessService service;
+
+    public ReprocessController(ReprocessService service) {
+        this.service = service;
+    }
+
+    @PostMapping("/jobs")
+    @ResponseStatus(HttpStatus.ACCEPTED)
+    public Job start(@RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+                     @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to,
+                     @RequestParam(required = false) String deviceId,
+                     @RequestParam(required = false) String errorStage) {
+        // intervallo su received_at obbligatorio: la lettura tocca solo le partizioni interessate
+        if (!from.isBefore(to)) {
+            throw badRequest("from must be before to");
+        }
+        if (deviceId != null && !DEVICE_ID.matcher(deviceId).matches()) {
+            throw badRequest("invalid deviceId");
+        }
+        return service.start(new Filter(from, to, deviceId, errorStage));
+    }
+
+    @GetMapping("/jobs")
+    public List<Job> jobs(@RequestParam(defaultValue = "50") int limit) {
+        return service.recent(Math.max(1, Math.min(limit, 500)));
+    }
+
+    @GetMapping("/jobs/{id}")
+    public Job job(@PathVariable UUID id) {
+        return service.find(id).orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND));
+    }
+
+    @PostMapping("/jobs/{id}/cancel")
+    public Job cancel(@PathVariable UUID id) {
+        if (!service.cancel(id)) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "job is not running");
+        }
+        return job(id);
+    }
+
+    @PostMapping("/jobs/{id}/resume")
+    public Job resume(@PathVariable UUID id) {
+        try {
+            return service.resume(id);
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        }
+    }
+
+    private static ResponseStatusException badRequest(String msg) {
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST, msg);
+    }
+}
@@ -0,0 +1,231 @@
+package it.floro.securemw.processor_svc.api;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.floro.securemw.processor_svc.db.RollupRepository.RollupRow;
+import it.floro.securemw.processor_svc.db.TelemetryQueryRepository;
+import it.floro.securemw.processor_svc.db.TelemetryQueryRepository.Cursor;
+import it.floro.securemw.processor_svc.db.TelemetryQueryRepository.Reading;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.regex.Pattern;
+
+/**
+ * API di sola lettura sulla telemetria decodificata.
+ * <ul>
+ *   <li>{@code GET /api/telemetry/devices/{id}/readings}: pagine in keyset (cursore opaco {@code next})</li>
+ *   <li>{@code GET /api/telemetry/devices/{id}/readings/stream?format=ndjson|csv}: intervalli grandi in streaming</li>
+ *   <li>{@code GET /api/telemetry/export}: CSV direttamente da COPY di Postgres</li>
+ *   <li>{@code GET /api/telemetry/devices/{id}/rollups?granularity=1m|1h|1d}: aggregati pre-calcolati</li>
+ * </ul>
+ * Gli stream scrivono riga per riga sulla response: nessun result set in memoria. Stream ed export
+ * concorrenti sono limitati ({@code app.api.export-max-concurrent}): oltre, 503 subito.
+ */
+@RestController
+@RequestMapping("/api/telemetry")
+public class TelemetryQueryController {
+
+    private static final Pattern DEVICE_ID = Pattern.compile("[A-Za-z0-9._:-]{1,128}");
+    private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+    private static final MediaType CSV = MediaType.parseMediaType("text/csv");
+
+    private final TelemetryQueryRepository repo;
+    private final ObjectMapper mapper;
+    private final int maxPageSize;
+
+    public TelemetryQueryController(TelemetryQueryRepository repo,
+                                    ObjectMapper mapper,
+                                    @Value("${app.api.max-page-size:1000}") int maxPageSize) {
+        this.repo = repo;
+        this.mapper = mapper;
+        this.maxPageSize = maxPageSize;
+    }
+
+    @GetMapping("/devices/{deviceId}/readings")
+    public ReadingPage readings(@PathVariable String deviceId,
+                                @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+                                @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to,
+                                @RequestParam(required = false) String cursor,
+                                @RequestParam(defaultValue = "100") int limit) {
+        checkDevice(deviceId);
+        Instant end = checkRange(from, to);
+        if (limit < 1 || limit > maxPageSize) {
+            throw badRequest("limit must be between 1 and " + maxPageSize);
+        }
+
+        List<Reading> items = repo.findPage(deviceId, from, end, decodeCursor(cursor), limit);
+        String next = items.size() == limit ? encodeCursor(items.get(items.size() - 1)) : null;
+        return new ReadingPage(items, next);
+    }
+
+    @GetMapping("/devices/{deviceId}/readings/stream")
+    public ResponseEntity<StreamingResponseBody> stream(@PathVariable String deviceId,
+                                                        @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+                                                        @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to,
+                                                        @RequestParam(defaultValue = "ndjson") String format) {
+        checkDevice(deviceId);
+        Instant end = checkRange(from, to);
+
+        StreamingResponseBody body = switch (format) {
+            case "ndjson" -> out -> {
+                try (JsonGenerator g = mapper.getFactory().createGenerator(out)) {
+                    g.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+                    g.setRootValueSeparator(null);
+                    repo.stream(deviceId, from, end, r -> unchecked(() -> writeNdjson(g, r)));
+                }
+            };
+            case "csv" -> out -> {
+                Writer w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 64 * 1024);
+                w.write("id,device_id,event_ts,payload\n");
+                repo.stream(deviceId, from, end, r -> unchecked(() -> writeCsv(w, r)));
+                w.flush();
+            };
+            default -> throw badRequest("format must be ndjson or csv");
+        };
+        return ResponseEntity.ok()
+                .contentType("csv".equals(format) ? CSV : NDJSON)
+                .body(limited(body));
+    }
+
+    @GetMapping("/devices/{deviceId}/rollups")
+    public List<RollupRow> rollups(@PathVariable String deviceId,
+                                   @RequestParam(defaultValue = "1h") String granularity,
+                                   @RequestParam(required = false) String metric,
+                                   @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+                                   @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to) {
+        checkDevice(deviceId);
+        Instant end = checkRange(from, to);
+        if (!List.of("1m", "1h", "1d").contains(granularity)) {
+            throw badRequest("granularity must be 1m, 1h or 1d");
+        }
+        return repo.findRollups(deviceId, metric, granularity, from, end);
+    }
+
+    @GetMapping("/export")
+    public ResponseEntity<StreamingResponseBody> export(@RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant from,
+                                                        @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) Instant to,
+                                                        @RequestParam(required = false) String deviceId) {
+        if (deviceId != null) {
+            checkDevice(deviceId);
+        }
+        Instant end = checkRange(from, to);
+
+        StreamingResponseBody body = out -> repo.copyCsv(deviceId, from, end, out);
+        return ResponseEntity.ok()
+                .contentType(CSV)
+                .header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"telemetry.csv\"")
+                .body(limited(body));
+    }
+
+    /* ---------- helpers ---------- */
+
+    // Slot riservato prima di rispondere (il 503 arriva prima dello stream), rilasciato a download finito.
+    private StreamingResponseBody limited(StreamingResponseBody body) {
+        if (!repo.tryStartExport()) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many concurrent exports, retry later");
+        }
+        return out -> {
+            try {
+                body.writeTo(out);
+            } finally {
+                repo.endExport();
+            }
+        };
+    }
+
+    private static void writeNdjson(JsonGenerator g, Reading r) throws IOException {
+        g.writeStartObject();
+        g.writeStringField("id", r.id().toString());
+        g.writeStringField("deviceId", r.deviceId());
+        g.writeStringField("eventTs", r.eventTs().toString());
+        g.writeFieldName("payload");
+        g.writeRawValue(r.payload());   // già JSON valido (JSONB)
+        g.writeEndObject();
+        g.writeRaw('\n');
+    }
+
+    private static void writeCsv(Writer w, Reading r) throws IOException {
+        w.write(r.id().toString());
+        w.write(',');
+        w.write(r.deviceId());   // validato: niente virgole/virgolette
+        w.write(',');
+        w.write(r.eventTs().toString());
+        w.write(",\"");
+        w.write(r.payload().replace("\"", "\"\""));
+        w.write("\"\n");
+    }
+
+    private static void checkDevice(String deviceId) {
+        if (!DEVICE_ID.matcher(deviceId).matches()) {
+            throw badRequest("invalid deviceId");
+        }
+    }
+
+    // Intervallo [from, to) obbligatoriamente limitato: abilita il pruning delle partizioni.
+    private static Instant checkRange(Instant from, Instant to) {
+        Instant end = to != null ? to : Instant.now();
+        if (!from.isBefore(end)) {
+            throw badRequest("from must be before to");
+        }
+        return end;
+    }
+
+    private static String encodeCursor(Reading last) {
+        String raw = last.eventTs() + "|" + last.id();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Cursor decodeCursor(String cursor) {
+        if (cursor == null || cursor.isBlank()) return null;
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int sep = raw.indexOf('|');
+            return new Cursor(Instant.parse(raw.substring(0, sep)), UUID.fromString(raw.substring(sep + 1)));
+        } catch (IllegalArgumentException | DateTimeParseException | StringIndexOutOfBoundsException e) {
+            throw badRequest("invalid cursor");
+        }
+    }
+
+    private static ResponseStatusException badRequest(String msg) {
+        return new ResponseStatusException(HttpStatus.BAD_REQUEST, msg);
+    }
+
+    private static void unchecked(IoAction action) {
+        try {
+            action.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // client disconnesso: interrompe la query
+        }
+    }
+
+    @FunctionalInterface
+    private interface IoAction {
+        void run() throws IOException;
+    }
+
+    /** Pagina di letture; {@code next} null = ultima pagina. */
+    public record ReadingPage(List<Reading> items, String next) {}
+}
@@ -0,0 +1,131 @@
+package it.floro.securemw.processor_svc.backpressure;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Limite di concorrenza adattivo (AIMD) sulle chiamate al DB.
+ *
+ * <ul>
+ *   <li>chiamata entro {@code target} => crescita additiva, +1 per "finestra" di {@code limit} chiamate,
+ *       solo se il limite è davvero in uso (altrimenti crescerebbe senza misurare nulla)</li>
+ *   <li>chiamata lenta, fallita o pool saturo ({@link #overload()}) => decremento moltiplicativo,
+ *       al più uno per intervallo di latenza: una raffica di risposte lente conta una volta sola</li>
+ * </ul>
+ * {@link #acquire()} attende un posto libero fino a {@code maxWaitNanos}, poi procede comunque
+ * oltre il limite: meglio rallentare che superare max.poll.interval.ms e far ribilanciare il gruppo.
+ */
+public class AdaptiveLimit {
+
+    // peso del nuovo campione nella media mobile esponenziale della latenza
+    private static final double EWMA_ALPHA = 0.2;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetNanos;
+    private final double backoff;
+    private final long maxWaitNanos;
+    private final LongSupplier clock;
+
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private double latencyNanos;
+    private long lastDecrease;
+
+    public AdaptiveLimit(int minLimit, int maxLimit, int initialLimit, long targetNanos, double backoff, long maxWaitNanos) {
+        this(minLimit, maxLimit, initialLimit, targetNanos, backoff, maxWaitNanos, System::nanoTime);
+    }
+
+    AdaptiveLimit(int minLimit, int maxLimit, int initialLimit, long targetNanos, double backoff, long maxWaitNanos,
+                  LongSupplier clock) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("limits must satisfy 1 <= min <= max");
+        }
+        if (backoff <= 0 || backoff >= 1) {
+            throw new IllegalArgumentException("backoff must be in (0, 1)");
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+        this.targetNanos = targetNanos;
+        this.backoff = backoff;
+        this.maxWaitNanos = maxWaitNanos;
+        this.clock = clock;
+        this.lastDecrease = clock.getAsLong() - Long.MAX_VALUE / 4;  // la prima riduzione non aspetta
+    }
+
+    /**
+     * Occupa un posto; va sempre seguita da {@link #release}.
+     * @return false se è scaduta l'attesa e la chiamata procede oltre il limite
+     */
+    public synchronized boolean acquire() throws InterruptedException {
+        if (inFlight < (int) limit) {
+            inFlight++;
+            return true;
+        }
+        long deadline = clock.getAsLong() + maxWaitNanos;
+        waiting++;
+        try {
+            while (inFlight >= (int) limit) {
+                long wait = deadline - clock.getAsLong();
+                if (wait <= 0) {
+                    inFlight++;
+                    return false;
+                }
+                wait(Math.max(1, wait / 1_000_000));
+            }
+        } finally {
+            waiting--;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /** Libera il posto e aggiorna il limite con l'esito della chiamata. */
+    public synchronized void release(long nanos, boolean failed) {
+        // il limite in uso si valuta prima di liberare il posto
+        boolean saturated = inFlight >= (int) limit;
+        inFlight--;
+        latencyNanos = latencyNanos == 0 ? nanos : latencyNanos + EWMA_ALPHA * (nanos - latencyNanos);
+        if (failed || nanos > targetNanos) {
+            decrease();
+        } else if (saturated || waiting > 0) {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+        notifyAll();
+    }
+
+    /** Segnale esterno di sovraccarico (es. thread in attesa di una connessione dal pool). */
+    public synchronized void overload() {
+        decrease();
+    }
+
+    /** Dopo una pausa la latenza misurata è vecchia: si riparte senza storia. */
+    public synchronized void resetLatency() {
+        latencyNanos = 0;
+    }
+
+    public synchronized int limit() {
+        return (int) limit;
+    }
+
+    public synchronized int inFlight() {
+        return inFlight;
+    }
+
+    public synchronized int waiting() {
+        return waiting;
+    }
+
+    /** Media mobile della latenza delle chiamate, 0 se non ancora misurata. */
+    public synchronized long latencyNanos() {
+        return (long) latencyNanos;
+    }
+
+    private void decrease() {
+        long now = clock.getAsLong();
+        if (now - lastDecrease < Math.max(targetNanos, (long) latencyNanos)) return;
+        lastDecrease = now;
+        limit = Math.max(minLimit, limit * backoff);
+    }
+}
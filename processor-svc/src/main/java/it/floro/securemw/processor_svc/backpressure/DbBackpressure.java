@@ -0,0 +1,208 @@
+package it.floro.securemw.processor_svc.backpressure;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.floro.securemw.processor_svc.retry.RetryContainers;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Retroazione tra consumo Kafka e pool JDBC ({@code app.backpressure.enabled}).
+ *
+ * Ogni scrittura di PersistenceService passa da {@link #call}: un {@link AdaptiveLimit} stringe la
+ * concorrenza verso il DB quando la latenza supera {@code target-latency} o il pool Hikari ha thread in
+ * attesa, e la allarga quando il DB risponde in tempo. Se la saturazione dura (chiamate in coda sul
+ * limite, attese sul pool o latenza oltre {@code pause-latency} per {@code pause-after-checks} controlli)
+ * i container dei listener vengono messi in pausa: il consumer continua a fare poll a vuoto e resta
+ * nel gruppo, niente ribilanciamenti. Si riprende a lavoro smaltito e latenza rientrata
+ * (o comunque dopo {@code max-pause}, come sonda).
+ *
+ * Il controllo gira su un thread proprio, non sullo scheduler di Spring: lì girano job legati al DB
+ * (drenaggio dello spool, flush dei rollup, DDL delle partizioni) che con Postgres lento lo terrebbero
+ * occupato proprio quando serve mettere in pausa.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "app.backpressure.enabled", havingValue = "true", matchIfMissing = true)
+public class DbBackpressure {
+
+    // una chiamata annidata (es. saveRaw dentro inTransaction) usa il posto di quella esterna
+    private static final ThreadLocal<Boolean> HELD = new ThreadLocal<>();
+
+    private final AdaptiveLimit limit;
+    private final KafkaListenerEndpointRegistry listeners;
+    private final RetryContainers retryContainers;
+    private final HikariDataSource hikari;
+
+    private final long pauseLatencyNanos;
+    private final long targetNanos;
+    private final int pauseAfterChecks;
+    private final long maxPauseMs;
+    private final long checkMs;
+    private final ScheduledExecutorService checker = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "db-backpressure");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final Counter overflow;
+    private final Counter pauses;
+
+    private volatile boolean paused;
+    private long pausedAt;
+    private int overloadedChecks;
+
+    public DbBackpressure(KafkaListenerEndpointRegistry listeners,
+                          RetryContainers retryContainers,
+                          DataSource dataSource,
+                          MeterRegistry registry,
+                          @Value("${app.backpressure.min-limit:1}") int minLimit,
+                          @Value("${app.backpressure.max-limit:32}") int maxLimit,
+                          @Value("${app.backpressure.initial-limit:8}") int initialLimit,
+                          @Value("${app.backpressure.target-latency:250ms}") Duration targetLatency,
+                          @Value("${app.backpressure.pause-latency:2s}") Duration pauseLatency,
+                          @Value("${app.backpressure.backoff:0.7}") double backoff,
+                          @Value("${app.backpressure.max-wait:10s}") Duration maxWait,
+                          @Value("${app.backpressure.pause-after-checks:4}") int pauseAfterChecks,
+                          @Value("${app.backpressure.max-pause:30s}") Duration maxPause,
+                          @Value("${app.backpressure.check-ms:500}") long checkMs) {
+        this.limit = new AdaptiveLimit(minLimit, maxLimit, initialLimit,
+                targetLatency.toNanos(), backoff, maxWait.toNanos());
+        this.listeners = listeners;
+        this.retryContainers = retryContainers;
+        this.hikari = unwrap(dataSource);
+        this.targetNanos = targetLatency.toNanos();
+        this.pauseLatencyNanos = pauseLatency.toNanos();
+        this.pauseAfterChecks = Math.max(1, pauseAfterChecks);
+        this.maxPauseMs = maxPause.toMillis();
+        this.checkMs = Math.max(1, checkMs);
+
+        Gauge.builder("processor.backpressure.limit", limit, AdaptiveLimit::limit)
+                .description("Chiamate concorrenti ammesse verso il DB").register(registry);
+        Gauge.builder("processor.backpressure.in_flight", limit, AdaptiveLimit::inFlight)
+                .description("Chiamate al DB in corso").register(registry);
+        Gauge.builder("processor.backpressure.waiting", limit, AdaptiveLimit::waiting)
+                .description("Thread in attesa di un posto nel limite").register(registry);
+        Gauge.builder("processor.backpressure.latency", limit, l -> l.latencyNanos() / 1e6)
+                .description("Media mobile della latenza delle chiamate al DB (ms)").register(registry);
+        Gauge.builder("processor.backpressure.paused", this, b -> b.paused ? 1 : 0)
+                .description("1 se i listener Kafka sono in pausa per sovraccarico del DB").register(registry);
+        this.overflow = Counter.builder("processor.backpressure.overflow")
+                .description("Chiamate partite oltre il limite dopo max-wait").register(registry);
+        this.pauses = Counter.builder("processor.backpressure.pauses")
+                .description("Pause dei listener per sovraccarico del DB").register(registry);
+    }
+
+    /** Esegue {@code work} dentro il limite di concorrenza, misurandone la latenza. */
+    public <T> T call(Supplier<T> work) {
+        if (HELD.get() != null) {
+            return work.get();
+        }
+        try {
+            if (!limit.acquire()) {
+                overflow.increment();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for DB capacity", e);
+        }
+        HELD.set(Boolean.TRUE);
+        long t = System.nanoTime();
+        boolean failed = true;
+        try {
+            T result = work.get();
+            failed = false;
+            return result;
+        } finally {
+            HELD.remove();
+            limit.release(System.nanoTime() - t, failed);
+        }
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    @PostConstruct
+    void start() {
+        checker.scheduleWithFixedDelay(() -> {
+            try {
+                check();
+            } catch (RuntimeException e) {
+                log.warn("Backpressure check failed: {}", e.getMessage());  // il prossimo giro riprova
+            }
+        }, checkMs, checkMs, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        checker.shutdownNow();
+    }
+
+    public synchronized void check() {
+        HikariPoolMXBean pool = hikari != null ? hikari.getHikariPoolMXBean() : null;
+        int pending = pool != null ? pool.getThreadsAwaitingConnection() : 0;
+        boolean saturated = limit.waiting() > 0 || pending > 0;
+        if (pending > 0) {
+            limit.overload();
+        }
+
+        if (!paused) {
+            boolean overloaded = saturated || limit.latencyNanos() > pauseLatencyNanos;
+            overloadedChecks = overloaded ? overloadedChecks + 1 : 0;
+            if (overloadedChecks >= pauseAfterChecks) {
+                setPaused(true);
+                log.warn("DB overloaded, pausing listeners | limit={} waiting={} pool pending={} latency={} ms",
+                        limit.limit(), limit.waiting(), pending, limit.latencyNanos() / 1_000_000);
+            }
+            return;
+        }
+
+        long pausedFor = System.currentTimeMillis() - pausedAt;
+        boolean drained = !saturated && limit.inFlight() == 0;
+        if (drained && (limit.latencyNanos() <= targetNanos || pausedFor >= maxPauseMs)) {
+            setPaused(false);
+            limit.resetLatency();
+            log.info("DB load back to normal, resuming listeners after {} ms | limit={}", pausedFor, limit.limit());
+        }
+    }
+
+    private void setPaused(boolean pause) {
+        for (MessageListenerContainer c : listeners.getListenerContainers()) {
+            if (!c.isRunning()) continue;
+            if (pause) c.pause(); else c.resume();
+        }
+        if (pause) retryContainers.pause(); else retryContainers.resume();
+        paused = pause;
+        overloadedChecks = 0;
+        if (pause) {
+            pausedAt = System.currentTimeMillis();
+            pauses.increment();
+        }
+    }
+
+    private static HikariDataSource unwrap(DataSource dataSource) {
+        try {
+            return dataSource.isWrapperFor(HikariDataSource.class) ? dataSource.unwrap(HikariDataSource.class) : null;
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+}
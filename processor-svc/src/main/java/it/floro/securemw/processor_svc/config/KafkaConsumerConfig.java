@@ -0,0 +1,84 @@
+package it.floro.securemw.processor_svc.config;
+
+import it.floro.securemw.processor_svc.pipeline.KeyOrderedExecutor;
+import it.floro.securemw.processor_svc.retry.RetryPolicy;
+import org.apache.kafka.clients.admin.NewTopic;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.config.TopicBuilder;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
+import org.springframework.kafka.core.KafkaAdmin;
+import org.springframework.kafka.listener.ContainerProperties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@Configuration
+public class KafkaConsumerConfig {
+
+    /**
+     * Factory per la modalità batch: il listener riceve l'intera poll come lista.
+     * max-size limita i record per poll, max-wait/min-bytes regolano quanto il broker
+     * attende per riempire la fetch (trade-off latenza / dimensione batch).
+     */
+    @Bean
+    @SuppressWarnings("unchecked")
+    public ConcurrentKafkaListenerContainerFactory<String, byte[]> batchListenerContainerFactory(
+            ConsumerFactory<?, ?> consumerFactory,
+            @Value("${app.consumer.batch.max-size:500}") int maxSize,
+            @Value("${app.consumer.batch.max-wait-ms:200}") int maxWaitMs,
+            @Value("${app.consumer.batch.min-bytes:16384}") int minBytes) {
+        Map<String, Object> props = new HashMap<>(consumerFactory.getConfigurationProperties());
+        props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, maxSize);
+        props.put(ConsumerConfig.FETCH_MAX_WAIT_MS_CONFIG, maxWaitMs);
+        props.put(ConsumerConfig.FETCH_MIN_BYTES_CONFIG, minBytes);
+
+        var batchConsumerFactory = new DefaultKafkaConsumerFactory<String, byte[]>(props);
+        // stessi listener della factory di Boot (es. metriche Micrometer del client: lag per partizione)
+        consumerFactory.getListeners()
+                .forEach(l -> batchConsumerFactory.addListener((ConsumerFactory.Listener<String, byte[]>) l));
+
+        var factory = new ConcurrentKafkaListenerContainerFactory<String, byte[]>();
+        factory.setConsumerFactory(batchConsumerFactory);
+        factory.setBatchListener(true);
+        return factory;
+    }
+
+    /**
+     * Factory per la modalità pipeline: ack manuali anche fuori ordine (asyncAcks);
+     * il container committa un offset solo quando tutti i precedenti sono stati confermati.
+     */
+    @Bean
+    @SuppressWarnings("unchecked")
+    public ConcurrentKafkaListenerContainerFactory<String, byte[]> pipelineListenerContainerFactory(
+            ConsumerFactory<?, ?> consumerFactory) {
+        var factory = new ConcurrentKafkaListenerContainerFactory<String, byte[]>();
+        factory.setConsumerFactory((ConsumerFactory<String, byte[]>) consumerFactory);
+        factory.getContainerProperties().setAckMode(ContainerProperties.AckMode.MANUAL);
+        factory.getContainerProperties().setAsyncAcks(true);
+        return factory;
+    }
+
+    // Topic dei livelli di retry, creati all'avvio da KafkaAdmin se mancano.
+    @Bean
+    public KafkaAdmin.NewTopics retryTopics(RetryPolicy policy,
+                                            @Value("${app.retry.partitions:3}") int partitions) {
+        return new KafkaAdmin.NewTopics(policy.tiers().stream()
+                .map(t -> TopicBuilder.name(t.topic()).partitions(partitions).build())
+                .toArray(NewTopic[]::new));
+    }
+
+    // Corsie per chiave della modalità pipeline (chiuse allo shutdown tramite close()).
+    @Bean
+    @ConditionalOnProperty(name = "app.consumer.pipeline.enabled", havingValue = "true")
+    public KeyOrderedExecutor pipelineExecutor(
+            @Value("${app.consumer.pipeline.lanes:16}") int lanes,
+            @Value("${app.consumer.pipeline.max-in-flight:1000}") int maxInFlight) {
+        return new KeyOrderedExecutor("telemetry-lane", lanes, maxInFlight);
+    }
+}
@@ -0,0 +1,30 @@
+package it.floro.securemw.processor_svc.db;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Optional;
+
+@Repository
+@RequiredArgsConstructor
+public class DeviceRegistryRepository {
+    private final NamedParameterJdbcTemplate jdbc;
+
+    public Optional<DeviceRow> findById(String deviceId) {
+        final String sql = """
+                SELECT device_id, enabled, min_algo
+                FROM device_registry
+                WHERE device_id = :deviceId
+                """;
+
+        List<DeviceRow> rows = jdbc.query(sql,
+                new MapSqlParameterSource("deviceId", deviceId),
+                (rs, i) -> new DeviceRow(rs.getString("device_id"), rs.getBoolean("enabled"), rs.getString("min_algo")));
+        return rows.stream().findFirst();
+    }
+
+    public record DeviceRow(String deviceId, boolean enabled, String minAlgo) {}
+}
@@ -0,0 +1,27 @@
+package it.floro.securemw.processor_svc.db;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+import java.util.Map;
+
+@Repository
+@RequiredArgsConstructor
+public class KeyMaterialRepository {
+    private final NamedParameterJdbcTemplate jdbc;
+
+    // Metadati di tutte le chiavi (la tabella è piccola: poche righe per rotazione).
+    public List<KeyMaterialRow> findAll() {
+        final String sql = """
+                SELECT key_id, algo, status
+                FROM key_material
+                """;
+
+        return jdbc.query(sql, Map.of(),
+                (rs, i) -> new KeyMaterialRow(rs.getString("key_id"), rs.getString("algo"), rs.getString("status")));
+    }
+
+    public record KeyMaterialRow(String keyId, String algo, String status) {}
+}
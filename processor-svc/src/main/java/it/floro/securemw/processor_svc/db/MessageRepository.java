@@ -7,91 +7,203 @@ import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
 import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
 import org.springframework.stereotype.Repository;
 
+import java.nio.ByteBuffer;
 import java.sql.Timestamp;
+import java.sql.Types;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 
-import org.postgresql.util.PGobject;
-
 @Slf4j
 @Repository
 @RequiredArgsConstructor
 public class MessageRepository {
+    // 15 parametri per riga: restiamo ben sotto il limite di 32767 bind del protocollo Postgres
+    private static final int MAX_ROWS_PER_STATEMENT = 1000;
+
+    // Layout compatto: campi promossi a colonne, iv/sig/ciphertext bytea (parametri binari, niente Base64).
+    // I campi promossi vengono tolti da meta lato DB; la forma completa è nella vista messages_raw_compat.
+    private static final String RAW_COLUMNS = """
+            topic, kafka_partition, kafka_offset, received_at, device_id, event_ts, trace_id, nonce,
+            alg, key_id, meta, iv, sig, ciphertext, headers""";
+
+    // DO UPDATE no-op invece di DO NOTHING: così RETURNING restituisce anche le righe già presenti
+    private static final String ON_CONFLICT_RAW = """
+            ON CONFLICT (topic, kafka_partition, kafka_offset, received_at) DO UPDATE SET topic = EXCLUDED.topic
+            """;
+
     private final NamedParameterJdbcTemplate jdbc;
 
     /* ---------- helpers ---------- */
 
-    private PGobject jsonbOrNull(String json) {
-        if (json == null) return null;
-        try {
-            PGobject obj = new PGobject();
-            obj.setType("jsonb");
-            obj.setValue(json);
-            return obj;
-        } catch (Exception e) {
-            throw new IllegalArgumentException("Invalid JSON for jsonb param", e);
+    // JSON come testo + CAST lato server: nessun PGobject per parametro
+    private static String rawValues(String suffix) {
+        return "(:topic" + suffix + ", :partition" + suffix + ", :offset" + suffix + ", :receivedAt" + suffix
+                + ", :deviceId" + suffix + ", :eventTs" + suffix + ", :traceId" + suffix + ", :nonce" + suffix
+                + ", :alg" + suffix + ", :keyId" + suffix
+                + ", CAST(:meta" + suffix + " AS jsonb) - 'deviceId' - 'ts' - 'traceId' - 'nonce'"
+                + ", :iv" + suffix + ", :sig" + suffix + ", :ciphertext" + suffix
+                + ", CAST(:headers" + suffix + " AS jsonb))";
+    }
+
+    private static void addRaw(MapSqlParameterSource params, String suffix, RawRow r) {
+        params.addValue("topic" + suffix, r.topic())
+                .addValue("partition" + suffix, r.partition())
+                .addValue("offset" + suffix, r.offset())
+                .addValue("receivedAt" + suffix, Timestamp.from(r.receivedAt()))
+                .addValue("deviceId" + suffix, r.deviceId())
+                .addValue("eventTs" + suffix, Timestamp.from(r.eventTs()))
+                .addValue("traceId" + suffix, r.traceId(), Types.VARCHAR)
+                .addValue("nonce" + suffix, r.nonce())
+                .addValue("alg" + suffix, r.alg())
+                .addValue("keyId" + suffix, r.keyId(), Types.VARCHAR)
+                .addValue("meta" + suffix, r.metaJson() != null ? r.metaJson() : "{}")
+                .addValue("iv" + suffix, r.iv(), Types.BINARY)
+                .addValue("sig" + suffix, r.sig(), Types.BINARY)
+                .addValue("ciphertext" + suffix, r.ciphertext(), Types.BINARY)
+                .addValue("headers" + suffix, r.headersJson(), Types.VARCHAR);
+    }
+
+    /** Byte di uno slice: l'array sottostante se coincide (envelope JSON), altrimenti una copia. */
+    public static byte[] bytes(ByteBuffer slice) {
+        if (slice.hasArray() && slice.arrayOffset() == 0 && slice.position() == 0
+                && slice.remaining() == slice.array().length) {
+            return slice.array();
         }
+        byte[] out = new byte[slice.remaining()];
+        slice.get(slice.position(), out);
+        return out;
     }
 
     /* ---------- RAW ---------- */
 
-    public UUID insertRaw(String topic,
-                          int partition,
-                          long offset,
-                          String metaJson,
-                          String securityJson,
-                          String ciphertextB64,
-                          String headersJson) {
-        // NB: "partition" e "offset" vanno citate.
-        final String sql = """
-                INSERT INTO messages_raw(topic, "partition", "offset", meta, security, ciphertext_b64, headers)
-                VALUES (:topic, :partition, :offset, :meta, :security, :ciphertext, :headers)
-                RETURNING id
-                """;
+    // Idempotente: alla riconsegna dello stesso offset restituisce l'id già salvato.
+    public UUID insertRaw(RawRow row) {
+        final String sql = "INSERT INTO messages_raw(" + RAW_COLUMNS + ")\nVALUES " + rawValues("") + "\n"
+                + ON_CONFLICT_RAW + "RETURNING id";
 
-        var params = new MapSqlParameterSource()
-                .addValue("topic", topic)
-                .addValue("partition", partition)
-                .addValue("offset", offset)
-                .addValue("meta", jsonbOrNull(metaJson))
-                .addValue("security", jsonbOrNull(securityJson))
-                .addValue("ciphertext", ciphertextB64)
-                .addValue("headers", jsonbOrNull(headersJson));
-
-        return jdbc.queryForObject(sql, params, UUID.class);
+        return jdbc.queryForObject(sql, rawParams(row), UUID.class);
+    }
+
+    /** Parametri dell'INSERT di una riga raw (pubblico per il benchmark di conversione). */
+    public static MapSqlParameterSource rawParams(RawRow row) {
+        var params = new MapSqlParameterSource();
+        addRaw(params, "", row);
+        return params;
+    }
+
+    /**
+     * Inserimento multi-riga di una batch di messaggi grezzi (un round-trip per chunk).
+     * Gli id generati sono restituiti nello stesso ordine di {@code rows}: RETURNING non
+     * garantisce l'ordine, quindi li riassociamo tramite (kafka_partition, kafka_offset).
+     * Offset già presenti (riconsegne) restituiscono l'id esistente.
+     */
+    public List<UUID> insertRawBatch(List<RawRow> rows) {
+        List<UUID> ids = new ArrayList<>(rows.size());
+        for (int from = 0; from < rows.size(); from += MAX_ROWS_PER_STATEMENT) {
+            ids.addAll(insertRawChunk(rows.subList(from, Math.min(rows.size(), from + MAX_ROWS_PER_STATEMENT))));
+        }
+        return ids;
+    }
+
+    private List<UUID> insertRawChunk(List<RawRow> rows) {
+        StringBuilder sql = new StringBuilder("INSERT INTO messages_raw(").append(RAW_COLUMNS).append(")\nVALUES\n");
+        var params = new MapSqlParameterSource();
+        for (int i = 0; i < rows.size(); i++) {
+            if (i > 0) sql.append(",\n");
+            sql.append(rawValues(Integer.toString(i)));
+            addRaw(params, Integer.toString(i), rows.get(i));
+        }
+        sql.append('\n').append(ON_CONFLICT_RAW).append("RETURNING id, kafka_partition, kafka_offset");
+
+        Map<String, UUID> byOffset = new HashMap<>(rows.size() * 2);
+        jdbc.query(sql.toString(), params, rs -> {
+            byOffset.put(rs.getInt("kafka_partition") + ":" + rs.getLong("kafka_offset"),
+                    rs.getObject("id", UUID.class));
+        });
+
+        List<UUID> ids = new ArrayList<>(rows.size());
+        for (RawRow r : rows) {
+            UUID id = byOffset.get(r.partition() + ":" + r.offset());
+            if (id == null) {
+                throw new IllegalStateException("Missing raw id for p=" + r.partition() + " off=" + r.offset());
+            }
+            ids.add(id);
+        }
+        return ids;
     }
 
     /* ---------- DECODED ---------- */
 
-    public void insertDecoded(UUID id,
-                              String deviceId,
-                              Instant eventTs,
-                              String metaJson,
-                              String payloadJson,
-                              boolean integrityOk,
-                              boolean authOk) {
-        String sql = """
-                INSERT INTO messages_decoded
-                    (id, device_id, event_ts, processed_at, meta, payload, integrity_ok, auth_ok)
-                VALUES
-                    (:id, :deviceId, :eventTs, now(), :meta, :payload, :integrityOk, :authOk)
-                ON CONFLICT (id) DO NOTHING
-                """;
+    // di meta solo trace_id (resta oltre la retention del raw): il resto sta in messages_raw, vedi messages_decoded_compat
+    private static final String DECODED_COLUMNS = "id, device_id, event_ts, trace_id, processed_at, payload, integrity_ok, auth_ok";
+
+    // DO NOTHING: una riconsegna non inserisce nulla e non deve finire di nuovo nei rollup
+    private static final String ON_CONFLICT_DECODED = "ON CONFLICT (id, event_ts) DO NOTHING\n";
+
+    private static String decodedValues(String suffix) {
+        return "(:id" + suffix + ", :deviceId" + suffix + ", :eventTs" + suffix + ", :traceId" + suffix + ", now()"
+                + ", CAST(:payload" + suffix + " AS jsonb), :integrityOk" + suffix + ", :authOk" + suffix + ")";
+    }
+
+    /** @return false se la riga c'era già (riconsegna) */
+    public boolean insertDecoded(DecodedRow row) {
+        final String sql = "INSERT INTO messages_decoded(" + DECODED_COLUMNS + ")\nVALUES " + decodedValues("") + "\n"
+                + ON_CONFLICT_DECODED;
+        return jdbc.update(sql, decodedParams(row)) > 0;
+    }
+
+    /** Parametri dell'INSERT di una riga decodificata (pubblico per il benchmark di conversione). */
+    public static MapSqlParameterSource decodedParams(DecodedRow row) {
+        var params = new MapSqlParameterSource();
+        addDecoded(params, "", row);
+        return params;
+    }
 
-        MapSqlParameterSource ps = new MapSqlParameterSource()
-                .addValue("id", id)
-                .addValue("deviceId", deviceId)
-                .addValue("eventTs", Timestamp.from(eventTs))
-                .addValue("meta", jsonbOrNull(metaJson))
-                .addValue("payload", jsonbOrNull(payloadJson))
-                .addValue("integrityOk", integrityOk)
-                .addValue("authOk", authOk);
+    /**
+     * Inserimento multi-riga dei decodificati (un round-trip per chunk).
+     * @return chiavi delle righe davvero inserite (RETURNING non riporta quelle già presenti):
+     *         le sole da aggiungere ai rollup
+     */
+    public Set<DecodedKey> insertDecodedBatch(List<DecodedRow> rows) {
+        Set<DecodedKey> inserted = new HashSet<>(rows.size() * 2);
+        for (int from = 0; from < rows.size(); from += MAX_ROWS_PER_STATEMENT) {
+            List<DecodedRow> chunk = rows.subList(from, Math.min(rows.size(), from + MAX_ROWS_PER_STATEMENT));
+            StringBuilder sql = new StringBuilder("INSERT INTO messages_decoded(").append(DECODED_COLUMNS).append(")\nVALUES\n");
+            var params = new MapSqlParameterSource();
+            for (int i = 0; i < chunk.size(); i++) {
+                if (i > 0) sql.append(",\n");
+                sql.append(decodedValues(Integer.toString(i)));
+                addDecoded(params, Integer.toString(i), chunk.get(i));
+            }
+            sql.append('\n').append(ON_CONFLICT_DECODED).append("RETURNING id, event_ts");
+            jdbc.query(sql.toString(), params, rs -> {
+                inserted.add(DecodedKey.of(rs.getObject("id", UUID.class), rs.getTimestamp("event_ts").toInstant()));
+            });
+        }
+        return inserted;
+    }
 
-        jdbc.update(sql, ps);
+    private static void addDecoded(MapSqlParameterSource params, String suffix, DecodedRow r) {
+        params.addValue("id" + suffix, r.id())
+                .addValue("deviceId" + suffix, r.deviceId())
+                .addValue("eventTs" + suffix, Timestamp.from(r.eventTs()))
+                .addValue("traceId" + suffix, r.traceId(), Types.VARCHAR)
+                .addValue("payload" + suffix, r.payloadJson() != null ? r.payloadJson() : "{}")
+                .addValue("integrityOk" + suffix, r.integrityOk())
+                .addValue("authOk" + suffix, r.authOk());
     }
 
     /* ---------- ERRORS ---------- */
 
+    // Una riga per messaggio: ogni tentativo successivo aggiorna attempts, errore e destinazione.
+    // Un tentativo più vecchio arrivato dopo (es. drenaggio dello spool dopo il retry) non la riporta indietro.
     public void insertError(UUID rawId,
                             String stage,
                             String code,
@@ -101,6 +213,14 @@ public class MessageRepository {
         final String sql = """
                 INSERT INTO processing_errors(raw_id, stage, error_code, error_msg, dlq_topic, attempts)
                 VALUES (:rawId, :stage, :code, :msg, :dlq, :attempts)
+                ON CONFLICT (raw_id) DO UPDATE
+                SET stage = EXCLUDED.stage,
+                    error_code = EXCLUDED.error_code,
+                    error_msg = EXCLUDED.error_msg,
+                    dlq_topic = EXCLUDED.dlq_topic,
+                    attempts = EXCLUDED.attempts,
+                    error_at = now()
+                WHERE processing_errors.attempts <= EXCLUDED.attempts
                 """;
 
         var params = new MapSqlParameterSource()
@@ -113,4 +233,46 @@ public class MessageRepository {
 
         jdbc.update(sql, params);
     }
+
+    /* ---------- ROWS ---------- */
+
+    /**
+     * Riga di messages_raw. {@code alg} comprende il suffisso del codec (serve per ridecifrare);
+     * {@code keyId} e {@code traceId} possono essere null.
+     */
+    public record RawRow(String topic,
+                         int partition,
+                         long offset,
+                         Instant receivedAt,
+                         String deviceId,
+                         Instant eventTs,
+                         String traceId,
+                         String nonce,
+                         String alg,
+                         String keyId,
+                         String metaJson,
+                         byte[] iv,
+                         byte[] sig,
+                         byte[] ciphertext,
+                         String headersJson) {}
+
+    /** Riga di messages_decoded; {@code traceId} può essere null. */
+    public record DecodedRow(UUID id,
+                             String deviceId,
+                             Instant eventTs,
+                             String traceId,
+                             String payloadJson,
+                             boolean integrityOk,
+                             boolean authOk) {
+        public DecodedKey key() {
+            return DecodedKey.of(id, eventTs);
+        }
+    }
+
+    /** Chiave di messages_decoded; event_ts al microsecondo, come lo restituisce Postgres. */
+    public record DecodedKey(UUID id, Instant eventTs) {
+        public static DecodedKey of(UUID id, Instant eventTs) {
+            return new DecodedKey(id, eventTs.truncatedTo(ChronoUnit.MICROS));
+        }
+    }
 }
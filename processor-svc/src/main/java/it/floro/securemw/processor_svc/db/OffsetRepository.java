@@ -0,0 +1,61 @@
+package it.floro.securemw.processor_svc.db;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Offset Kafka salvati su DB (consumer_offsets), nella stessa transazione dei messaggi:
+ * in modalità transazionale sono loro, e non i commit del gruppo, a dire da dove ripartire.
+ */
+@Repository
+@RequiredArgsConstructor
+public class OffsetRepository {
+    private final NamedParameterJdbcTemplate jdbc;
+
+    // partizione -> prossimo offset da leggere, solo per le partizioni già salvate
+    public Map<Integer, Long> find(String groupId, String topic, Collection<Integer> partitions) {
+        if (partitions.isEmpty()) return Map.of();
+        final String sql = """
+                SELECT kafka_partition, next_offset
+                FROM consumer_offsets
+                WHERE group_id = :groupId AND topic = :topic AND kafka_partition IN (:partitions)
+                """;
+
+        var params = new MapSqlParameterSource()
+                .addValue("groupId", groupId)
+                .addValue("topic", topic)
+                .addValue("partitions", partitions);
+        Map<Integer, Long> out = new HashMap<>();
+        jdbc.query(sql, params, rs -> {
+            out.put(rs.getInt("kafka_partition"), rs.getLong("next_offset"));
+        });
+        return out;
+    }
+
+    // Non torna mai indietro: una batch in ripiego può salvare offset già superati.
+    public void save(String groupId, String topic, Map<Integer, Long> nextOffsets) {
+        if (nextOffsets.isEmpty()) return;
+        final String sql = """
+                INSERT INTO consumer_offsets(group_id, topic, kafka_partition, next_offset)
+                VALUES (:groupId, :topic, :partition, :next)
+                ON CONFLICT (group_id, topic, kafka_partition) DO UPDATE
+                SET next_offset = GREATEST(consumer_offsets.next_offset, EXCLUDED.next_offset),
+                    updated_at = now()
+                """;
+
+        MapSqlParameterSource[] batch = nextOffsets.entrySet().stream()
+                .map(e -> new MapSqlParameterSource()
+                        .addValue("groupId", groupId)
+                        .addValue("topic", topic)
+                        .addValue("partition", e.getKey())
+                        .addValue("next", e.getValue()))
+                .toArray(MapSqlParameterSource[]::new);
+        jdbc.batchUpdate(sql, batch);
+    }
+}
@@ -0,0 +1,209 @@
+package it.floro.securemw.processor_svc.db;
+
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * DDL delle partizioni giornaliere (UTC) di messages_raw / messages_decoded.
+ * I nomi sono generati qui ({@code <tabella>_pYYYYMMDD}): nessun identificatore arriva dall'esterno.
+ */
+@Repository
+public class PartitionRepository {
+    private static final DateTimeFormatter SUFFIX = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    private final NamedParameterJdbcTemplate jdbc;
+    private final TransactionTemplate tx;
+
+    public PartitionRepository(NamedParameterJdbcTemplate jdbc, PlatformTransactionManager txManager) {
+        this.jdbc = jdbc;
+        this.tx = new TransactionTemplate(txManager);
+    }
+
+    public enum Table {
+        RAW("messages_raw", "received_at"),
+        DECODED("messages_decoded", "event_ts");
+
+        private final String name;
+        private final String partitionKey;
+
+        Table(String name, String partitionKey) {
+            this.name = name;
+            this.partitionKey = partitionKey;
+        }
+
+        public String tableName() {
+            return name;
+        }
+
+        String partitionName(LocalDate day) {
+            return name + "_p" + SUFFIX.format(day);
+        }
+
+        String defaultPartition() {
+            return name + "_default";
+        }
+    }
+
+    /**
+     * Crea la partizione del giorno, se manca. Se nella DEFAULT ci sono già righe di quel giorno
+     * (CREATE ... PARTITION OF fallirebbe) le sposta nella nuova partizione, in un'unica transazione:
+     * tabella staccata, DELETE ... RETURNING dalla DEFAULT, ATTACH PARTITION. Le scritture nella DEFAULT
+     * restano bloccate fino al commit; quelle verso le altre partizioni proseguono.
+     * @return righe spostate dalla DEFAULT
+     */
+    public int createDaily(Table table, LocalDate day) {
+        String p = table.partitionName(day);
+        String bounds = " FOR VALUES FROM ('" + start(day) + "') TO ('" + start(day.plusDays(1)) + "')";
+        var ops = jdbc.getJdbcOperations();
+        if (!defaultHasRows(table, day)) {
+            ops.execute("CREATE TABLE IF NOT EXISTS " + p + " PARTITION OF " + table.tableName() + bounds);
+            return 0;
+        }
+        Integer moved = tx.execute(status -> {
+            String def = table.defaultPartition();
+            ops.execute("LOCK TABLE " + def + " IN EXCLUSIVE MODE");
+            ops.execute("CREATE TABLE " + p + " (LIKE " + table.tableName() + " INCLUDING DEFAULTS INCLUDING CONSTRAINTS)");
+            int n = ops.update("WITH moved AS (DELETE FROM " + def + " WHERE " + range(table, day) + " RETURNING *)"
+                    + " INSERT INTO " + p + " SELECT * FROM moved");
+            ops.execute("ALTER TABLE " + table.tableName() + " ATTACH PARTITION " + p + bounds);
+            return n;
+        });
+        return moved != null ? moved : 0;
+    }
+
+    /**
+     * Giorni (UTC) tra {@code from} e {@code to} inclusi con righe nella DEFAULT, i più vecchi per primi:
+     * partizioni da creare per svuotarla. received_at è il CreateTime del producer: fuori dall'intervallo
+     * non si crea nulla, altrimenti un client con l'orologio sbagliato farebbe nascere partizioni a caso.
+     */
+    public List<LocalDate> defaultDays(Table table, LocalDate from, LocalDate to, int limit) {
+        final String sql = "SELECT DISTINCT CAST(" + table.partitionKey + " AT TIME ZONE 'UTC' AS date) AS day"
+                + " FROM " + table.defaultPartition()
+                + " WHERE " + table.partitionKey + " >= :from AND " + table.partitionKey + " < :to"
+                + " ORDER BY day LIMIT :limit";
+        Map<String, Object> params = Map.of(
+                "from", Timestamp.from(start(from).toInstant()),
+                "to", Timestamp.from(start(to.plusDays(1)).toInstant()),
+                "limit", limit);
+        return jdbc.query(sql, params, (rs, i) -> rs.getObject("day", LocalDate.class));
+    }
+
+    /**
+     * Retention delle righe nella DEFAULT con giorno prima di {@code before}: niente partizione da creare
+     * e poi eliminare, DELETE diretto (o spostamento in {@code <schema>.<tabella>_default} con l'archiviazione).
+     * @return righe eliminate o archiviate
+     */
+    public int expireDefault(Table table, LocalDate before, String archiveSchema) {
+        String def = table.defaultPartition();
+        String where = " WHERE " + table.partitionKey + " < '" + start(before) + "'";
+        var ops = jdbc.getJdbcOperations();
+        if (archiveSchema.isBlank()) {
+            return ops.update("DELETE FROM " + def + where);
+        }
+        String target = quote(archiveSchema) + "." + def;
+        Integer moved = tx.execute(status -> {
+            ops.execute("CREATE SCHEMA IF NOT EXISTS " + quote(archiveSchema));
+            ops.execute("CREATE TABLE IF NOT EXISTS " + target + " (LIKE " + table.tableName() + " INCLUDING DEFAULTS)");
+            return ops.update("WITH moved AS (DELETE FROM " + def + where + " RETURNING *)"
+                    + " INSERT INTO " + target + " SELECT * FROM moved");
+        });
+        return moved != null ? moved : 0;
+    }
+
+    // Righe nella DEFAULT con giorno dopo {@code day}: ts nel futuro, restano lì finché il giorno non entra nel premake.
+    public long countDefaultAfter(Table table, LocalDate day) {
+        final String sql = "SELECT count(*) FROM " + table.defaultPartition() + " WHERE " + table.partitionKey + " >= :from";
+        Long n = jdbc.queryForObject(sql, Map.of("from", Timestamp.from(start(day.plusDays(1)).toInstant())), Long.class);
+        return n != null ? n : 0;
+    }
+
+    // Righe finite nella DEFAULT: la retention non le tocca, devono tornare a zero dopo la manutenzione.
+    public long countDefault(Table table) {
+        Long n = jdbc.getJdbcOperations().queryForObject("SELECT count(*) FROM " + table.defaultPartition(), Long.class);
+        return n != null ? n : 0;
+    }
+
+    private boolean defaultHasRows(Table table, LocalDate day) {
+        Boolean exists = jdbc.getJdbcOperations().queryForObject(
+                "SELECT EXISTS (SELECT 1 FROM " + table.defaultPartition() + " WHERE " + range(table, day) + ")",
+                Boolean.class);
+        return Boolean.TRUE.equals(exists);
+    }
+
+    private static String range(Table table, LocalDate day) {
+        return table.partitionKey + " >= '" + start(day) + "' AND " + table.partitionKey + " < '" + start(day.plusDays(1)) + "'";
+    }
+
+    private static OffsetDateTime start(LocalDate day) {
+        return day.atStartOfDay(ZoneOffset.UTC).toOffsetDateTime();
+    }
+
+    /** Partizioni giornaliere esistenti, per giorno (la DEFAULT e nomi non nostri sono esclusi). */
+    public Map<LocalDate, String> listDaily(Table table) {
+        final String sql = """
+                SELECT c.relname
+                FROM pg_inherits i
+                JOIN pg_class c ON c.oid = i.inhrelid
+                WHERE i.inhparent = CAST(:parent AS regclass)
+                """;
+
+        String prefix = table.tableName() + "_p";
+        Map<LocalDate, String> out = new TreeMap<>();
+        jdbc.query(sql, Map.of("parent", table.tableName()), rs -> {
+            String name = rs.getString(1);
+            if (!name.startsWith(prefix)) return;
+            try {
+                out.put(LocalDate.parse(name.substring(prefix.length()), SUFFIX), name);
+            } catch (DateTimeParseException ignore) {
+                // non è una partizione giornaliera
+            }
+        });
+        return out;
+    }
+
+    // DROP di una partizione intera: niente DELETE riga per riga, niente bloat su indici e heap.
+    public void drop(Table table, String partition) {
+        jdbc.getJdbcOperations().execute("DROP TABLE IF EXISTS " + checked(table, partition));
+    }
+
+    /**
+     * Archiviazione: la partizione viene staccata e spostata in {@code schema}, dove resta
+     * consultabile (o esportabile con pg_dump) finché qualcuno non la elimina.
+     */
+    public void archive(Table table, String partition, String schema) {
+        String p = checked(table, partition);
+        var ops = jdbc.getJdbcOperations();
+        ops.execute("CREATE SCHEMA IF NOT EXISTS " + quote(schema));
+        ops.execute("ALTER TABLE " + table.tableName() + " DETACH PARTITION " + p);
+        ops.execute("ALTER TABLE " + p + " SET SCHEMA " + quote(schema));
+    }
+
+    // processing_errors non è partizionata (volumi bassi): DELETE per data basta.
+    public int deleteErrorsBefore(LocalDate day) {
+        final String sql = "DELETE FROM processing_errors WHERE error_at < :before";
+        return jdbc.update(sql, Map.of("before", Timestamp.from(day.atStartOfDay(ZoneOffset.UTC).toInstant())));
+    }
+
+    private static String checked(Table table, String partition) {
+        if (!partition.matches(table.tableName() + "_p\\d{8}")) {
+            throw new IllegalArgumentException("Not a daily partition of " + table.tableName() + ": " + partition);
+        }
+        return partition;
+    }
+
+    private static String quote(String ident) {
+        return '"' + ident.replace("\"", "\"\"") + '"';
+    }
+}
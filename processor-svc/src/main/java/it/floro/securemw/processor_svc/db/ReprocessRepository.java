@@ -0,0 +1,310 @@
+package it.floro.securemw.processor_svc.db;
+
+import it.floro.securemw.processor_svc.db.MessageRepository.DecodedKey;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Consumer;
+
+/**
+ * Accesso al DB dei job di rielaborazione (reprocess_jobs) e letture/scritture del job stesso.
+ *
+ * Non è un bean: lo crea ReprocessService sul proprio pool di connessioni, separato da quello
+ * del consumer live (stesso motivo per cui le query non passano da MessageRepository).
+ */
+public class ReprocessRepository {
+
+    // 6 parametri per riga nell'upsert multi-riga: ben sotto i 32767 bind di Postgres
+    public static final int MAX_ROWS_PER_STATEMENT = 5000;
+
+    private static final RowMapper<RawMessage> RAW = (rs, i) -> new RawMessage(
+            rs.getObject("id", UUID.class),
+            rs.getTimestamp("received_at").toInstant(),
+            rs.getString("device_id"),
+            rs.getTimestamp("event_ts").toInstant(),
+            rs.getString("trace_id"),
+            rs.getString("nonce"),
+            rs.getString("alg"),
+            rs.getString("key_id"),
+            rs.getBytes("iv"),
+            rs.getBytes("sig"),
+            rs.getBytes("ciphertext"));
+
+    private static final RowMapper<Job> JOB = (rs, i) -> {
+        Timestamp cursorTs = rs.getTimestamp("cursor_received_at");
+        UUID cursorId = rs.getObject("cursor_id", UUID.class);
+        return new Job(
+                rs.getObject("id", UUID.class),
+                new Filter(rs.getTimestamp("from_ts").toInstant(),
+                        rs.getTimestamp("to_ts").toInstant(),
+                        rs.getString("device_id"),
+                        rs.getString("error_stage")),
+                rs.getString("status"),
+                cursorTs != null ? new Position(cursorTs.toInstant(), cursorId) : null,
+                rs.getLong("replayed"),
+                rs.getLong("failed"),
+                rs.getString("last_error"),
+                rs.getTimestamp("created_at").toInstant(),
+                rs.getTimestamp("updated_at").toInstant());
+    };
+
+    private final NamedParameterJdbcTemplate jdbc;
+    private final NamedParameterJdbcTemplate streaming;
+    private final TransactionTemplate tx;
+    private final TransactionTemplate readOnlyTx;
+
+    public ReprocessRepository(DataSource dataSource, int fetchSize) {
+        this.jdbc = new NamedParameterJdbcTemplate(dataSource);
+        // cursore lato server: fetchSize > 0 dentro una transazione (autocommit off)
+        JdbcTemplate cursor = new JdbcTemplate(dataSource);
+        cursor.setFetchSize(fetchSize);
+        this.streaming = new NamedParameterJdbcTemplate(cursor);
+        var txManager = new DataSourceTransactionManager(dataSource);
+        this.tx = new TransactionTemplate(txManager);
+        this.readOnlyTx = new TransactionTemplate(txManager);
+        this.readOnlyTx.setReadOnly(true);
+    }
+
+    /* ---------- LETTURA messages_raw ---------- */
+
+    /**
+     * Fino a {@code limit} messaggi dopo {@code after} in ordine (received_at, id), letti a blocchi
+     * dal cursore. Una transazione per pagina: niente transazione aperta per ore (vacuum bloccato).
+     * @return righe lette (meno di {@code limit} = fine dell'intervallo)
+     */
+    public int streamPage(Filter f, Position after, int limit, Consumer<RawMessage> sink) {
+        String sql = """
+                SELECT r.id, r.received_at, r.device_id, r.event_ts, r.trace_id, r.nonce, r.alg, r.key_id,
+                       r.iv, r.sig, r.ciphertext
+                FROM messages_raw r
+                WHERE r.received_at >= :from AND r.received_at < :to
+                """
+                + (f.deviceId() != null ? "  AND r.device_id = :deviceId\n" : "")
+                + (f.errorStage() != null
+                    ? "  AND EXISTS (SELECT 1 FROM processing_errors e WHERE e.raw_id = r.id AND e.stage = :stage)\n"
+                    : "")
+                + (after != null ? "  AND (r.received_at, r.id) > (:afterTs, :afterId)\n" : "")
+                + """
+                ORDER BY r.received_at, r.id
+                LIMIT :limit
+                """;
+
+        var params = new MapSqlParameterSource()
+                .addValue("from", Timestamp.from(f.from()))
+                .addValue("to", Timestamp.from(f.to()))
+                .addValue("deviceId", f.deviceId())
+                .addValue("stage", f.errorStage())
+                .addValue("limit", limit);
+        if (after != null) {
+            params.addValue("afterTs", Timestamp.from(after.receivedAt()))
+                    .addValue("afterId", after.id());
+        }
+        int[] n = new int[1];
+        readOnlyTx.executeWithoutResult(status ->
+                streaming.query(sql, params, rs -> {
+                    sink.accept(RAW.mapRow(rs, n[0]++));
+                }));
+        return n[0];
+    }
+
+    /* ---------- SCRITTURA ---------- */
+
+    public void inTransaction(Runnable work) {
+        tx.executeWithoutResult(status -> work.run());
+    }
+
+    /**
+     * Upsert dei decodificati: le righe già presenti vengono riscritte con il nuovo payload.
+     * @return chiavi delle righe prima assenti ({@code xmax = 0}), le sole da aggiungere ai rollup
+     */
+    public Set<DecodedKey> upsertDecoded(List<MessageRepository.DecodedRow> rows) {
+        Set<DecodedKey> inserted = new HashSet<>();
+        if (rows.isEmpty()) return inserted;
+        if (rows.size() > MAX_ROWS_PER_STATEMENT) {
+            throw new IllegalArgumentException("too many rows for one statement: " + rows.size());
+        }
+        StringBuilder sql = new StringBuilder("""
+                INSERT INTO messages_decoded
+                    (id, device_id, event_ts, trace_id, processed_at, payload, integrity_ok, auth_ok)
+                VALUES
+                """);
+        var params = new MapSqlParameterSource();
+        for (int i = 0; i < rows.size(); i++) {
+            MessageRepository.DecodedRow r = rows.get(i);
+            if (i > 0) sql.append(",\n");
+            sql.append("(:id").append(i).append(", :deviceId").append(i).append(", :eventTs").append(i)
+                    .append(", :traceId").append(i).append(", now(), CAST(:payload").append(i).append(" AS jsonb), :integrityOk").append(i)
+                    .append(", :authOk").append(i).append(')');
+            params.addValue("id" + i, r.id())
+                    .addValue("deviceId" + i, r.deviceId())
+                    .addValue("eventTs" + i, Timestamp.from(r.eventTs()))
+                    .addValue("traceId" + i, r.traceId(), Types.VARCHAR)
+                    .addValue("payload" + i, r.payloadJson())
+                    .addValue("integrityOk" + i, r.integrityOk())
+                    .addValue("authOk" + i, r.authOk());
+        }
+        sql.append("""
+
+                ON CONFLICT (id, event_ts) DO UPDATE
+                SET payload = EXCLUDED.payload,
+                    integrity_ok = EXCLUDED.integrity_ok,
+                    auth_ok = EXCLUDED.auth_ok,
+                    processed_at = EXCLUDED.processed_at
+                RETURNING id, event_ts, (xmax = 0) AS inserted
+                """);
+        jdbc.query(sql.toString(), params, rs -> {
+            if (rs.getBoolean("inserted")) {
+                inserted.add(DecodedKey.of(rs.getObject("id", UUID.class), rs.getTimestamp("event_ts").toInstant()));
+            }
+        });
+        return inserted;
+    }
+
+    // Messaggi ora decodificati: gli errori registrati dal consumer non sono più attuali.
+    public void resolveErrors(List<UUID> rawIds) {
+        if (rawIds.isEmpty()) return;
+        jdbc.update("DELETE FROM processing_errors WHERE raw_id IN (:ids)",
+                new MapSqlParameterSource("ids", rawIds));
+    }
+
+    // Fallito anche in rielaborazione: stage e destinazione originali restano, aggiorna errore e tentativi.
+    public void recordFailures(List<Failure> failures) {
+        if (failures.isEmpty()) return;
+        final String sql = """
+                INSERT INTO processing_errors(raw_id, stage, error_code, error_msg, attempts)
+                VALUES (:rawId, :stage, 'REPROCESS_ERROR', :msg, 1)
+                ON CONFLICT (raw_id) DO UPDATE
+                SET error_code = EXCLUDED.error_code,
+                    error_msg = EXCLUDED.error_msg,
+                    attempts = processing_errors.attempts + 1,
+                    error_at = now()
+                """;
+
+        MapSqlParameterSource[] batch = failures.stream()
+                .map(f -> new MapSqlParameterSource()
+                        .addValue("rawId", f.rawId())
+                        .addValue("stage", f.stage())
+                        .addValue("msg", f.message()))
+                .toArray(MapSqlParameterSource[]::new);
+        jdbc.batchUpdate(sql, batch);
+    }
+
+    /* ---------- JOB ---------- */
+
+    public UUID createJob(Filter f) {
+        final String sql = """
+                INSERT INTO reprocess_jobs(from_ts, to_ts, device_id, error_stage, status)
+                VALUES (:from, :to, :deviceId, :stage, 'RUNNING')
+                RETURNING id
+                """;
+
+        var params = new MapSqlParameterSource()
+                .addValue("from", Timestamp.from(f.from()))
+                .addValue("to", Timestamp.from(f.to()))
+                .addValue("deviceId", f.deviceId(), Types.VARCHAR)
+                .addValue("stage", f.errorStage(), Types.VARCHAR);
+        return jdbc.queryForObject(sql, params, UUID.class);
+    }
+
+    public Optional<Job> findJob(UUID id) {
+        return jdbc.query("SELECT * FROM reprocess_jobs WHERE id = :id",
+                new MapSqlParameterSource("id", id), JOB).stream().findFirst();
+    }
+
+    public List<Job> findByStatus(String status) {
+        return jdbc.query("SELECT * FROM reprocess_jobs WHERE status = :status ORDER BY created_at",
+                new MapSqlParameterSource("status", status), JOB);
+    }
+
+    public List<Job> findRecent(int limit) {
+        return jdbc.query("SELECT * FROM reprocess_jobs ORDER BY created_at DESC LIMIT :limit",
+                new MapSqlParameterSource("limit", limit), JOB);
+    }
+
+    // Avanza il checkpoint e somma i contatori dei blocchi completati da quello precedente.
+    public void checkpoint(UUID id, Position pos, long replayed, long failed) {
+        final String sql = """
+                UPDATE reprocess_jobs
+                SET cursor_received_at = :ts, cursor_id = :cursorId,
+                    replayed = replayed + :replayed, failed = failed + :failed,
+                    updated_at = now()
+                WHERE id = :id
+                """;
+
+        jdbc.update(sql, new MapSqlParameterSource()
+                .addValue("id", id)
+                .addValue("ts", Timestamp.from(pos.receivedAt()))
+                .addValue("cursorId", pos.id())
+                .addValue("replayed", replayed)
+                .addValue("failed", failed));
+    }
+
+    /**
+     * Cambio di stato condizionato a quello atteso (es. cancel solo se RUNNING).
+     * @return false se il job non era in {@code expected}
+     */
+    public boolean updateStatus(UUID id, String expected, String status, String lastError) {
+        final String sql = """
+                UPDATE reprocess_jobs
+                SET status = :status, last_error = :lastError, updated_at = now()
+                WHERE id = :id AND status = :expected
+                """;
+
+        return jdbc.update(sql, new MapSqlParameterSource()
+                .addValue("id", id)
+                .addValue("expected", expected)
+                .addValue("status", status)
+                .addValue("lastError", lastError, Types.VARCHAR)) == 1;
+    }
+
+    /* ---------- ROWS ---------- */
+
+    /** Filtri del job: intervallo su received_at (chiave di partizione) obbligatorio. */
+    public record Filter(Instant from, Instant to, String deviceId, String errorStage) {}
+
+    /** Posizione nel keyset (received_at, id) di messages_raw. */
+    public record Position(Instant receivedAt, UUID id) {}
+
+    /** Colonne di messages_raw necessarie a verify + decrypt. */
+    public record RawMessage(UUID id,
+                             Instant receivedAt,
+                             String deviceId,
+                             Instant eventTs,
+                             String traceId,
+                             String nonce,
+                             String alg,
+                             String keyId,
+                             byte[] iv,
+                             byte[] sig,
+                             byte[] ciphertext) {
+
+        public Position position() {
+            return new Position(receivedAt, id);
+        }
+    }
+
+    public record Failure(UUID rawId, String stage, String message) {}
+
+    public record Job(UUID id,
+                      Filter filter,
+                      String status,
+                      Position cursor,
+                      long replayed,
+                      long failed,
+                      String lastError,
+                      Instant createdAt,
+                      Instant updatedAt) {}
+}
@@ -0,0 +1,67 @@
+package it.floro.securemw.processor_svc.db;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+
+@Repository
+@RequiredArgsConstructor
+public class RollupRepository {
+    private final NamedParameterJdbcTemplate jdbc;
+
+    /**
+     * Upsert in batch dei delta di aggregazione. Il merge è commutativo (somme, min/max,
+     * last per event_ts): un evento in ritardo si fonde correttamente in un bucket già scritto.
+     */
+    public void upsert(List<RollupRow> rows) {
+        if (rows.isEmpty()) return;
+        final String sql = """
+                INSERT INTO telemetry_rollups AS r
+                    (device_id, metric, granularity, bucket_start, cnt, min_value, max_value, sum_value, last_value, last_ts)
+                VALUES
+                    (:deviceId, :metric, :granularity, :bucketStart, :cnt, :min, :max, :sum, :last, :lastTs)
+                ON CONFLICT (device_id, metric, granularity, bucket_start) DO UPDATE
+                SET cnt        = r.cnt + EXCLUDED.cnt,
+                    min_value  = LEAST(r.min_value, EXCLUDED.min_value),
+                    max_value  = GREATEST(r.max_value, EXCLUDED.max_value),
+                    sum_value  = r.sum_value + EXCLUDED.sum_value,
+                    last_value = CASE WHEN EXCLUDED.last_ts >= r.last_ts THEN EXCLUDED.last_value ELSE r.last_value END,
+                    last_ts    = GREATEST(r.last_ts, EXCLUDED.last_ts),
+                    updated_at = now()
+                """;
+
+        MapSqlParameterSource[] batch = new MapSqlParameterSource[rows.size()];
+        for (int i = 0; i < rows.size(); i++) {
+            RollupRow r = rows.get(i);
+            batch[i] = new MapSqlParameterSource()
+                    .addValue("deviceId", r.deviceId())
+                    .addValue("metric", r.metric())
+                    .addValue("granularity", r.granularity())
+                    .addValue("bucketStart", Timestamp.from(r.bucketStart()))
+                    .addValue("cnt", r.count())
+                    .addValue("min", r.min())
+                    .addValue("max", r.max())
+                    .addValue("sum", r.sum())
+                    .addValue("last", r.last())
+                    .addValue("lastTs", Timestamp.from(r.lastTs()));
+        }
+        jdbc.batchUpdate(sql, batch);
+    }
+
+    /** Riga di telemetry_rollups (per l'upsert è un delta, in lettura il valore accumulato). */
+    public record RollupRow(String deviceId,
+                            String metric,
+                            String granularity,
+                            Instant bucketStart,
+                            long count,
+                            double min,
+                            double max,
+                            double sum,
+                            double last,
+                            Instant lastTs) {}
+}
@@ -0,0 +1,196 @@
+package it.floro.securemw.processor_svc.db;
+
+import com.fasterxml.jackson.annotation.JsonRawValue;
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.annotation.PreDestroy;
+import org.postgresql.PGConnection;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.namedparam.MapSqlParameterSource;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Letture su messages_decoded per l'API di query. Tutte le query sono limitate su event_ts
+ * (chiave di partizione): il planner legge solo le partizioni dell'intervallo.
+ *
+ * Stream ed export tengono una connessione per tutta la durata del download, al ritmo del client:
+ * usano un pool separato di {@code app.api.export-max-concurrent} connessioni (aperte solo mentre servono),
+ * così un client lento non sottrae connessioni all'ingestione. Oltre il limite {@link #tryStartExport()}
+ * rifiuta subito invece di mettere la richiesta in coda sul pool.
+ */
+@Repository
+public class TelemetryQueryRepository {
+
+    private static final RowMapper<Reading> READING = (rs, i) -> new Reading(
+            rs.getObject("id", UUID.class),
+            rs.getString("device_id"),
+            rs.getTimestamp("event_ts").toInstant(),
+            rs.getString("payload"));
+
+    private final NamedParameterJdbcTemplate jdbc;
+    private final NamedParameterJdbcTemplate streaming;
+    private final TransactionTemplate readOnlyTx;
+    private final HikariDataSource exportPool;
+    private final Semaphore exportSlots;
+
+    public TelemetryQueryRepository(NamedParameterJdbcTemplate jdbc,
+                                    DataSourceProperties dataSourceProperties,
+                                    @Value("${app.api.stream-fetch-size:1000}") int fetchSize,
+                                    @Value("${app.api.export-max-concurrent:4}") int maxExports) {
+        if (maxExports < 1) {
+            throw new IllegalArgumentException("app.api.export-max-concurrent must be >= 1");
+        }
+        this.jdbc = jdbc;
+        this.exportPool = dataSourceProperties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        this.exportPool.setPoolName("export");
+        this.exportPool.setMaximumPoolSize(maxExports);
+        this.exportPool.setMinimumIdle(0);
+        this.exportSlots = new Semaphore(maxExports);
+        // il driver Postgres usa un cursore (fetch a blocchi) solo con fetchSize > 0 e autocommit off
+        JdbcTemplate cursor = new JdbcTemplate(exportPool);
+        cursor.setFetchSize(fetchSize);
+        this.streaming = new NamedParameterJdbcTemplate(cursor);
+        this.readOnlyTx = new TransactionTemplate(new DataSourceTransactionManager(exportPool));
+        this.readOnlyTx.setReadOnly(true);
+    }
+
+    /** Riserva uno slot per {@link #stream}/{@link #copyCsv}; false se sono già tutti in uso. */
+    public boolean tryStartExport() {
+        return exportSlots.tryAcquire();
+    }
+
+    public void endExport() {
+        exportSlots.release();
+    }
+
+    @PreDestroy
+    public void close() {
+        exportPool.close();
+    }
+
+    /**
+     * Pagina in keyset su (event_ts, id) dentro [from, to): usa idx_messages_decoded_device_ts
+     * e costa uguale a qualunque profondità, a differenza di OFFSET.
+     */
+    public List<Reading> findPage(String deviceId, Instant from, Instant to, Cursor after, int limit) {
+        String sql = """
+                SELECT id, device_id, event_ts, payload::text AS payload
+                FROM messages_decoded
+                WHERE device_id = :deviceId
+                  AND event_ts >= :from AND event_ts < :to
+                """
+                + (after != null ? "  AND (event_ts, id) > (:afterTs, :afterId)\n" : "")
+                + """
+                ORDER BY event_ts, id
+                LIMIT :limit
+                """;
+
+        var params = new MapSqlParameterSource()
+                .addValue("deviceId", deviceId)
+                .addValue("from", Timestamp.from(from))
+                .addValue("to", Timestamp.from(to))
+                .addValue("limit", limit);
+        if (after != null) {
+            params.addValue("afterTs", Timestamp.from(after.eventTs()))
+                    .addValue("afterId", after.id());
+        }
+        return jdbc.query(sql, params, READING);
+    }
+
+    // Aggregati pre-calcolati (telemetry_rollups): niente scansione del JSONB dei payload.
+    public List<RollupRepository.RollupRow> findRollups(String deviceId, String metric, String granularity,
+                                                        Instant from, Instant to) {
+        final String sql = """
+                SELECT device_id, metric, granularity, bucket_start, cnt,
+                       min_value, max_value, sum_value, last_value, last_ts
+                FROM telemetry_rollups
+                WHERE device_id = :deviceId
+                  AND granularity = :granularity
+                  AND (CAST(:metric AS TEXT) IS NULL OR metric = :metric)
+                  AND bucket_start >= :from AND bucket_start < :to
+                ORDER BY metric, bucket_start
+                """;
+
+        var params = new MapSqlParameterSource()
+                .addValue("deviceId", deviceId)
+                .addValue("metric", metric)
+                .addValue("granularity", granularity)
+                .addValue("from", Timestamp.from(from))
+                .addValue("to", Timestamp.from(to));
+        return jdbc.query(sql, params, (rs, i) -> new RollupRepository.RollupRow(
+                rs.getString("device_id"),
+                rs.getString("metric"),
+                rs.getString("granularity"),
+                rs.getTimestamp("bucket_start").toInstant(),
+                rs.getLong("cnt"),
+                rs.getDouble("min_value"),
+                rs.getDouble("max_value"),
+                rs.getDouble("sum_value"),
+                rs.getDouble("last_value"),
+                rs.getTimestamp("last_ts").toInstant()));
+    }
+
+    /** Tutte le letture dell'intervallo, una riga alla volta: memoria costante qualunque sia il volume. */
+    public void stream(String deviceId, Instant from, Instant to, Consumer<Reading> sink) {
+        final String sql = """
+                SELECT id, device_id, event_ts, payload::text AS payload
+                FROM messages_decoded
+                WHERE device_id = :deviceId
+                  AND event_ts >= :from AND event_ts < :to
+                ORDER BY event_ts, id
+                """;
+
+        var params = new MapSqlParameterSource()
+                .addValue("deviceId", deviceId)
+                .addValue("from", Timestamp.from(from))
+                .addValue("to", Timestamp.from(to));
+        readOnlyTx.executeWithoutResult(status ->
+                streaming.query(sql, params, rs -> {
+                    sink.accept(READING.mapRow(rs, 0));
+                }));
+    }
+
+    /**
+     * Export CSV con COPY ... TO STDOUT: Postgres produce il CSV e il driver lo copia a blocchi
+     * su {@code out}, senza passare da ResultSet né da oggetti Java.
+     * COPY non accetta parametri: i valori sono già validati (deviceId) o tipizzati (Instant).
+     */
+    public long copyCsv(String deviceId, Instant from, Instant to, OutputStream out) {
+        String sql = "COPY (SELECT id, device_id, event_ts, processed_at, payload"
+                + " FROM messages_decoded"
+                + " WHERE event_ts >= " + literal(from.toString()) + "::timestamptz"
+                + " AND event_ts < " + literal(to.toString()) + "::timestamptz"
+                + (deviceId != null ? " AND device_id = " + literal(deviceId) : "")
+                + " ORDER BY device_id, event_ts) TO STDOUT WITH (FORMAT csv, HEADER)";
+
+        try (Connection con = exportPool.getConnection()) {
+            return con.unwrap(PGConnection.class).getCopyAPI().copyOut(sql, out);
+        } catch (Exception e) {
+            throw new IllegalStateException("COPY export failed", e);
+        }
+    }
+
+    private static String literal(String value) {
+        return "'" + value.replace("'", "''") + "'";
+    }
+
+    /** Lettura decodificata; payload è il JSONB come testo, serializzato così com'è. */
+    public record Reading(UUID id, String deviceId, Instant eventTs, @JsonRawValue String payload) {}
+
+    /** Posizione dopo l'ultima riga restituita (keyset). */
+    public record Cursor(Instant eventTs, UUID id) {}
+}
@@ -0,0 +1,34 @@
+package it.floro.securemw.processor_svc.envelope;
+
+import it.floro.securemw.common.crypto.PayloadCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Envelope già parsato, indipendente dal formato di trasporto: campi piatti, nessun albero JSON.
+ * metaJson è il testo JSON originale del blocco meta, pronto per la colonna JSONB di messages_raw;
+ * i campi di security finiscono in colonne tipizzate (alg, key_id, iv/sig/ciphertext bytea).
+ * iv, sig e ciphertext sono slice da non modificare (per il binario puntano dentro il record Kafka).
+ * keyId null = chiave di default; gli altri campi testuali assenti valgono "".
+ * alg è senza il suffisso del codec, che sta in {@code codec} (compressione del payload prima della cifratura).
+ */
+public record Envelope(Format format,
+                       String keyId,
+                       String alg,
+                       PayloadCodec codec,
+                       String deviceId,
+                       String ts,
+                       String nonce,
+                       String traceId,
+                       String metaJson,
+                       ByteBuffer iv,
+                       ByteBuffer sig,
+                       ByteBuffer ciphertext) {
+
+    public enum Format { JSON, BINARY }
+
+    /** security.alg come dichiarato dal producer, suffisso del codec compreso. */
+    public String algWithCodec() {
+        return alg + codec.suffix();
+    }
+}
@@ -0,0 +1,275 @@
+package it.floro.securemw.processor_svc.envelope;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.floro.securemw.common.crypto.PayloadCodec;
+import it.floro.securemw.common.envelope.BinaryEnvelope;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Parse dell'envelope; il formato è scelto per messaggio dal primo byte
+ * ({@link BinaryEnvelope#MAGIC} = binario, altrimenti JSON+Base64).
+ *
+ * Lettura in streaming ({@link JsonParser}) in un solo passaggio: dei blocchi meta e security
+ * si estraggono i pochi campi usati dal consumer; di meta si conservano anche i byte originali.
+ */
+@Component
+public class EnvelopeParser {
+
+    private final JsonFactory json;
+
+    public EnvelopeParser(ObjectMapper mapper) {
+        this.json = mapper.getFactory();
+    }
+
+    public Envelope parse(byte[] value) throws IOException {
+        if (value == null || value.length == 0) {
+            throw new IllegalArgumentException("Empty envelope");
+        }
+        return BinaryEnvelope.isBinary(value) ? parseBinary(value) : parseJson(value);
+    }
+
+    /**
+     * Validazione del payload decifrato (un oggetto JSON ben formato) senza costruire l'albero:
+     * il testo viene passato così com'è alla persistenza.
+     */
+    public String payloadJson(byte[] buf, int off, int len) throws IOException {
+        return payloadJson(buf, off, len, null);
+    }
+
+    // Come sopra; nello stesso passaggio consegna a {@code numbers} i campi numerici di primo livello.
+    public String payloadJson(byte[] buf, int off, int len, ObjDoubleConsumer<String> numbers) throws IOException {
+        try (JsonParser p = json.createParser(buf, off, len)) {
+            if (p.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalArgumentException("Payload is not a JSON object");
+            }
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.currentName();
+                JsonToken t = p.nextToken();
+                if (numbers != null && t.isNumeric()) {
+                    numbers.accept(name, p.getDoubleValue());
+                } else {
+                    p.skipChildren();
+                }
+            }
+            if (p.nextToken() != null) {
+                throw new IllegalArgumentException("Trailing data after payload");
+            }
+        }
+        return new String(buf, off, len, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Letture del payload decifrato: un oggetto è una lettura singola con ts = meta.ts; un array è un
+     * micro-batch del producer, {@code [{"ts": ..., "payload": {...}}, ...]}, con il primo ts uguale a meta.ts
+     * e i successivi strettamente crescenti al microsecondo (precisione di event_ts, chiave di messages_decoded).
+     * {@code numbers} fornisce, una volta per lettura e in ordine, chi riceve i suoi campi numerici di primo livello.
+     */
+    public List<Reading> readings(byte[] buf, int off, int len, Instant metaTs,
+                                  Supplier<ObjDoubleConsumer<String>> numbers) throws IOException {
+        if (!isBatch(buf, off, len)) {
+            return List.of(new Reading(metaTs, payloadJson(buf, off, len, numbers.get())));
+        }
+        List<Reading> out = new ArrayList<>();
+        Instant prev = null;
+        try (JsonParser p = json.createParser(buf, off, len)) {
+            p.nextToken(); // START_ARRAY
+            JsonToken t;
+            while ((t = p.nextToken()) == JsonToken.START_OBJECT) {
+                Instant ts = null;
+                String payload = null;
+                while (p.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = p.currentName();
+                    JsonToken v = p.nextToken();
+                    if ("ts".equals(name) && v == JsonToken.VALUE_STRING) {
+                        ts = Instant.parse(p.getText()).truncatedTo(ChronoUnit.MICROS);
+                    } else if ("payload".equals(name) && payload == null) {
+                        payload = readPayload(p, v, buf, off, numbers.get());
+                    } else {
+                        p.skipChildren();
+                    }
+                }
+                if (ts == null || payload == null) {
+                    throw new IllegalArgumentException("Batch reading without ts/payload");
+                }
+                if (prev == null ? !ts.equals(metaTs.truncatedTo(ChronoUnit.MICROS)) : !ts.isAfter(prev)) {
+                    throw new IllegalArgumentException("Batch readings out of order at " + ts);
+                }
+                out.add(new Reading(ts, payload));
+                prev = ts;
+            }
+            if (t != JsonToken.END_ARRAY || out.isEmpty()) {
+                throw new IllegalArgumentException("Batch payload is not a non-empty array of readings");
+            }
+            if (p.nextToken() != null) {
+                throw new IllegalArgumentException("Trailing data after payload");
+            }
+        }
+        return out;
+    }
+
+    // Il payload di un micro-batch è un array JSON, quello di una lettura singola un oggetto.
+    private static boolean isBatch(byte[] buf, int off, int len) {
+        for (int i = off; i < off + len; i++) {
+            byte b = buf[i];
+            if (b != ' ' && b != '\t' && b != '\n' && b != '\r') {
+                return b == '[';
+            }
+        }
+        return false;
+    }
+
+    // Payload di una lettura del micro-batch: campi numerici a {@code numbers}, ritorna il testo originale.
+    private static String readPayload(JsonParser p, JsonToken start, byte[] src, int base,
+                                      ObjDoubleConsumer<String> numbers) throws IOException {
+        if (start != JsonToken.START_OBJECT) {
+            throw new IllegalArgumentException("Payload is not a JSON object");
+        }
+        int from = (int) p.currentTokenLocation().getByteOffset();
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.currentName();
+            JsonToken t = p.nextToken();
+            if (numbers != null && t.isNumeric()) {
+                numbers.accept(name, p.getDoubleValue());
+            } else {
+                p.skipChildren();
+            }
+        }
+        int to = (int) p.currentTokenLocation().getByteOffset() + 1;
+        return new String(src, from + base, to - from, StandardCharsets.UTF_8);
+    }
+
+    /** Lettura decifrata: event_ts e testo JSON del payload. */
+    public record Reading(Instant ts, String payloadJson) {}
+
+    private Envelope parseJson(byte[] value) throws IOException {
+        Fields meta = new Fields(Block.META);
+        Fields sec = new Fields(Block.SECURITY);
+        String metaJson = null, ciphertextB64 = null;
+        boolean security = false;
+        try (JsonParser p = envelopeParser(value, 0, value.length)) {
+            expectObject(p.nextToken(), "envelope");
+            while (p.nextToken() == JsonToken.FIELD_NAME) {
+                String name = p.currentName();
+                JsonToken t = p.nextToken();
+                switch (name) {
+                    case "meta" -> metaJson = readObject(p, t, value, 0, meta);
+                    case "security" -> {
+                        readFields(p, t, sec);
+                        security = true;
+                    }
+                    case "ciphertext" -> ciphertextB64 = p.getValueAsString();
+                    default -> p.skipChildren();
+                }
+            }
+        }
+        if (metaJson == null || !security || ciphertextB64 == null) {
+            throw new IllegalArgumentException("Envelope without meta/security/ciphertext");
+        }
+
+        Base64.Decoder b64 = Base64.getDecoder();
+        return new Envelope(
+                Envelope.Format.JSON, sec.keyId, PayloadCodec.baseAlg(sec.alg), PayloadCodec.fromAlg(sec.alg),
+                meta.deviceId, meta.ts, meta.nonce, meta.traceId, metaJson,
+                ByteBuffer.wrap(b64.decode(sec.iv)),
+                ByteBuffer.wrap(b64.decode(sec.sig)),
+                ByteBuffer.wrap(b64.decode(ciphertextB64)));
+    }
+
+    private Envelope parseBinary(byte[] value) throws IOException {
+        BinaryEnvelope.View v = BinaryEnvelope.parse(value);
+        Fields f = new Fields(Block.META);
+        String metaJson;
+        try (JsonParser p = envelopeParser(v.buf(), v.metaOff(), v.metaLen())) {
+            metaJson = readObject(p, p.nextToken(), v.buf(), v.metaOff(), f);
+        }
+
+        // iv/sig/ciphertext restano slice del record: vanno su DB come bytea, niente Base64
+        return new Envelope(
+                Envelope.Format.BINARY, v.keyId(), v.alg().algName(), v.codec(), f.deviceId, f.ts, f.nonce, f.traceId,
+                metaJson, v.iv(), v.sig(), v.ciphertext());
+    }
+
+    // Chiavi duplicate rifiutate a ogni livello: con last-wins il valore usato dipenderebbe dall'ordine.
+    private JsonParser envelopeParser(byte[] buf, int off, int len) throws IOException {
+        JsonParser p = json.createParser(buf, off, len);
+        p.enable(JsonParser.Feature.STRICT_DUPLICATE_DETECTION);
+        return p;
+    }
+
+    // Legge meta raccogliendo i campi noti; ritorna il suo testo originale.
+    // Gli offset del parser sono relativi all'inizio dell'input passato al parser (base dentro src).
+    private static String readObject(JsonParser p, JsonToken start, byte[] src, int base, Fields f) throws IOException {
+        int from = (int) p.currentTokenLocation().getByteOffset();
+        readFields(p, start, f);
+        int to = (int) p.currentTokenLocation().getByteOffset() + 1; // incluso '}'
+        return new String(src, from + base, to - from, StandardCharsets.UTF_8);
+    }
+
+    private static void readFields(JsonParser p, JsonToken start, Fields f) throws IOException {
+        expectObject(start, "meta/security");
+        while (p.nextToken() == JsonToken.FIELD_NAME) {
+            String name = p.currentName();
+            p.nextToken();
+            if (!f.accept(name, p)) {
+                p.skipChildren();
+            }
+        }
+    }
+
+    private static void expectObject(JsonToken t, String what) {
+        if (t != JsonToken.START_OBJECT) {
+            throw new IllegalArgumentException("Envelope " + what + " is not a JSON object");
+        }
+    }
+
+    private enum Block { META, SECURITY }
+
+    // Campi usati dal consumer ("" se assenti, come JsonNode.asText()), ognuno solo dal proprio blocco:
+    // security.deviceId o meta.alg non sovrascrivono i valori dell'altro blocco.
+    private static final class Fields {
+        final Block block;
+        String deviceId = "", ts = "", nonce = "", traceId;
+        String alg = "", iv = "", sig = "", keyId;
+
+        Fields(Block block) {
+            this.block = block;
+        }
+
+        boolean accept(String name, JsonParser p) throws IOException {
+            if (!p.currentToken().isScalarValue()) return false;
+            String v = p.getValueAsString("");
+            if (block == Block.META) {
+                switch (name) {
+                    case "deviceId" -> deviceId = v;
+                    case "ts" -> ts = v;
+                    case "nonce" -> nonce = v;
+                    case "traceId" -> traceId = v.isEmpty() ? null : v;
+                    default -> { }
+                }
+            } else {
+                switch (name) {
+                    case "alg" -> alg = v;
+                    case "iv" -> iv = v;
+                    case "sig" -> sig = v;
+                    case "keyId" -> keyId = v.isEmpty() ? null : v;
+                    default -> { }
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package it.floro.securemw.processor_svc.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Metriche della pipeline del consumer: un timer per stadio ({@code processor.stage}),
+ * messaggi elaborati/falliti ({@code processor.messages}) ed errori per classe di eccezione
+ * ({@code processor.errors}).
+ *
+ * I meter sono registrati una volta sola e tenuti in array/mappa: sul percorso caldo
+ * restano solo {@code System.nanoTime()} e la registrazione nel timer, niente lookup sul registry.
+ */
+@Component
+public class PipelineMetrics {
+
+    public enum Stage {
+        PARSE("parse"),
+        REGISTRY("registry"),
+        REPLAY("replay"),
+        SAVE_RAW("save_raw"),
+        VERIFY("verify"),
+        DECRYPT("decrypt"),
+        DECOMPRESS("decompress"),   // solo envelope con codec (security.alg +DEFLATE...)
+        PAYLOAD_PARSE("payload_parse"),
+        SAVE_DECODED("save_decoded"),
+        SAVE_RAW_BATCH("save_raw_batch"),
+        SAVE_DECODED_BATCH("save_decoded_batch"),
+        SAVE_BATCH_TX("save_batch_tx"),  // modalità transazionale: raw + decoded + rollup + offset
+        SPOOL_WRITE("spool_write"),      // append + fsync della poll sullo spool locale
+        SPOOL_DRAIN("spool_drain"),      // un segmento dello spool caricato su Postgres
+        REPROCESS_CHUNK("reprocess_chunk"),  // blocco di un job di rielaborazione: decrypt + upsert
+        DLQ_SEND("dlq_send");       // invio su DLQ o topic di retry
+
+        private final String tag;
+
+        Stage(String tag) {
+            this.tag = tag;
+        }
+    }
+
+    private final MeterRegistry registry;
+    private final Timer[] timers;
+    private final Counter processed;
+    private final Counter failed;
+    private final Map<Class<?>, Counter> errors = new ConcurrentHashMap<>();
+
+    public PipelineMetrics(MeterRegistry registry) {
+        this.registry = registry;
+        Stage[] stages = Stage.values();
+        this.timers = new Timer[stages.length];
+        for (Stage s : stages) {
+            timers[s.ordinal()] = Timer.builder("processor.stage")
+                    .description("Durata degli stadi della pipeline del consumer")
+                    .tag("stage", s.tag)
+                    .register(registry);
+        }
+        this.processed = Counter.builder("processor.messages").tag("outcome", "ok").register(registry);
+        this.failed = Counter.builder("processor.messages").tag("outcome", "failed").register(registry);
+    }
+
+    /** Registra la durata dello stadio iniziato a {@code startNanos}; ritorna l'istante corrente per lo stadio successivo. */
+    public long lap(Stage stage, long startNanos) {
+        long now = System.nanoTime();
+        timers[stage.ordinal()].record(now - startNanos, TimeUnit.NANOSECONDS);
+        return now;
+    }
+
+    public void record(Stage stage, long nanos) {
+        timers[stage.ordinal()].record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void processed(int n) {
+        processed.increment(n);
+    }
+
+    // Le classi di eccezione sono poche e stabili: cardinalità dei tag limitata.
+    public void failed(Throwable ex) {
+        failed.increment();
+        errors.computeIfAbsent(ex.getClass(), c -> Counter.builder("processor.errors")
+                        .tag("exception", c.getSimpleName())
+                        .register(registry))
+                .increment();
+    }
+}
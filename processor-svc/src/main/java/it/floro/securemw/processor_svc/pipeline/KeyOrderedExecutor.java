@@ -0,0 +1,84 @@
+package it.floro.securemw.processor_svc.pipeline;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Executor a "corsie": ogni chiave viene sempre eseguita sulla stessa corsia (single-thread),
+ * quindi i task con la stessa chiave restano in ordine mentre chiavi diverse vanno in parallelo.
+ * Il numero di task in volo è limitato: oltre il limite {@link #submit} blocca il chiamante.
+ */
+@Slf4j
+public class KeyOrderedExecutor implements AutoCloseable {
+
+    private final ExecutorService[] lanes;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+
+    public KeyOrderedExecutor(String name, int lanes, int maxInFlight) {
+        if (lanes < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("lanes and maxInFlight must be >= 1");
+        }
+        this.lanes = new ExecutorService[lanes];
+        for (int i = 0; i < lanes; i++) {
+            String threadName = name + "-" + i;
+            this.lanes[i] = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, threadName);
+                t.setDaemon(true);
+                return t;
+            });
+        }
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /** Accoda il task sulla corsia della chiave; blocca se i task in volo sono al limite. */
+    public void submit(Object key, Runnable task) throws InterruptedException {
+        inFlight.acquire();
+        try {
+            lanes[laneOf(key)].execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Pipeline task failed: {}", e.getMessage(), e);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            throw e;
+        }
+    }
+
+    // Task accodati o in esecuzione.
+    public int inFlight() {
+        return maxInFlight - inFlight.availablePermits();
+    }
+
+    int laneOf(Object key) {
+        // chiave null (nessun deviceId) => corsia 0, come un'unica partizione
+        return key == null ? 0 : Math.floorMod(key.hashCode(), lanes.length);
+    }
+
+    @Override
+    public void close() {
+        for (ExecutorService lane : lanes) {
+            lane.shutdown();
+        }
+        for (ExecutorService lane : lanes) {
+            try {
+                if (!lane.awaitTermination(30, TimeUnit.SECONDS)) {
+                    lane.shutdownNow();
+                }
+            } catch (InterruptedException e) {
+                lane.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package it.floro.securemw.processor_svc.reprocess;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Checkpoint dei blocchi elaborati in parallelo: i blocchi finiscono fuori ordine, ma la
+ * posizione salvabile avanza solo fin dove tutti i blocchi precedenti sono completati
+ * (low-water mark). Alla ripresa si rielabora al più ciò che era in volo, mai si salta.
+ *
+ * I worker chiamano {@link #complete}; un solo thread (il lettore) chiama {@link #drain}
+ * e scrive il checkpoint, così le posizioni salvate non tornano mai indietro.
+ *
+ * @param <K> posizione dell'ultimo elemento di un blocco
+ */
+class ChunkTracker<K> {
+
+    private final Map<Long, K> lastKeys = new HashMap<>();
+    private final Map<Long, long[]> completed = new HashMap<>();
+    private long nextSeq;
+    private long lowSeq;
+
+    // avanzamento non ancora salvato
+    private K position;
+    private long ok;
+    private long failed;
+
+    /** Registra un nuovo blocco (in ordine di lettura); ritorna il suo numero di sequenza. */
+    synchronized long submit(K lastKey) {
+        lastKeys.put(nextSeq, lastKey);
+        return nextSeq++;
+    }
+
+    synchronized void complete(long seq, long okCount, long failedCount) {
+        completed.put(seq, new long[]{okCount, failedCount});
+        long[] counts;
+        while ((counts = completed.remove(lowSeq)) != null) {
+            position = lastKeys.remove(lowSeq);
+            ok += counts[0];
+            failed += counts[1];
+            lowSeq++;
+        }
+    }
+
+    /**
+     * Avanzamento dall'ultima chiamata: posizione salvabile e contatori dei blocchi coperti.
+     * @return null se la posizione non è avanzata
+     */
+    synchronized Advance<K> drain() {
+        if (position == null) return null;
+        var out = new Advance<>(position, ok, failed);
+        position = null;
+        ok = 0;
+        failed = 0;
+        return out;
+    }
+
+    // Blocchi registrati e non ancora coperti dalla posizione salvabile.
+    synchronized int pending() {
+        return lastKeys.size();
+    }
+
+    record Advance<K>(K position, long ok, long failed) {}
+}
@@ -0,0 +1,456 @@
+package it.floro.securemw.processor_svc.reprocess;
+
+import com.zaxxer.hikari.HikariDataSource;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.floro.securemw.common.crypto.Crypto;
+import it.floro.securemw.common.crypto.PayloadCodec;
+import it.floro.securemw.common.envelope.EnvelopeAad;
+import it.floro.securemw.processor_svc.TelemetryConsumer;
+import it.floro.securemw.processor_svc.db.MessageRepository.DecodedKey;
+import it.floro.securemw.processor_svc.db.MessageRepository.DecodedRow;
+import it.floro.securemw.processor_svc.db.ReprocessRepository;
+import it.floro.securemw.processor_svc.db.ReprocessRepository.Failure;
+import it.floro.securemw.processor_svc.db.ReprocessRepository.Filter;
+import it.floro.securemw.processor_svc.db.ReprocessRepository.Job;
+import it.floro.securemw.processor_svc.db.ReprocessRepository.Position;
+import it.floro.securemw.processor_svc.db.ReprocessRepository.RawMessage;
+import it.floro.securemw.processor_svc.envelope.EnvelopeParser;
+import it.floro.securemw.processor_svc.envelope.EnvelopeParser.Reading;
+import it.floro.securemw.processor_svc.metrics.PipelineMetrics;
+import it.floro.securemw.processor_svc.metrics.PipelineMetrics.Stage;
+import it.floro.securemw.processor_svc.rollup.RollupAggregator;
+import it.floro.securemw.processor_svc.security.KeyRing;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Rielaborazione di messages_raw ({@code app.reprocess.enabled=true}): verify + decrypt dei messaggi
+ * già salvati e upsert in messages_decoded, senza ripubblicare su Kafka (es. dopo un bug fix).
+ *
+ * Per job: un thread lettore scorre messages_raw con un cursore lato server, in ordine
+ * (received_at, id) e a pagine di {@code page-rows} righe (una transazione di lettura per pagina);
+ * i blocchi di {@code batch-size} messaggi vanno a un pool di worker che decifrano e scrivono
+ * ciascuno nella propria transazione. Il lettore attende oltre {@code max-in-flight} blocchi in coda.
+ * La posizione salvata in reprocess_jobs è quella dell'ultimo blocco completato senza buchi
+ * ({@link ChunkTracker}): un job interrotto riparte da lì, anche dopo un riavvio.
+ *
+ * Pool di connessioni e thread propri, più un limite opzionale di righe al secondo:
+ * il consumer live non si contende connessioni né CPU oltre quanto configurato.
+ * Da abilitare su una sola istanza del processor (i job RUNNING riprendono all'avvio).
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "app.reprocess.enabled", havingValue = "true")
+public class ReprocessService {
+
+    public static final String RUNNING = "RUNNING";
+    public static final String DONE = "DONE";
+    public static final String FAILED = "FAILED";
+    public static final String CANCELLED = "CANCELLED";
+
+    // stesso stage del consumer: un job filtrato su errorStage ritrova anche i falliti in rielaborazione
+    private static final String ERROR_STAGE = "DECRYPT_OR_VERIFY";
+
+    private final KeyRing keyRing;
+    private final EnvelopeParser envelopeParser;
+    private final RollupAggregator rollups;
+    private final PipelineMetrics metrics;
+    private final Counter replayedCounter;
+    private final Counter failedCounter;
+
+    private final HikariDataSource dataSource;
+    private final ReprocessRepository repo;
+    private final ExecutorService runners;
+    private final ExecutorService workers;
+
+    private final int batchSize;
+    private final int pageRows;
+    private final int maxInFlight;
+    private final int maxRowsPerSecond;
+    private final long checkpointMs;
+
+    private final Map<UUID, Run> running = new ConcurrentHashMap<>();
+    private volatile boolean closing;
+
+    public ReprocessService(KeyRing keyRing,
+                            EnvelopeParser envelopeParser,
+                            RollupAggregator rollups,
+                            PipelineMetrics metrics,
+                            MeterRegistry registry,
+                            DataSourceProperties dataSourceProperties,
+                            @Value("${app.reprocess.threads:4}") int threads,
+                            @Value("${app.reprocess.max-jobs:1}") int maxJobs,
+                            @Value("${app.reprocess.batch-size:1000}") int batchSize,
+                            @Value("${app.reprocess.page-rows:100000}") int pageRows,
+                            @Value("${app.reprocess.fetch-size:2000}") int fetchSize,
+                            @Value("${app.reprocess.max-in-flight:8}") int maxInFlight,
+                            @Value("${app.reprocess.max-rows-per-second:0}") int maxRowsPerSecond,
+                            @Value("${app.reprocess.checkpoint-ms:5000}") long checkpointMs) {
+        if (threads < 1 || maxJobs < 1 || maxInFlight < 1 || pageRows < 1) {
+            throw new IllegalArgumentException("app.reprocess: threads, max-jobs, max-in-flight and page-rows must be >= 1");
+        }
+        if (batchSize < 1 || batchSize > ReprocessRepository.MAX_ROWS_PER_STATEMENT) {
+            throw new IllegalArgumentException("app.reprocess.batch-size must be between 1 and "
+                    + ReprocessRepository.MAX_ROWS_PER_STATEMENT);
+        }
+        this.keyRing = keyRing;
+        this.envelopeParser = envelopeParser;
+        this.rollups = rollups;
+        this.metrics = metrics;
+        this.replayedCounter = Counter.builder("processor.reprocess.messages").tag("outcome", "ok").register(registry);
+        this.failedCounter = Counter.builder("processor.reprocess.messages").tag("outcome", "failed").register(registry);
+
+        // pool separato (connessioni aperte solo mentre un job gira): un cursore per job + uno per worker
+        this.dataSource = dataSourceProperties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+        this.dataSource.setPoolName("reprocess");
+        this.dataSource.setMaximumPoolSize(threads + maxJobs + 1);
+        this.dataSource.setMinimumIdle(0);
+        this.repo = new ReprocessRepository(dataSource, fetchSize);
+
+        this.runners = Executors.newFixedThreadPool(maxJobs, daemon("reprocess-reader"));
+        this.workers = Executors.newFixedThreadPool(threads, daemon("reprocess-worker"));
+        this.batchSize = batchSize;
+        this.pageRows = pageRows;
+        this.maxInFlight = maxInFlight;
+        this.maxRowsPerSecond = maxRowsPerSecond;
+        this.checkpointMs = checkpointMs;
+    }
+
+    public Job start(Filter filter) {
+        UUID id = repo.createJob(filter);
+        Job job = repo.findJob(id).orElseThrow();
+        launch(job);
+        return job;
+    }
+
+    /**
+     * Riprende un job FAILED o CANCELLED dalla posizione salvata.
+     * @throws IllegalStateException se il job è in esecuzione o già completato
+     */
+    public Job resume(UUID id) {
+        Job job = repo.findJob(id).orElseThrow(() -> new IllegalStateException("Unknown reprocess job " + id));
+        if (running.containsKey(id)
+                || !(FAILED.equals(job.status()) || CANCELLED.equals(job.status()))
+                || !repo.updateStatus(id, job.status(), RUNNING, null)) {
+            throw new IllegalStateException("Reprocess job " + id + " is " + job.status());
+        }
+        job = repo.findJob(id).orElseThrow();
+        launch(job);
+        return job;
+    }
+
+    /** @return false se il job non era in esecuzione */
+    public boolean cancel(UUID id) {
+        if (!repo.updateStatus(id, RUNNING, CANCELLED, null)) {
+            return false;
+        }
+        Run run = running.get(id);
+        if (run != null) {
+            run.cancelled = true;
+        }
+        return true;
+    }
+
+    public Optional<Job> find(UUID id) {
+        return repo.findJob(id);
+    }
+
+    public List<Job> recent(int limit) {
+        return repo.findRecent(limit);
+    }
+
+    // Job rimasti RUNNING (restart o crash durante l'esecuzione): ripartono dal checkpoint.
+    @EventListener(ApplicationReadyEvent.class)
+    public void resumeInterrupted() {
+        List<Job> jobs;
+        try {
+            jobs = repo.findByStatus(RUNNING);
+        } catch (Exception e) {
+            log.warn("Cannot load interrupted reprocess jobs: {}", e.getMessage());
+            return;
+        }
+        for (Job job : jobs) {
+            log.info("Resuming reprocess job {} from {}", job.id(), job.cursor());
+            launch(job);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        // i job restano RUNNING su DB: al prossimo avvio riprendono dal checkpoint
+        closing = true;
+        runners.shutdown();
+        try {
+            if (!runners.awaitTermination(30, TimeUnit.SECONDS)) {
+                runners.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            runners.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+        dataSource.close();
+    }
+
+    private void launch(Job job) {
+        Run run = new Run(job);
+        if (running.putIfAbsent(job.id(), run) != null) {
+            throw new IllegalStateException("Reprocess job " + job.id() + " already running");
+        }
+        try {
+            runners.execute(run);
+        } catch (RuntimeException e) {
+            running.remove(job.id());
+            throw e;
+        }
+    }
+
+    /* ---------- elaborazione di un blocco (thread worker) ---------- */
+
+    private long[] process(List<RawMessage> chunk) {
+        long t = System.nanoTime();
+        List<DecodedRow> rows = new ArrayList<>(chunk.size());
+        List<double[]> samples = new ArrayList<>(chunk.size());
+        List<Failure> failures = new ArrayList<>();
+        List<UUID> decodedIds = new ArrayList<>(chunk.size());
+        for (RawMessage m : chunk) {
+            try {
+                List<double[]> msgSamples = new ArrayList<>(1);
+                List<Reading> readings = decode(m, () -> {
+                    double[] sample = rollups.newSample();
+                    msgSamples.add(sample);
+                    return (field, v) -> rollups.capture(sample, field, v);
+                });
+                for (Reading r : readings) {
+                    rows.add(new DecodedRow(m.id(), m.deviceId(), r.ts(), m.traceId(), r.payloadJson(), true, true));
+                }
+                samples.addAll(msgSamples);
+                decodedIds.add(m.id());
+            } catch (Exception e) {
+                failures.add(new Failure(m.id(), ERROR_STAGE, e.getClass().getSimpleName() + ": " + e.getMessage()));
+            }
+        }
+
+        // i micro-batch possono portare il blocco oltre il limite di righe per statement
+        Set<DecodedKey> inserted = new HashSet<>();
+        repo.inTransaction(() -> {
+            for (int from = 0; from < rows.size(); from += ReprocessRepository.MAX_ROWS_PER_STATEMENT) {
+                inserted.addAll(repo.upsertDecoded(
+                        rows.subList(from, Math.min(rows.size(), from + ReprocessRepository.MAX_ROWS_PER_STATEMENT))));
+            }
+            repo.resolveErrors(decodedIds);
+            repo.recordFailures(failures);
+        });
+
+        // solo le righe nuove: quelle riscritte sono già nei rollup
+        for (int i = 0; i < rows.size(); i++) {
+            DecodedRow r = rows.get(i);
+            if (inserted.contains(r.key())) {
+                rollups.add(r.deviceId(), r.eventTs(), samples.get(i));
+            }
+        }
+        replayedCounter.increment(decodedIds.size());
+        failedCounter.increment(failures.size());
+        metrics.lap(Stage.REPROCESS_CHUNK, t);
+        return new long[]{decodedIds.size(), failures.size()};
+    }
+
+    // Come TelemetryConsumer.verifyAndDecrypt, sulle colonne di messages_raw (niente envelope né anti-replay).
+    private List<Reading> decode(RawMessage m, Supplier<ObjDoubleConsumer<String>> numbers) throws Exception {
+        Crypto crypto = keyRing.forHistoricalKeyId(m.keyId());  // anche chiavi RETIRED: dati sigillati prima della rotazione
+        byte[] aad = EnvelopeAad.forEnvelope(m.alg(), m.keyId(), m.deviceId(), m.eventTs(), m.traceId(), m.nonce());
+        if (aad == null) {
+            crypto.verifyHmac(m.iv(), m.ciphertext(), m.sig());
+        }
+
+        byte[] plain = new byte[Crypto.plaintextLength(m.ciphertext().length)];
+        int n = crypto.decrypt(m.iv(), m.ciphertext(), 0, m.ciphertext().length, plain, 0, aad);
+        PayloadCodec codec = PayloadCodec.fromAlg(m.alg());
+        if (codec != PayloadCodec.NONE) {
+            plain = codec.decompress(plain, 0, n, TelemetryConsumer.MAX_PAYLOAD_BYTES);
+            n = plain.length;
+        }
+        return envelopeParser.readings(plain, 0, n, m.eventTs(), numbers);
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + n.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /* ---------- job (thread lettore) ---------- */
+
+    // Interrompe la lettura della pagina corrente (cancel, shutdown o errore di un worker).
+    private static final class StopReading extends RuntimeException {
+        StopReading() {
+            super(null, null, false, false);
+        }
+    }
+
+    private final class Run implements Runnable {
+
+        private final Job job;
+        private final ChunkTracker<Position> tracker = new ChunkTracker<>();
+        private final Semaphore inFlight = new Semaphore(maxInFlight);
+        private final AtomicReference<Exception> error = new AtomicReference<>();
+        private volatile boolean cancelled;
+
+        private List<RawMessage> chunk = new ArrayList<>(batchSize);
+        private Position lastRead;
+        private long dispatchedRows;
+        private long startNanos;
+        private long lastCheckpoint;
+
+        Run(Job job) {
+            this.job = job;
+            this.lastRead = job.cursor();
+        }
+
+        private boolean stopped() {
+            return cancelled || closing || error.get() != null || Thread.currentThread().isInterrupted();
+        }
+
+        @Override
+        public void run() {
+            startNanos = System.nanoTime();
+            lastCheckpoint = System.currentTimeMillis();
+            log.info("Reprocess job started | id={} | filter={} | from={}", job.id(), job.filter(), lastRead);
+            try {
+                int n;
+                do {
+                    n = repo.streamPage(job.filter(), lastRead, pageRows, this::accept);
+                } while (n == pageRows && !stopped());
+                if (!stopped() && !chunk.isEmpty()) {
+                    dispatch();
+                }
+            } catch (StopReading e) {
+                // fermato a metà pagina: i blocchi già inviati vengono comunque completati
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                error.compareAndSet(null, e);
+            } finally {
+                inFlight.acquireUninterruptibly(maxInFlight);
+                finish();
+                running.remove(job.id());
+            }
+        }
+
+        private void accept(RawMessage m) {
+            if (stopped()) {
+                throw new StopReading();
+            }
+            chunk.add(m);
+            lastRead = m.position();
+            if (chunk.size() == batchSize) {
+                try {
+                    dispatch();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new StopReading();
+                }
+            }
+        }
+
+        private void dispatch() throws InterruptedException {
+            List<RawMessage> work = chunk;
+            chunk = new ArrayList<>(batchSize);
+            inFlight.acquire();
+            long seq = tracker.submit(work.get(work.size() - 1).position());
+            try {
+                workers.execute(() -> {
+                    try {
+                        long[] counts = process(work);
+                        tracker.complete(seq, counts[0], counts[1]);
+                    } catch (Exception e) {
+                        // il blocco non viene segnato: il checkpoint si ferma prima, alla ripresa si rifà
+                        log.warn("Reprocess chunk failed | job={} | {} messages: {}", job.id(), work.size(), e.getMessage());
+                        error.compareAndSet(null, e);
+                    } finally {
+                        inFlight.release();
+                    }
+                });
+            } catch (RuntimeException e) {
+                inFlight.release();
+                throw e;
+            }
+            dispatchedRows += work.size();
+            checkpoint(false);
+            pace();
+        }
+
+        // Limite di righe al secondo, calcolato dall'inizio del job.
+        private void pace() throws InterruptedException {
+            if (maxRowsPerSecond <= 0) return;
+            long due = startNanos + dispatchedRows * 1_000_000_000L / maxRowsPerSecond;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+        }
+
+        private void checkpoint(boolean force) {
+            long now = System.currentTimeMillis();
+            if (!force && now - lastCheckpoint < checkpointMs) return;
+            lastCheckpoint = now;
+            ChunkTracker.Advance<Position> a = tracker.drain();
+            if (a == null) return;
+            try {
+                repo.checkpoint(job.id(), a.position(), a.ok(), a.failed());
+            } catch (Exception e) {
+                // il prossimo checkpoint salva una posizione successiva; i contatori di questo vanno persi
+                log.warn("Reprocess checkpoint failed | job={}: {}", job.id(), e.getMessage());
+            }
+        }
+
+        private void finish() {
+            checkpoint(true);
+            Exception e = error.get();
+            try {
+                if (e != null) {
+                    repo.updateStatus(job.id(), RUNNING, FAILED, e.getClass().getSimpleName() + ": " + e.getMessage());
+                    log.warn("Reprocess job failed | id={} | pending chunks={}: {}", job.id(), tracker.pending(), e.getMessage());
+                } else if (cancelled) {
+                    log.info("Reprocess job cancelled | id={} | at={}", job.id(), lastRead);
+                } else if (closing || Thread.currentThread().isInterrupted()) {
+                    log.info("Reprocess job paused for shutdown | id={} | at={}", job.id(), lastRead);
+                } else {
+                    repo.updateStatus(job.id(), RUNNING, DONE, null);
+                    log.info("Reprocess job done | id={} | rows={} | {} ms", job.id(), dispatchedRows,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                }
+            } catch (Exception ex) {
+                log.warn("Cannot update reprocess job {} status: {}", job.id(), ex.getMessage());
+            }
+        }
+    }
+}
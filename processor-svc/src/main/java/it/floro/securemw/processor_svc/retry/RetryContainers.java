@@ -0,0 +1,102 @@
+package it.floro.securemw.processor_svc.retry;
+
+import it.floro.securemw.processor_svc.TelemetryConsumer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.kafka.core.ConsumerFactory;
+import org.springframework.kafka.listener.AcknowledgingMessageListener;
+import org.springframework.kafka.listener.ConcurrentMessageListenerContainer;
+import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Un container per livello di retry: ogni record viene elaborato solo quando è trascorso il
+ * ritardo del livello (dal momento in cui è stato pubblicato sul topic di retry). Prima di allora
+ * il container fa {@code nack(wait)}: il consumer di quel livello resta in pausa ma continua a
+ * fare poll, e né il topic principale né gli altri livelli vengono bloccati.
+ */
+@Slf4j
+@Component
+public class RetryContainers implements SmartLifecycle {
+
+    private final RetryPolicy policy;
+    private final ConsumerFactory<String, byte[]> consumerFactory;
+    private final TelemetryConsumer consumer;
+    private final String groupId;
+    private final List<ConcurrentMessageListenerContainer<String, byte[]>> containers = new ArrayList<>();
+    private volatile boolean running;
+
+    @SuppressWarnings("unchecked")
+    public RetryContainers(RetryPolicy policy,
+                           ConsumerFactory<?, ?> consumerFactory,
+                           TelemetryConsumer consumer,
+                           @Value("${spring.kafka.consumer.group-id}") String groupId) {
+        this.policy = policy;
+        this.consumerFactory = (ConsumerFactory<String, byte[]>) consumerFactory;
+        this.consumer = consumer;
+        this.groupId = groupId + ".retry";
+    }
+
+    @Override
+    public void start() {
+        if (!policy.isEnabled()) {
+            running = true;
+            return;
+        }
+        for (RetryPolicy.Tier tier : policy.tiers()) {
+            ContainerProperties props = new ContainerProperties(tier.topic());
+            props.setGroupId(groupId);
+            props.setAckMode(ContainerProperties.AckMode.MANUAL_IMMEDIATE);
+            props.setMessageListener((AcknowledgingMessageListener<String, byte[]>) (record, ack) -> {
+                long wait = dueIn(record, tier.delay());
+                if (wait > 0) {
+                    ack.nack(Duration.ofMillis(wait)); // stesso record, riletto dopo il ritardo
+                    return;
+                }
+                try {
+                    consumer.onRetry(record);  // errori già gestiti (retry successivo o DLQ)
+                } finally {
+                    ack.acknowledge();
+                }
+            });
+
+            var container = new ConcurrentMessageListenerContainer<>(consumerFactory, props);
+            container.setBeanName("telemetry-retry-" + tier.topic());
+            container.start();
+            containers.add(container);
+            log.info("Retry tier started | topic={} delay={}", tier.topic(), tier.delay());
+        }
+        running = true;
+    }
+
+    @Override
+    public void stop() {
+        containers.forEach(ConcurrentMessageListenerContainer::stop);
+        containers.clear();
+        running = false;
+    }
+
+    // Pausa/ripresa di tutti i livelli (backpressure verso il DB): i consumer restano nel gruppo.
+    public void pause() {
+        containers.forEach(ConcurrentMessageListenerContainer::pause);
+    }
+
+    public void resume() {
+        containers.forEach(ConcurrentMessageListenerContainer::resume);
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    private static long dueIn(ConsumerRecord<String, byte[]> record, Duration delay) {
+        return record.timestamp() + delay.toMillis() - System.currentTimeMillis();
+    }
+}
@@ -0,0 +1,78 @@
+package it.floro.securemw.processor_svc.retry;
+
+import org.apache.kafka.common.errors.RetriableException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.CannotCreateTransactionException;
+
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Classificazione degli errori e livelli di retry.
+ *
+ * Transitori (DB o broker non disponibili, timeout): il record va sul topic di retry del
+ * tentativo successivo, {@code <topic-prefix>.1}, {@code .2}, ... con ritardi crescenti.
+ * Permanenti (firma, ts, replay, device, envelope malformato) o tentativi esauriti: DLQ.
+ */
+@Component
+public class RetryPolicy {
+
+    private static final List<Class<? extends Throwable>> TRANSIENT = List.of(
+            TransientDataAccessException.class,
+            RecoverableDataAccessException.class,
+            DataAccessResourceFailureException.class,   // include CannotGetJdbcConnectionException
+            CannotCreateTransactionException.class,
+            SQLTransientException.class,
+            SQLRecoverableException.class,
+            RetriableException.class,                   // errori Kafka ritentabili
+            TimeoutException.class);
+
+    private final boolean enabled;
+    private final List<Tier> tiers;
+
+    public RetryPolicy(@Value("${app.retry.enabled:true}") boolean enabled,
+                       @Value("${app.retry.topic-prefix:telemetry.retry}") String topicPrefix,
+                       @Value("${app.retry.delays:1s,10s,1m}") List<Duration> delays) {
+        this.enabled = enabled;
+        List<Tier> t = new ArrayList<>(delays.size());
+        for (int i = 0; i < delays.size(); i++) {
+            t.add(new Tier(topicPrefix + "." + (i + 1), delays.get(i)));
+        }
+        this.tiers = List.copyOf(t);
+    }
+
+    public boolean isTransient(Throwable ex) {
+        for (Throwable c = ex; c != null; c = c.getCause() == c ? null : c.getCause()) {
+            for (Class<? extends Throwable> type : TRANSIENT) {
+                if (type.isInstance(c)) return true;
+            }
+        }
+        return false;
+    }
+
+    /** Topic di retry dopo {@code attempts} tentativi falliti; null = non si ritenta (DLQ). */
+    public String nextTopic(Throwable ex, int attempts) {
+        if (!enabled || attempts > tiers.size() || !isTransient(ex)) {
+            return null;
+        }
+        return tiers.get(attempts - 1).topic();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public List<Tier> tiers() {
+        return tiers;
+    }
+
+    public record Tier(String topic, Duration delay) {}
+}
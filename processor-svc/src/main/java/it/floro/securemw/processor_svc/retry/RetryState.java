@@ -0,0 +1,102 @@
+package it.floro.securemw.processor_svc.retry;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+
+/**
+ * Stato di un messaggio lungo i tentativi: quanti ne ha già fatti, l'id raw se già persistito,
+ * le coordinate del record originale (per messages_raw e la sua chiave di partizione) e quando
+ * l'anti-replay ne ha accettato il nonce (0 = non ancora: il tentativo successivo lo ricontrolla).
+ * Viaggia negli header dei record di retry/DLQ, autenticato da {@link RetryStateSigner}: {@link #from}
+ * e {@link #toHeaders} non verificano né firmano nulla.
+ */
+public record RetryState(int attempts,
+                         UUID rawId,
+                         String topic,
+                         int partition,
+                         long offset,
+                         long timestamp,
+                         long nonceAcceptedAt) {
+
+    public static final String ATTEMPTS  = "x-retry-attempts";
+    public static final String RAW_ID    = "x-raw-id";
+    public static final String TOPIC     = "x-original-topic";
+    public static final String PARTITION = "x-original-partition";
+    public static final String OFFSET    = "x-original-offset";
+    public static final String TIMESTAMP = "x-original-timestamp";
+    public static final String NONCE_ACCEPTED_AT = "x-nonce-accepted-at";
+
+    // Primo tentativo: coordinate del record stesso.
+    public static RetryState initial(ConsumerRecord<?, ?> record) {
+        return new RetryState(0, null, record.topic(), record.partition(), record.offset(), record.timestamp(), 0);
+    }
+
+    // Record letto da un topic di retry: lo stato è negli header (in mancanza, si riparte dal record).
+    // Non autenticato: i consumer passano da RetryStateSigner.from.
+    public static RetryState from(ConsumerRecord<?, ?> record) {
+        Headers h = record.headers();
+        String attempts = text(h, ATTEMPTS);
+        if (attempts == null) {
+            return initial(record);
+        }
+        String rawId = text(h, RAW_ID);
+        String nonceAcceptedAt = text(h, NONCE_ACCEPTED_AT);
+        return new RetryState(
+                Integer.parseInt(attempts),
+                rawId != null ? UUID.fromString(rawId) : null,
+                text(h, TOPIC),
+                Integer.parseInt(text(h, PARTITION)),
+                Long.parseLong(text(h, OFFSET)),
+                Long.parseLong(text(h, TIMESTAMP)),
+                nonceAcceptedAt != null ? Long.parseLong(nonceAcceptedAt) : 0);
+    }
+
+    public boolean isRetry() {
+        return attempts > 0;
+    }
+
+    public boolean nonceAccepted() {
+        return nonceAcceptedAt > 0;
+    }
+
+    // Nonce registrato dall'anti-replay all'istante {@code at} (epoch ms): i retry non lo ricontrollano.
+    public RetryState withNonceAccepted(long at) {
+        return new RetryState(attempts, rawId, topic, partition, offset, timestamp, at);
+    }
+
+    // Stato dopo un tentativo fallito (l'id raw resta quello del primo salvataggio riuscito).
+    public RetryState failed(UUID rawId) {
+        return new RetryState(attempts + 1, this.rawId != null ? this.rawId : rawId, topic, partition, offset, timestamp,
+                nonceAcceptedAt);
+    }
+
+    public Headers toHeaders() {
+        Headers h = new RecordHeaders();
+        put(h, ATTEMPTS, Integer.toString(attempts));
+        if (rawId != null) {
+            put(h, RAW_ID, rawId.toString());
+        }
+        put(h, TOPIC, topic);
+        put(h, PARTITION, Integer.toString(partition));
+        put(h, OFFSET, Long.toString(offset));
+        put(h, TIMESTAMP, Long.toString(timestamp));
+        if (nonceAcceptedAt > 0) {
+            put(h, NONCE_ACCEPTED_AT, Long.toString(nonceAcceptedAt));
+        }
+        return h;
+    }
+
+    private static void put(Headers h, String key, String value) {
+        h.add(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String text(Headers h, String key) {
+        Header header = h.lastHeader(key);
+        return header != null ? new String(header.value(), StandardCharsets.UTF_8) : null;
+    }
+}
@@ -0,0 +1,102 @@
+package it.floro.securemw.processor_svc.retry;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Autentica lo {@link RetryState} negli header dei record di retry/DLQ con un HMAC-SHA256
+ * (header {@code x-retry-mac}) su tutti i campi: coordinate del record originale, tentativi,
+ * id raw e accettazione del nonce. Chi può scrivere su un topic di retry non può quindi saltare
+ * l'anti-replay né agganciare i decodificati a un id raw arbitrario.
+ *
+ * Chiave: {@code app.retry.state-key-b64}, uguale su tutte le istanze del processor; se vuota viene
+ * derivata dalla chiave HMAC di default (separazione di dominio). Uno stato senza MAC valido non
+ * viene usato: il record riparte come primo tentativo sulle coordinate del topic di retry, con
+ * tutti i controlli (tipicamente finisce in DLQ come replay).
+ */
+@Slf4j
+@Component
+public class RetryStateSigner {
+
+    public static final String MAC = "x-retry-mac";
+    private static final String ALG = "HmacSHA256";
+    private static final byte[] DERIVATION_LABEL = "securemw/retry-state/v1".getBytes(StandardCharsets.UTF_8);
+
+    private final SecretKeySpec key;
+
+    public RetryStateSigner(@Value("${app.retry.state-key-b64:}") String stateKeyB64,
+                            @Value("${app.security.hmacKeyB64}") String hmacKeyB64) {
+        byte[] k;
+        if (!stateKeyB64.isBlank()) {
+            k = Base64.getDecoder().decode(stateKeyB64);
+        } else {
+            k = hmac(new SecretKeySpec(Base64.getDecoder().decode(hmacKeyB64), ALG), DERIVATION_LABEL);
+        }
+        if (k.length < 32) {
+            throw new IllegalArgumentException("app.retry.state-key-b64 must be at least 32 bytes");
+        }
+        this.key = new SecretKeySpec(k, ALG);
+    }
+
+    public Headers toHeaders(RetryState state) {
+        Headers h = state.toHeaders();
+        h.add(MAC, Base64.getEncoder().encodeToString(mac(state)).getBytes(StandardCharsets.UTF_8));
+        return h;
+    }
+
+    /** Stato di un record letto da un topic di retry; senza header di stato o con MAC non valido, primo tentativo. */
+    public RetryState from(ConsumerRecord<?, ?> record) {
+        RetryState state;
+        try {
+            state = RetryState.from(record);
+        } catch (RuntimeException e) {
+            log.warn("Malformed retry state on {}-{}@{}: {}", record.topic(), record.partition(), record.offset(), e.getMessage());
+            return RetryState.initial(record);
+        }
+        if (!state.isRetry()) {
+            return state;
+        }
+        Header header = record.headers().lastHeader(MAC);
+        byte[] expected = mac(state);
+        byte[] actual;
+        try {
+            actual = header != null ? Base64.getDecoder().decode(header.value()) : null;
+        } catch (IllegalArgumentException e) {
+            actual = null;
+        }
+        if (actual == null || !MessageDigest.isEqual(expected, actual)) {
+            log.warn("Retry state on {}-{}@{} not authenticated: processing as a first attempt",
+                    record.topic(), record.partition(), record.offset());
+            return RetryState.initial(record);
+        }
+        return state;
+    }
+
+    private byte[] mac(RetryState s) {
+        String canonical = s.attempts() + "\n" + (s.rawId() != null ? s.rawId() : "") + "\n" + s.topic() + "\n"
+                + s.partition() + "\n" + s.offset() + "\n" + s.timestamp() + "\n" + s.nonceAcceptedAt();
+        return hmac(key, canonical.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Mac non è thread-safe: un'istanza per chiamata (solo sul percorso dei retry).
+    private static byte[] hmac(SecretKeySpec key, byte[] data) {
+        try {
+            Mac mac = Mac.getInstance(ALG);
+            mac.init(key);
+            return mac.doFinal(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALG + " not available", e);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package it.floro.securemw.processor_svc.rollup;
+
+import it.floro.securemw.processor_svc.db.RollupRepository;
+import it.floro.securemw.processor_svc.db.RollupRepository.RollupRow;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Aggregati per device e metrica (count, min, max, sum, last) su bucket di minuto, ora e giorno,
+ * tenuti in memoria mentre il consumer decodifica e scaricati periodicamente su telemetry_rollups.
+ *
+ * A ogni flush la mappa viene sostituita e i delta accumulati vanno in upsert: il merge lato DB
+ * somma ai bucket già scritti, quindi eventi in ritardo e più istanze del processor convivono.
+ * Se il flush fallisce i delta tornano in memoria e riprovano al giro successivo.
+ */
+@Slf4j
+@Component
+public class RollupAggregator {
+
+    public enum Granularity {
+        MINUTE("1m", ChronoUnit.MINUTES),
+        HOUR("1h", ChronoUnit.HOURS),
+        DAY("1d", ChronoUnit.DAYS);
+
+        private final String code;
+        private final ChronoUnit unit;
+
+        Granularity(String code, ChronoUnit unit) {
+            this.code = code;
+            this.unit = unit;
+        }
+
+        public String code() {
+            return code;
+        }
+
+        Instant bucket(Instant ts) {
+            return ts.truncatedTo(unit); // Instant: troncamento in UTC
+        }
+    }
+
+    private static final Granularity[] GRANULARITIES = Granularity.values();
+
+    private final RollupRepository repo;
+    private final boolean enabled;
+    private final List<String> metrics;
+
+    // add() in lettura (concorrenti tra loro), flush() in scrittura solo per lo scambio della mappa
+    private final ReentrantReadWriteLock swap = new ReentrantReadWriteLock();
+    private volatile Map<Key, Agg> pending = new ConcurrentHashMap<>();
+
+    public RollupAggregator(RollupRepository repo,
+                            @Value("${app.rollup.enabled:true}") boolean enabled,
+                            @Value("${app.rollup.metrics:temperature,vibration}") List<String> metrics) {
+        this.repo = repo;
+        this.enabled = enabled;
+        this.metrics = List.copyOf(metrics);
+    }
+
+    /** Valori delle metriche di un messaggio, nell'ordine di {@code app.rollup.metrics} (NaN = assente). */
+    public double[] newSample() {
+        double[] sample = new double[metrics.size()];
+        Arrays.fill(sample, Double.NaN);
+        return sample;
+    }
+
+    // Callback per i campi numerici di primo livello del payload.
+    public void capture(double[] sample, String field, double value) {
+        int i = metrics.indexOf(field);
+        if (i >= 0) {
+            sample[i] = value;
+        }
+    }
+
+    public void add(String deviceId, Instant eventTs, double[] sample) {
+        if (!enabled || sample == null) return;
+        swap.readLock().lock();
+        try {
+            accumulate(pending, deviceId, eventTs, sample);
+        } finally {
+            swap.readLock().unlock();
+        }
+    }
+
+    /**
+     * Delta di una sola batch, scritto dal chiamante dentro la propria transazione
+     * (modalità transazionale: rollup e messaggi committati insieme, niente doppi conteggi alle riconsegne).
+     */
+    public Delta delta() {
+        return new Delta();
+    }
+
+    @PreDestroy
+    @Scheduled(fixedDelayString = "${app.rollup.flush-ms:5000}")
+    public void flush() {
+        Map<Key, Agg> batch;
+        swap.writeLock().lock();
+        try {
+            batch = pending;
+            if (batch.isEmpty()) return;
+            pending = new ConcurrentHashMap<>();
+        } finally {
+            swap.writeLock().unlock();
+        }
+
+        List<RollupRow> rows = toRows(batch);
+        try {
+            repo.upsert(rows);
+            log.debug("Rollups flushed | rows={}", rows.size());
+        } catch (Exception e) {
+            log.warn("Rollup flush failed ({} rows), retrying at next flush: {}", rows.size(), e.getMessage());
+            requeue(batch);
+        }
+    }
+
+    int pendingSize() {
+        return pending.size();
+    }
+
+    private void requeue(Map<Key, Agg> batch) {
+        swap.readLock().lock();
+        try {
+            Map<Key, Agg> map = pending;
+            batch.forEach((k, a) -> map.merge(k, a, Agg::merge));
+        } finally {
+            swap.readLock().unlock();
+        }
+    }
+
+    private void accumulate(Map<Key, Agg> map, String deviceId, Instant eventTs, double[] sample) {
+        for (int m = 0; m < sample.length; m++) {
+            double v = sample[m];
+            if (Double.isNaN(v)) continue;
+            for (Granularity g : GRANULARITIES) {
+                map.compute(new Key(deviceId, metrics.get(m), g, g.bucket(eventTs)),
+                        (k, a) -> a == null ? new Agg(v, eventTs) : a.add(v, eventTs));
+            }
+        }
+    }
+
+    private static List<RollupRow> toRows(Map<Key, Agg> batch) {
+        List<RollupRow> rows = new ArrayList<>(batch.size());
+        batch.forEach((k, a) -> rows.add(new RollupRow(k.deviceId(), k.metric(), k.granularity().code(), k.bucketStart(),
+                a.count, a.min, a.max, a.sum, a.last, a.lastTs)));
+        return rows;
+    }
+
+    /** Aggregati di una batch, usati da un solo thread. */
+    public final class Delta {
+        private final Map<Key, Agg> map = new HashMap<>();
+
+        public void add(String deviceId, Instant eventTs, double[] sample) {
+            if (enabled && sample != null) {
+                accumulate(map, deviceId, eventTs, sample);
+            }
+        }
+
+        // upsert immediato, nella transazione corrente del chiamante
+        public void write() {
+            if (!map.isEmpty()) {
+                repo.upsert(toRows(map));
+            }
+        }
+    }
+
+    record Key(String deviceId, String metric, Granularity granularity, Instant bucketStart) {}
+
+    // Mutabile: aggiornato solo dentro compute/merge della ConcurrentHashMap (atomici per chiave).
+    static final class Agg {
+        long count;
+        double min, max, sum, last;
+        Instant lastTs;
+
+        Agg(double v, Instant ts) {
+            count = 1;
+            min = max = sum = last = v;
+            lastTs = ts;
+        }
+
+        Agg add(double v, Instant ts) {
+            count++;
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+            sum += v;
+            if (!ts.isBefore(lastTs)) {
+                last = v;
+                lastTs = ts;
+            }
+            return this;
+        }
+
+        Agg merge(Agg o) {
+            count += o.count;
+            min = Math.min(min, o.min);
+            max = Math.max(max, o.max);
+            sum += o.sum;
+            if (!o.lastTs.isBefore(lastTs)) {
+                last = o.last;
+                lastTs = o.lastTs;
+            }
+            return this;
+        }
+    }
+}
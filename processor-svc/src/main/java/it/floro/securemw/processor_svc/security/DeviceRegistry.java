@@ -0,0 +1,176 @@
+package it.floro.securemw.processor_svc.security;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.CacheLoader;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.Ticker;
+import it.floro.securemw.common.envelope.EnvelopeAlg;
+import it.floro.securemw.processor_svc.db.DeviceRegistryRepository;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.util.Optional;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Applica device_registry (enabled, min_algo) a ogni messaggio senza una query per messaggio.
+ *
+ * I device noti stanno in una cache limitata in dimensione e vengono riletti in background {@code ttl}
+ * dopo la scrittura: fino alla rilettura (anche se fallisce) si usa la policy già in cache, così un device
+ * noto non torna mai a pagare una query sul percorso del messaggio. Gli id sconosciuti stanno in una cache
+ * "negativa" separata ({@code negative-max-size}, {@code negative-ttl}), così un flood di id inventati non
+ * sfratta i device legittimi. Le query per id non in cache sono limitate a {@code max-misses-per-second}:
+ * oltre, il messaggio fallisce con un errore transitorio e va in retry (non in DLQ), perché l'id potrebbe
+ * essere valido. Le modifiche a device_registry valgono subito dopo {@code POST /api/registry/invalidate}
+ * (vedi api.RegistryController), altrimenti alla rilettura.
+ */
+@Slf4j
+@Component
+public class DeviceRegistry {
+
+    private static final long SECOND_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final DeviceRegistryRepository repo;
+    private final boolean enforce;
+    private final LoadingCache<String, Policy> known;
+    private final Cache<String, Boolean> unknown;
+    private final Ticker ticker;
+    private final int maxMissesPerSecond;
+
+    // finestra di un secondo per il limite delle query sugli id non in cache
+    private long missWindowStart;
+    private int missesInWindow;
+
+    @Autowired
+    public DeviceRegistry(DeviceRegistryRepository repo,
+                          @Value("${app.registry.enforce:true}") boolean enforce,
+                          @Value("${app.registry.max-size:100000}") long maxSize,
+                          @Value("${app.registry.ttl:PT5M}") Duration ttl,
+                          @Value("${app.registry.negative-max-size:10000}") long negativeMaxSize,
+                          @Value("${app.registry.negative-ttl:PT1M}") Duration negativeTtl,
+                          @Value("${app.registry.max-misses-per-second:200}") int maxMissesPerSecond) {
+        this(repo, enforce, maxSize, ttl, negativeMaxSize, negativeTtl, maxMissesPerSecond,
+                Ticker.systemTicker(), ForkJoinPool.commonPool());
+    }
+
+    DeviceRegistry(DeviceRegistryRepository repo, boolean enforce, long maxSize, Duration ttl,
+                   long negativeMaxSize, Duration negativeTtl, int maxMissesPerSecond,
+                   Ticker ticker, Executor refreshExecutor) {
+        if (maxMissesPerSecond < 1) {
+            throw new IllegalArgumentException("app.registry.max-misses-per-second must be >= 1");
+        }
+        this.repo = repo;
+        this.enforce = enforce;
+        this.ticker = ticker;
+        this.maxMissesPerSecond = maxMissesPerSecond;
+        this.known = Caffeine.newBuilder().maximumSize(maxSize).refreshAfterWrite(ttl)
+                .ticker(ticker).executor(refreshExecutor).build(new PolicyLoader());
+        this.unknown = Caffeine.newBuilder().maximumSize(negativeMaxSize).expireAfterWrite(negativeTtl).ticker(ticker).build();
+        this.missWindowStart = ticker.read();
+    }
+
+    /**
+     * Verifica che il device sia registrato, abilitato e usi un alg non inferiore a min_algo.
+     * @throws IllegalStateException se il messaggio va rifiutato
+     */
+    public void check(String deviceId, String alg) {
+        if (!enforce) return;
+        if (deviceId == null || deviceId.isBlank()) {
+            throw new IllegalStateException("Missing deviceId");
+        }
+
+        Policy policy = known.get(deviceId);  // una sola query anche con più thread sullo stesso id
+        if (policy == null) {
+            throw new IllegalStateException("Unknown device " + deviceId);
+        }
+        if (!policy.enabled()) {
+            throw new IllegalStateException("Device disabled: " + deviceId);
+        }
+        if (policy.minAlg() != null) {
+            EnvelopeAlg used;
+            try {
+                used = EnvelopeAlg.fromName(alg);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException("Unsupported alg '" + alg + "' for device " + deviceId);
+            }
+            if (!used.atLeast(policy.minAlg())) {
+                throw new IllegalStateException("Alg " + alg + " below min_algo "
+                        + policy.minAlg().algName() + " for device " + deviceId);
+            }
+        }
+    }
+
+    // Da chiamare dopo modifiche a device_registry per applicarle subito (api.RegistryController).
+    public void invalidate(String deviceId) {
+        known.invalidate(deviceId);
+        unknown.invalidate(deviceId);
+    }
+
+    public void invalidateAll() {
+        known.invalidateAll();
+        unknown.invalidateAll();
+    }
+
+    private final class PolicyLoader implements CacheLoader<String, Policy> {
+
+        // Primo caricamento. null = sconosciuto: Caffeine non mette in cache i null.
+        @Override
+        public Policy load(String deviceId) {
+            if (unknown.getIfPresent(deviceId) != null) {
+                return null;
+            }
+            if (!tryMiss()) {
+                throw new TransientDataAccessResourceException(
+                        "Device registry lookup limit reached, retrying " + deviceId);
+            }
+            Optional<Policy> policy = repo.findById(deviceId).map(DeviceRegistry::toPolicy);
+            if (policy.isEmpty()) {
+                unknown.put(deviceId, Boolean.TRUE);
+            }
+            return policy.orElse(null);
+        }
+
+        // Rilettura di un device noto: fuori dal limite dei miss; se fallisce resta la policy vecchia,
+        // se il device non c'è più (null) la voce viene rimossa.
+        @Override
+        public Policy reload(String deviceId, Policy old) {
+            return repo.findById(deviceId).map(DeviceRegistry::toPolicy).orElse(null);
+        }
+    }
+
+    private synchronized boolean tryMiss() {
+        long now = ticker.read();
+        if (now - missWindowStart >= SECOND_NANOS) {
+            missWindowStart = now;
+            missesInWindow = 0;
+        }
+        if (missesInWindow >= maxMissesPerSecond) {
+            return false;
+        }
+        missesInWindow++;
+        return true;
+    }
+
+    private static Policy toPolicy(DeviceRegistryRepository.DeviceRow row) {
+        EnvelopeAlg minAlg = null;
+        if (row.minAlgo() != null && !row.minAlgo().isBlank()) {
+            try {
+                minAlg = EnvelopeAlg.fromName(row.minAlgo());
+            } catch (IllegalArgumentException e) {
+                // min_algo non riconosciuto: il device resta bloccato finché il registry non viene corretto
+                log.warn("Device {} has unknown min_algo '{}': rejecting its messages", row.deviceId(), row.minAlgo());
+                return new Policy(false, null);
+            }
+        }
+        return new Policy(row.enabled(), minAlg);
+    }
+
+    private record Policy(boolean enabled, EnvelopeAlg minAlg) {}
+}
@@ -0,0 +1,188 @@
+package it.floro.securemw.processor_svc.security;
+
+import it.floro.securemw.common.crypto.Crypto;
+import it.floro.securemw.processor_svc.db.KeyMaterialRepository;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.TransientDataAccessResourceException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keyring del processor: un {@link Crypto} già inizializzato per ogni keyId ACTIVE.
+ *
+ * Il materiale delle chiavi arriva dalla coppia AES_KEY_B64/HMAC_KEY_B64 (keyId di default)
+ * e dal file opzionale {@code app.security.keyring-file} (properties {@code <keyId>.aes}/{@code <keyId>.hmac});
+ * lo stato (ACTIVE/RETIRED) arriva da key_material. Il refresh periodico costruisce una nuova
+ * mappa e la pubblica con una sola scrittura volatile: rotazione senza restart né pause del consumer.
+ * Le chiavi RETIRED restano usabili solo dalla rielaborazione ({@link #forHistoricalKeyId}), che le cerca
+ * nell'ultimo refresh: nessuna query né lettura del file per keyId, nemmeno per quelli sconosciuti.
+ */
+@Slf4j
+@Component
+public class KeyRing {
+
+    private static final String ACTIVE = "ACTIVE";
+
+    private final KeyMaterialRepository repo;
+    private final String defaultKeyId;
+    private final KeyPair defaultPair;
+    private final Path keyringFile;
+
+    private volatile Map<String, Entry> keys;
+
+    // keyId non ACTIVE in key_material all'ultimo refresh -> materiale (null se non configurato); null prima del primo refresh
+    private volatile Map<String, KeyPair> retired;
+
+    // chiavi RETIRED caricate su richiesta dalla rielaborazione: il materiale di una chiave ritirata non cambia
+    private final Map<String, Crypto> historical = new ConcurrentHashMap<>();
+
+    public KeyRing(KeyMaterialRepository repo,
+                   @Value("${app.security.default-key-id:k-2025-01}") String defaultKeyId,
+                   @Value("${app.security.aesKeyB64}") String aesKeyB64,
+                   @Value("${app.security.hmacKeyB64}") String hmacKeyB64,
+                   @Value("${app.security.keyring-file:}") String keyringFile) {
+        this.repo = repo;
+        this.defaultKeyId = defaultKeyId;
+        this.defaultPair = new KeyPair(aesKeyB64, hmacKeyB64);
+        this.keyringFile = keyringFile.isBlank() ? null : Path.of(keyringFile);
+        // bootstrap: la chiave di default è usabile subito, anche se il DB non è ancora raggiungibile
+        this.keys = Map.of(defaultKeyId, new Entry(defaultPair, defaultPair.crypto()));
+    }
+
+    /**
+     * Crypto per il keyId dell'envelope (null/vuoto = chiave di default).
+     * @throws IllegalStateException se la chiave è sconosciuta o ritirata
+     */
+    public Crypto forKeyId(String keyId) {
+        String id = keyId == null || keyId.isBlank() ? defaultKeyId : keyId;
+        Entry e = keys.get(id);
+        if (e == null) {
+            throw new IllegalStateException("Unknown or retired keyId " + id);
+        }
+        return e.crypto();
+    }
+
+    /**
+     * Come {@link #forKeyId}, ma accetta anche le chiavi RETIRED in key_material, purché il materiale sia
+     * ancora configurato: solo per rielaborare messaggi già salvati, mai per quelli in arrivo.
+     * key_material e materiale sono quelli dell'ultimo refresh (una chiave appena aggiunta è visibile entro
+     * {@code app.security.keyring-refresh-ms}).
+     * @throws IllegalStateException se il keyId non è in key_material o non ne è configurato il materiale
+     * @throws TransientDataAccessResourceException se key_material non è ancora stato letto
+     */
+    public Crypto forHistoricalKeyId(String keyId) {
+        String id = keyId == null || keyId.isBlank() ? defaultKeyId : keyId;
+        Entry e = keys.get(id);
+        if (e != null) {
+            return e.crypto();
+        }
+        Crypto cached = historical.get(id);
+        if (cached != null) {
+            return cached;
+        }
+        Map<String, KeyPair> known = retired;
+        if (known == null) {
+            throw new TransientDataAccessResourceException("Keyring not loaded from key_material yet, keyId " + id);
+        }
+        if (!known.containsKey(id)) {
+            throw new IllegalStateException("Unknown keyId " + id);
+        }
+        KeyPair pair = known.get(id);
+        if (pair == null) {
+            throw new IllegalStateException("No key material configured for retired keyId " + id);
+        }
+        return historical.computeIfAbsent(id, k -> pair.crypto());
+    }
+
+    @PostConstruct
+    @Scheduled(fixedDelayString = "${app.security.keyring-refresh-ms:30000}",
+            initialDelayString = "${app.security.keyring-refresh-ms:30000}")
+    public void refresh() {
+        Map<String, String> status = new HashMap<>();
+        try {
+            repo.findAll().forEach(r -> status.put(r.keyId(), r.status()));
+        } catch (Exception e) {
+            log.warn("Keyring refresh skipped, key_material unavailable: {}", e.getMessage());
+            return;
+        }
+
+        Map<String, KeyPair> material = loadMaterial();
+        Map<String, Entry> current = keys;
+        Map<String, Entry> next = new HashMap<>();
+        Map<String, KeyPair> nextRetired = new HashMap<>();
+        status.forEach((keyId, st) -> {
+            if (!ACTIVE.equals(st)) {
+                nextRetired.put(keyId, material.get(keyId));
+                return;
+            }
+            KeyPair pair = material.get(keyId);
+            if (pair == null) {
+                log.warn("Key {} is ACTIVE in key_material but no key material is configured", keyId);
+                return;
+            }
+            Entry cur = current.get(keyId);
+            try {
+                // stessa chiave => riuso l'istanza (Mac/Cipher per-thread già inizializzati)
+                next.put(keyId, cur != null && cur.pair().equals(pair) ? cur : new Entry(pair, pair.crypto()));
+            } catch (IllegalArgumentException e) {
+                log.warn("Key {} ignored: {}", keyId, e.getMessage());
+            }
+        });
+
+        if (!next.keySet().equals(current.keySet())) {
+            log.info("Keyring updated | active={} (was {})", next.keySet(), current.keySet());
+        }
+        keys = Map.copyOf(next);
+        retired = Collections.unmodifiableMap(nextRetired);
+    }
+
+    private Map<String, KeyPair> loadMaterial() {
+        Map<String, KeyPair> material = new HashMap<>();
+        material.put(defaultKeyId, defaultPair);
+        if (keyringFile == null) return material;
+
+        Properties props = new Properties();
+        try (Reader r = Files.newBufferedReader(keyringFile)) {
+            props.load(r);
+        } catch (IOException e) {
+            log.warn("Keyring file {} unreadable: {}", keyringFile, e.getMessage());
+            return material;
+        }
+        for (String name : props.stringPropertyNames()) {
+            if (!name.endsWith(".aes")) continue;
+            String keyId = name.substring(0, name.length() - ".aes".length());
+            String hmac = props.getProperty(keyId + ".hmac");
+            if (hmac == null) {
+                log.warn("Keyring file: missing {}.hmac", keyId);
+                continue;
+            }
+            material.put(keyId, new KeyPair(props.getProperty(name).trim(), hmac.trim()));
+        }
+        return material;
+    }
+
+    private record KeyPair(String aesKeyB64, String hmacKeyB64) {
+        Crypto crypto() {
+            return new Crypto(aesKeyB64, hmacKeyB64);
+        }
+
+        @Override
+        public String toString() {
+            return "KeyPair[***]"; // mai stampare le chiavi
+        }
+    }
+
+    private record Entry(KeyPair pair, Crypto crypto) {}
+}
@@ -0,0 +1,224 @@
+package it.floro.securemw.processor_svc.security;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Protezione anti-replay con memoria limitata.
+ *
+ * Un messaggio è accettato solo se |now - meta.ts| <= skew; il nonce viene ricordato
+ * solo finché un messaggio con lo stesso ts potrebbe ancora rientrare nella finestra
+ * (cioè fino a ts + skew). I nonce sono raggruppati in bucket temporali per scadenza,
+ * tenuti in un ring di dimensione fissa: un bucket scaduto viene sostituito, non
+ * accumulato, quindi a rate costante la memoria resta costante.
+ *
+ * Controllo dei bucket e inserimento avvengono sotto un lock per nonce (striped): due copie
+ * concorrenti dello stesso nonce con ts diversi finirebbero in bucket diversi e passerebbero entrambe.
+ *
+ * Lo stato può essere salvato su file e ricaricato all'avvio, così un restart non apre
+ * una finestra in cui i nonce recenti tornano accettabili.
+ */
+@Slf4j
+@Component
+public class ReplayGuard {
+
+    private static final int SNAPSHOT_MAGIC = 0x52504731; // "RPG1"
+    private static final int LOCK_STRIPES = 256;
+
+    private final Clock clock;
+    private final long skewMs;
+    private final long bucketMs;
+    private final Path snapshotFile;
+    private final AtomicReferenceArray<Bucket> ring;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    @Autowired
+    public ReplayGuard(@Value("${app.replay.skew:PT5M}") Duration skew,
+                       @Value("${app.replay.buckets-per-skew:4}") int bucketsPerSkew,
+                       @Value("${app.replay.snapshot-file:}") String snapshotFile) {
+        this(Clock.systemUTC(), skew, bucketsPerSkew, snapshotFile.isBlank() ? null : Path.of(snapshotFile));
+    }
+
+    ReplayGuard(Clock clock, Duration skew, int bucketsPerSkew, Path snapshotFile) {
+        if (skew.isNegative() || skew.isZero()) {
+            throw new IllegalArgumentException("app.replay.skew must be > 0");
+        }
+        if (bucketsPerSkew < 1) {
+            throw new IllegalArgumentException("app.replay.buckets-per-skew must be >= 1");
+        }
+        this.clock = clock;
+        this.skewMs = skew.toMillis();
+        this.bucketMs = Math.max(1, skewMs / bucketsPerSkew);
+        this.snapshotFile = snapshotFile;
+        // scadenze possibili in [now, now + 2*skew] => 2*skew/bucket + 1 bucket vivi, +1 di margine
+        this.ring = new AtomicReferenceArray<>((int) (2 * skewMs / bucketMs) + 2);
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    /**
+     * Verifica ts e nonce; se il messaggio è accettabile il nonce viene registrato.
+     * @return istante di accettazione (epoch ms), da portare nei retry del messaggio
+     * @throws IllegalStateException se ts è fuori finestra o il nonce è già stato visto
+     */
+    public long check(String nonce, Instant ts) {
+        if (nonce == null || nonce.isBlank()) {
+            throw new IllegalStateException("Missing nonce");
+        }
+        long now = clock.millis();
+        long t = ts.toEpochMilli();
+        checkWindow(now, ts);
+
+        synchronized (locks[Math.floorMod(nonce.hashCode(), LOCK_STRIPES)]) {
+            // il nonce potrebbe essere stato visto con un ts diverso: controllo tutti i bucket vivi
+            long firstLive = now / bucketMs;
+            long lastLive = (now + 2 * skewMs) / bucketMs;
+            for (long id = firstLive; id <= lastLive; id++) {
+                Bucket b = ring.get(slot(id));
+                if (b != null && b.id == id && b.nonces.contains(nonce)) {
+                    throw new IllegalStateException("Replay detected for nonce " + nonce);
+                }
+            }
+
+            if (!bucketFor((t + skewMs) / bucketMs).nonces.add(nonce)) {
+                throw new IllegalStateException("Replay detected for nonce " + nonce);
+            }
+        }
+        return now;
+    }
+
+    /**
+     * Solo la finestra su ts, senza nonce: per le letture di un micro-batch, coperte dal nonce dell'envelope.
+     * La finestra è centrata su {@code acceptedAt}, l'istante in cui {@link #check} ha accettato il nonce:
+     * l'esito non cambia tra un tentativo e il suo retry.
+     * @throws IllegalStateException se ts è fuori finestra
+     */
+    public void checkWindow(Instant ts, long acceptedAt) {
+        checkWindow(acceptedAt, ts);
+    }
+
+    private void checkWindow(long now, Instant ts) {
+        if (Math.abs(now - ts.toEpochMilli()) > skewMs) {
+            throw new IllegalStateException("Timestamp outside replay window: " + ts);
+        }
+    }
+
+    // Numero di nonce attualmente ricordati (solo bucket vivi).
+    public long size() {
+        long firstLive = clock.millis() / bucketMs;
+        long n = 0;
+        for (int i = 0; i < ring.length(); i++) {
+            Bucket b = ring.get(i);
+            if (b != null && b.id >= firstLive) n += b.nonces.size();
+        }
+        return n;
+    }
+
+    private Bucket bucketFor(long id) {
+        int slot = slot(id);
+        while (true) {
+            Bucket cur = ring.get(slot);
+            if (cur != null && cur.id == id) return cur;
+            if (cur != null && cur.id > id) {
+                // non dovrebbe accadere: id è sempre un bucket vivo
+                throw new IllegalStateException("Replay bucket " + id + " already recycled");
+            }
+            Bucket fresh = new Bucket(id);
+            if (ring.compareAndSet(slot, cur, fresh)) return fresh;
+        }
+    }
+
+    private int slot(long id) {
+        return (int) Math.floorMod(id, (long) ring.length());
+    }
+
+    /* ---------- snapshot ---------- */
+
+    @PostConstruct
+    void load() {
+        if (snapshotFile == null || !Files.exists(snapshotFile)) return;
+        long firstLive = clock.millis() / bucketMs;
+        int loaded = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotFile)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC || in.readLong() != bucketMs) {
+                log.warn("Replay snapshot {} ignored: incompatible format or bucket size", snapshotFile);
+                return;
+            }
+            int buckets = in.readInt();
+            for (int i = 0; i < buckets; i++) {
+                long id = in.readLong();
+                int count = in.readInt();
+                boolean live = id >= firstLive;
+                Bucket b = live ? bucketFor(id) : null;
+                for (int j = 0; j < count; j++) {
+                    String nonce = in.readUTF();
+                    if (live) {
+                        b.nonces.add(nonce);
+                        loaded++;
+                    }
+                }
+            }
+            log.info("Replay snapshot loaded | file={} | nonces={}", snapshotFile, loaded);
+        } catch (IOException e) {
+            log.warn("Replay snapshot {} unreadable: {}", snapshotFile, e.getMessage());
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${app.replay.snapshot-interval-ms:10000}")
+    @PreDestroy
+    public void snapshot() {
+        if (snapshotFile == null) return;
+        long firstLive = clock.millis() / bucketMs;
+        try {
+            Path tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                List<Bucket> live = new ArrayList<>(ring.length());
+                for (int i = 0; i < ring.length(); i++) {
+                    Bucket b = ring.get(i);
+                    if (b != null && b.id >= firstLive) live.add(b);
+                }
+                out.writeInt(SNAPSHOT_MAGIC);
+                out.writeLong(bucketMs);
+                out.writeInt(live.size());
+                for (Bucket b : live) {
+                    // copia: il set può crescere mentre scriviamo
+                    String[] nonces = b.nonces.toArray(new String[0]);
+                    out.writeLong(b.id);
+                    out.writeInt(nonces.length);
+                    for (String n : nonces) out.writeUTF(n);
+                }
+            }
+            Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Replay snapshot to {} failed: {}", snapshotFile, e.getMessage());
+        }
+    }
+
+    private static final class Bucket {
+        final long id;
+        final Set<String> nonces = ConcurrentHashMap.newKeySet();
+
+        Bucket(long id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package it.floro.securemw.processor_svc.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.floro.securemw.processor_svc.db.PartitionRepository;
+import it.floro.securemw.processor_svc.db.PartitionRepository.Table;
+import jakarta.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Gestione delle partizioni giornaliere: pre-crea quelle dei prossimi giorni e applica la
+ * retention eliminando (o archiviando) partizioni intere.
+ *
+ * Gira all'avvio prima dei listener Kafka (i container partono dopo l'init dei singleton),
+ * poi periodicamente.
+ *
+ * Le righe finite nella DEFAULT (partizione mancante al momento dell'insert, ts fuori dai giorni
+ * pre-creati) vengono spostate nella partizione del loro giorno al giro successivo, ma solo per i giorni
+ * tra l'inizio della retention e oggi + premake-days: received_at è il CreateTime scelto dal producer.
+ * Quelle più vecchie vengono eliminate (o archiviate) direttamente dalla DEFAULT; quelle nel futuro
+ * restano lì finché il loro giorno non entra nel premake. Righe residue nella DEFAULT e creazioni fallite
+ * sono esposte come metriche ({@code processor.partitions.default_rows}, {@code processor.partitions.create_failures}).
+ */
+@Slf4j
+@Service
+public class PartitionMaintenance {
+
+    private final PartitionRepository repo;
+    private final boolean enabled;
+    private final int premakeDays;
+    private final int rawRetentionDays;
+    private final int decodedRetentionDays;
+    private final String archiveSchema;
+    private final int defaultDaysPerRun;
+
+    private final Map<Table, AtomicLong> defaultRows = new EnumMap<>(Table.class);
+    private final Map<Table, Counter> createFailures = new EnumMap<>(Table.class);
+
+    public PartitionMaintenance(PartitionRepository repo,
+                                MeterRegistry registry,
+                                @Value("${app.partitions.enabled:true}") boolean enabled,
+                                @Value("${app.partitions.premake-days:3}") int premakeDays,
+                                @Value("${app.partitions.retention.raw-days:30}") int rawRetentionDays,
+                                @Value("${app.partitions.retention.decoded-days:90}") int decodedRetentionDays,
+                                @Value("${app.partitions.retention.archive-schema:}") String archiveSchema,
+                                @Value("${app.partitions.default-days-per-run:31}") int defaultDaysPerRun) {
+        this.repo = repo;
+        this.enabled = enabled;
+        this.premakeDays = premakeDays;
+        this.rawRetentionDays = rawRetentionDays;
+        this.decodedRetentionDays = decodedRetentionDays;
+        this.archiveSchema = archiveSchema;
+        this.defaultDaysPerRun = defaultDaysPerRun;
+        for (Table t : Table.values()) {
+            // -1 finché il conteggio non è riuscito almeno una volta
+            AtomicLong rows = new AtomicLong(-1);
+            defaultRows.put(t, rows);
+            Gauge.builder("processor.partitions.default_rows", rows, AtomicLong::get)
+                    .description("Rows in the DEFAULT partition (not covered by retention)")
+                    .tag("table", t.tableName())
+                    .register(registry);
+            createFailures.put(t, Counter.builder("processor.partitions.create_failures")
+                    .description("Daily partitions that could not be created")
+                    .tag("table", t.tableName())
+                    .register(registry));
+        }
+    }
+
+    @PostConstruct
+    @Scheduled(cron = "${app.partitions.cron:0 5 * * * *}", zone = "UTC")
+    public void run() {
+        if (!enabled) return;
+        LocalDate today = LocalDate.now(ZoneOffset.UTC);
+        for (Table t : Table.values()) {
+            try {
+                LocalDate keepFrom = today.minusDays(retentionDays(t));
+                premake(t, today, keepFrom);
+                applyRetention(t, keepFrom);
+                expireDefault(t, today, keepFrom);
+                defaultRows.get(t).set(repo.countDefault(t));
+            } catch (Exception e) {
+                // DB giù all'avvio o DDL in conflitto: si riprova al prossimo giro
+                log.warn("Partition maintenance failed for {}: {}", t.tableName(), e.getMessage());
+            }
+        }
+        try {
+            repo.deleteErrorsBefore(today.minusDays(rawRetentionDays));
+        } catch (Exception e) {
+            log.warn("processing_errors cleanup failed: {}", e.getMessage());
+        }
+    }
+
+    // Anche ieri: gli eventi di messages_decoded arrivano con qualche minuto di ritardo a cavallo della mezzanotte.
+    // Più i giorni con righe nella DEFAULT, solo dentro [inizio retention, oggi + premake-days].
+    private void premake(Table t, LocalDate today, LocalDate keepFrom) {
+        TreeSet<LocalDate> days = new TreeSet<>(repo.defaultDays(t, keepFrom, today.plusDays(premakeDays), defaultDaysPerRun));
+        for (int d = -1; d <= premakeDays; d++) {
+            days.add(today.plusDays(d));
+        }
+        for (LocalDate day : days) {
+            try {
+                int moved = repo.createDaily(t, day);
+                if (moved > 0) {
+                    log.info("Moved {} rows of {} from {} DEFAULT partition", moved, day, t.tableName());
+                }
+            } catch (Exception e) {
+                createFailures.get(t).increment();
+                log.warn("Cannot create {} partition for {}: {}", t.tableName(), day, e.getMessage());
+            }
+        }
+    }
+
+    // Una partizione è vecchia quando il suo giorno finisce prima dell'inizio della retention.
+    private void applyRetention(Table t, LocalDate keepFrom) {
+        for (Map.Entry<LocalDate, String> p : repo.listDaily(t).entrySet()) {
+            if (!p.getKey().isBefore(keepFrom)) break; // mappa ordinata per giorno
+            if (archiveSchema.isBlank()) {
+                repo.drop(t, p.getValue());
+                log.info("Dropped partition {}", p.getValue());
+            } else {
+                repo.archive(t, p.getValue(), archiveSchema);
+                log.info("Archived partition {} to schema {}", p.getValue(), archiveSchema);
+            }
+        }
+    }
+
+    private void expireDefault(Table t, LocalDate today, LocalDate keepFrom) {
+        int expired = repo.expireDefault(t, keepFrom, archiveSchema);
+        if (expired > 0) {
+            log.info("Expired {} rows before {} from {} DEFAULT partition", expired, keepFrom, t.tableName());
+        }
+        long future = repo.countDefaultAfter(t, today.plusDays(premakeDays));
+        if (future > 0) {
+            log.warn("{} rows in {} DEFAULT partition are dated after {}: producer clock ahead?",
+                    future, t.tableName(), today.plusDays(premakeDays));
+        }
+    }
+
+    private int retentionDays(Table t) {
+        return t == Table.RAW ? rawRetentionDays : decodedRetentionDays;
+    }
+}
@@ -1,34 +1,35 @@
 package it.floro.securemw.processor_svc.service;
 
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import it.floro.securemw.processor_svc.backpressure.DbBackpressure;
 import it.floro.securemw.processor_svc.db.MessageRepository;
+import it.floro.securemw.processor_svc.db.OffsetRepository;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.function.Supplier;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class PersistenceService {
     private final MessageRepository repo;
+    private final OffsetRepository offsets;
+    private final TransactionTemplate tx;
 
-    public UUID saveRaw(String topic,
-                        int partition,
-                        long offset,
-                        ObjectNode meta,
-                        ObjectNode security,
-                        String ciphertextB64,
-                        ObjectNode headers) {
-        try {
-            String metaJson = meta != null ? meta.toString() : "{}";
-            String secJson = security != null ? security.toString() : "{}";
-            String hdrJson = headers != null ? headers.toString() : null;
+    // limite adattivo sulle chiamate al DB, assente con app.backpressure.enabled=false
+    private final ObjectProvider<DbBackpressure> backpressure;
 
-            UUID id = repo.insertRaw(topic, partition, offset, metaJson, secJson, ciphertextB64, hdrJson);
-            return id;
+    public UUID saveRaw(MessageRepository.RawRow row) {
+        try {
+            return limited(() -> repo.insertRaw(row));
         } catch (Exception e) {
             Throwable root = e.getCause() != null ? e.getCause() : e;
             log.error("saveRaw failed: {} - {}", root.getClass().getSimpleName(), root.getMessage());
@@ -36,21 +37,20 @@ public class PersistenceService {
         }
     }
 
-    public void saveDecoded(UUID rawId,
-                            String deviceId,
-                            Instant eventTs,
-                            ObjectNode meta,
-                            ObjectNode payload,
-                            boolean integrityOk,
-                            boolean authOk) {
+    /** @return false se la riga c'era già (riconsegna): niente rollup */
+    public boolean saveDecoded(UUID rawId,
+                               String deviceId,
+                               Instant eventTs,
+                               String traceId,
+                               String payloadJson,
+                               boolean integrityOk,
+                               boolean authOk) {
         try {
             if (eventTs == null) {
                 throw new IllegalArgumentException("eventTs is null (meta.ts mancante o non parsabile)");
             }
-            String metaJson = meta != null ? meta.toString() : "{}";
-            String payloadJson = payload != null ? payload.toString() : "{}";
-
-            repo.insertDecoded(rawId, deviceId, eventTs, metaJson, payloadJson, integrityOk, authOk);
+            var row = new MessageRepository.DecodedRow(rawId, deviceId, eventTs, traceId, payloadJson, integrityOk, authOk);
+            return limited(() -> repo.insertDecoded(row));
         } catch (Exception e) {
             Throwable root = e.getCause() != null ? e.getCause() : e;
             log.error("saveDecoded failed: {} - {}", root.getClass().getSimpleName(), root.getMessage());
@@ -58,12 +58,69 @@ public class PersistenceService {
         }
     }
 
+    // Batch: un round-trip per la intera poll; ritorna gli id raw nello stesso ordine delle righe.
+    public List<UUID> saveRawBatch(List<MessageRepository.RawRow> rows) {
+        if (rows.isEmpty()) return List.of();
+        try {
+            return limited(() -> repo.insertRawBatch(rows));
+        } catch (Exception e) {
+            Throwable root = e.getCause() != null ? e.getCause() : e;
+            log.error("saveRawBatch failed ({} rows): {} - {}", rows.size(), root.getClass().getSimpleName(), root.getMessage());
+            throw new RuntimeException("saveRawBatch failed", e);
+        }
+    }
+
+    // Ritorna le chiavi delle sole righe inserite: quelle già presenti (riconsegne) sono già nei rollup.
+    public Set<MessageRepository.DecodedKey> saveDecodedBatch(List<MessageRepository.DecodedRow> rows) {
+        if (rows.isEmpty()) return Set.of();
+        try {
+            return limited(() -> repo.insertDecodedBatch(rows));
+        } catch (Exception e) {
+            Throwable root = e.getCause() != null ? e.getCause() : e;
+            log.error("saveDecodedBatch failed ({} rows): {} - {}", rows.size(), root.getClass().getSimpleName(), root.getMessage());
+            throw new RuntimeException("persist decoded batch failed", e);
+        }
+    }
+
+    // Modalità transazionale: tutte le scritture di {@code work} in un'unica transazione (rollback su eccezione).
+    public void inTransaction(Runnable work) {
+        limited(() -> {
+            tx.executeWithoutResult(status -> work.run());
+            return null;
+        });
+    }
+
+    public Map<Integer, Long> loadOffsets(String groupId, String topic, List<Integer> partitions) {
+        return offsets.find(groupId, topic, partitions);
+    }
+
+    public void saveOffsets(String groupId, String topic, Map<Integer, Long> nextOffsets) {
+        try {
+            limited(() -> {
+                offsets.save(groupId, topic, nextOffsets);
+                return null;
+            });
+        } catch (Exception e) {
+            Throwable root = e.getCause() != null ? e.getCause() : e;
+            log.error("saveOffsets failed: {} - {}", root.getClass().getSimpleName(), root.getMessage());
+            throw new RuntimeException("saveOffsets failed", e);
+        }
+    }
+
     public void saveError(UUID rawId,
                           String stage,
                           String code,
                           String msg,
                           String dlqTopic,
                           int attempts) {
-        repo.insertError(rawId, stage, code, msg, dlqTopic, attempts);
+        limited(() -> {
+            repo.insertError(rawId, stage, code, msg, dlqTopic, attempts);
+            return null;
+        });
+    }
+
+    private <T> T limited(Supplier<T> work) {
+        DbBackpressure bp = backpressure.getIfAvailable();
+        return bp != null ? bp.call(work) : work.get();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,219 @@
+package it.floro.securemw.processor_svc.spool;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
+
+/**
+ * Journal locale a segmenti di dimensione fissa, scritti tramite memory mapping.
+ *
+ * <pre>
+ * segmento: spool-&lt;seq&gt;.seg, {@code segmentBytes} preallocati (zeri)
+ * record:   int lunghezza (&gt; 0) | int crc32c | payload
+ * fine:     lunghezza 0 (spazio mai scritto) o crc non valido (scrittura interrotta)
+ * </pre>
+ *
+ * Un solo segmento attivo riceve gli append; {@link #rotate()} lo chiude e lo mette in coda
+ * ai segmenti da drenare, che il chiamante legge con {@link #read(Path)} e cancella con
+ * {@link #delete(Path)}. All'apertura i segmenti già presenti nella directory (non drenati
+ * prima di un crash) tornano in coda nell'ordine di scrittura.
+ *
+ * Spazio su disco limitato a {@code maxSegments} segmenti: quando sono tutti occupati
+ * {@link #append} attende che il drenaggio ne liberi uno, fino al timeout.
+ */
+@Slf4j
+public class SpoolJournal implements Closeable {
+
+    static final int ENTRY_HEADER = 8;
+    private static final String PREFIX = "spool-";
+    private static final String SUFFIX = ".seg";
+    private static final String QUARANTINE = "quarantine";
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final int maxSegments;
+
+    // segmenti chiusi, dal più vecchio
+    private final Deque<Path> sealed = new ArrayDeque<>();
+
+    private long nextSeq;
+    private Path activePath;
+    private MappedByteBuffer active;
+    private int syncedPos;
+
+    public SpoolJournal(Path dir, int segmentBytes, int maxSegments) {
+        if (segmentBytes <= ENTRY_HEADER) {
+            throw new IllegalArgumentException("segment size too small: " + segmentBytes);
+        }
+        if (maxSegments < 2) {
+            throw new IllegalArgumentException("max segments must be >= 2");
+        }
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        try {
+            Files.createDirectories(dir);
+            List<Path> existing = listSegments();
+            sealed.addAll(existing);
+            nextSeq = existing.isEmpty() ? 0 : seqOf(existing.get(existing.size() - 1)) + 1;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot open spool directory " + dir, e);
+        }
+        if (!sealed.isEmpty()) {
+            log.info("Spool recovery | dir={} | segments to drain={}", dir, sealed.size());
+        }
+    }
+
+    /**
+     * Aggiunge un record al segmento attivo (durevole solo dopo {@link #sync()}).
+     * @return false se lo spool è pieno e nessun segmento si è liberato entro {@code timeoutMs}
+     */
+    public synchronized boolean append(byte[] payload, long timeoutMs) throws InterruptedException {
+        if (ENTRY_HEADER + payload.length > segmentBytes) {
+            throw new IllegalArgumentException("record larger than spool segment: " + payload.length + " bytes");
+        }
+        if (active == null || active.remaining() < ENTRY_HEADER + payload.length) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            // serve un posto per il nuovo segmento, oltre ai chiusi e all'attivo che verrà chiuso
+            while (sealed.size() + (active != null ? 1 : 0) + 1 > maxSegments) {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) return false;
+                wait(wait);
+            }
+            openNext();
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(payload);
+        active.putInt(payload.length).putInt((int) crc.getValue()).put(payload);
+        return true;
+    }
+
+    /** fsync delle sole pagine scritte dall'ultimo sync. */
+    public synchronized void sync() {
+        if (active == null) return;
+        int pos = active.position();
+        if (pos > syncedPos) {
+            active.force(syncedPos, pos - syncedPos);
+            syncedPos = pos;
+        }
+    }
+
+    /** Chiude il segmento attivo (se contiene dati) e lo mette in coda per il drenaggio. */
+    public synchronized void rotate() {
+        if (active == null || active.position() == 0) return;
+        sync();
+        sealed.addLast(activePath);
+        active = null;
+        activePath = null;
+    }
+
+    /** Segmento chiuso più vecchio, null se non ce ne sono. */
+    public synchronized Path oldest() {
+        return sealed.peekFirst();
+    }
+
+    public synchronized int pendingSegments() {
+        return sealed.size() + (active != null && active.position() > 0 ? 1 : 0);
+    }
+
+    /** Record validi del segmento, fino al primo spazio vuoto o record troncato. */
+    public List<byte[]> read(Path segment) {
+        List<byte[]> out = new ArrayList<>();
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.READ)) {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            CRC32C crc = new CRC32C();
+            while (buf.remaining() >= ENTRY_HEADER) {
+                int len = buf.getInt();
+                int sum = buf.getInt();
+                if (len <= 0 || len > buf.remaining()) break;
+                byte[] payload = new byte[len];
+                buf.get(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != sum) {
+                    log.warn("Spool segment {} truncated at record {} (bad checksum)", segment.getFileName(), out.size());
+                    break;
+                }
+                out.add(payload);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read spool segment " + segment, e);
+        }
+        return out;
+    }
+
+    /** Da chiamare dopo che il contenuto del segmento è stato persistito. */
+    public synchronized void delete(Path segment) {
+        try {
+            Files.deleteIfExists(segment);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot delete spool segment " + segment, e);
+        }
+        sealed.remove(segment);
+        notifyAll();
+    }
+
+    /** Toglie il segmento dalla coda spostandolo in {@code <dir>/quarantine}, per l'analisi manuale. */
+    public synchronized void quarantine(Path segment) {
+        try {
+            Path target = Files.createDirectories(dir.resolve(QUARANTINE)).resolve(segment.getFileName());
+            Files.move(segment, target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot quarantine spool segment " + segment, e);
+        }
+        sealed.remove(segment);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void close() {
+        sync();
+        active = null;
+    }
+
+    private void openNext() {
+        if (active != null) {
+            rotate();
+        }
+        Path path = dir.resolve(String.format("%s%020d%s", PREFIX, nextSeq++, SUFFIX));
+        try (FileChannel ch = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // la mappatura resta valida anche dopo la chiusura del canale
+            active = ch.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot create spool segment " + path, e);
+        }
+        activePath = path;
+        syncedPos = 0;
+    }
+
+    private List<Path> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(p -> {
+                        String n = p.getFileName().toString();
+                        return n.startsWith(PREFIX) && n.endsWith(SUFFIX);
+                    })
+                    .sorted()   // seq a larghezza fissa: ordine lessicografico = ordine di scrittura
+                    .toList();
+        }
+    }
+
+    private static long seqOf(Path segment) {
+        String n = segment.getFileName().toString();
+        return Long.parseLong(n.substring(PREFIX.length(), n.length() - SUFFIX.length()));
+    }
+}
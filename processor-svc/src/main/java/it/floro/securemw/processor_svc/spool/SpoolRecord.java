@@ -0,0 +1,187 @@
+package it.floro.securemw.processor_svc.spool;
+
+import it.floro.securemw.processor_svc.db.MessageRepository.RawRow;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Messaggio in attesa di essere scritto su Postgres: riga raw + letture decodificate (una, o più per
+ * un micro-batch) con i valori per i rollup, oppure, se verify/decrypt è fallito, riga raw + errore
+ * (la riga di processing_errors, come nel percorso diretto) e nessuna lettura.
+ * Stringhe e byte come lunghezza + contenuto (-1 = null), istanti come secondi + nanosecondi epoch
+ * (event_ts fa parte della chiave di messages_decoded: deve restare identico al percorso diretto).
+ */
+public record SpoolRecord(RawRow raw,
+                          List<Reading> readings,
+                          Failure failure) {
+
+    // v1 (security JSON + ciphertext Base64) e v2 (lettura singola) non più lette: drenare lo spool prima di aggiornare.
+    // v3 = v4 senza errore.
+    private static final byte VERSION = 4;
+    private static final byte VERSION_NO_ERROR = 3;
+
+    public SpoolRecord(RawRow raw, List<Reading> readings) {
+        this(raw, readings, null);
+    }
+
+    public static SpoolRecord failed(RawRow raw, Failure failure) {
+        return new SpoolRecord(raw, List.of(), failure);
+    }
+
+    public String deviceId() {
+        return raw.deviceId();
+    }
+
+    public Instant eventTs() {
+        return raw.eventTs();
+    }
+
+    public byte[] encode() {
+        int size = 256 + length(raw.metaJson()) + raw.ciphertext().length;
+        for (Reading r : readings) {
+            size += 32 + length(r.payloadJson()) + 8 * r.sample().length;
+        }
+        if (failure != null) {
+            size += 64 + length(failure.message());
+        }
+        var bytes = new ByteArrayOutputStream(size);
+        try (var out = new DataOutputStream(bytes)) {
+            out.writeByte(VERSION);
+            writeString(out, raw.topic());
+            out.writeInt(raw.partition());
+            out.writeLong(raw.offset());
+            writeInstant(out, raw.receivedAt());
+            writeString(out, raw.deviceId());
+            writeInstant(out, raw.eventTs());
+            writeString(out, raw.traceId());
+            writeString(out, raw.nonce());
+            writeString(out, raw.alg());
+            writeString(out, raw.keyId());
+            writeString(out, raw.metaJson());
+            writeBytes(out, raw.iv());
+            writeBytes(out, raw.sig());
+            writeBytes(out, raw.ciphertext());
+            writeString(out, raw.headersJson());
+            out.writeInt(readings.size());
+            for (Reading r : readings) {
+                writeInstant(out, r.eventTs());
+                writeString(out, r.payloadJson());
+                out.writeShort(r.sample().length);
+                for (double v : r.sample()) {
+                    out.writeDouble(v);
+                }
+            }
+            out.writeBoolean(failure != null);
+            if (failure != null) {
+                writeString(out, failure.stage());
+                writeString(out, failure.code());
+                writeString(out, failure.message());
+                writeString(out, failure.target());
+                out.writeInt(failure.attempts());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static SpoolRecord decode(byte[] data) {
+        try (var in = new DataInputStream(new ByteArrayInputStream(data))) {
+            int version = in.readByte();
+            if (version != VERSION && version != VERSION_NO_ERROR) {
+                throw new IllegalStateException("Unsupported spool record version: " + version);
+            }
+            RawRow raw = new RawRow(
+                    readString(in),
+                    in.readInt(),
+                    in.readLong(),
+                    readInstant(in),
+                    readString(in),
+                    readInstant(in),
+                    readString(in),
+                    readString(in),
+                    readString(in),
+                    readString(in),
+                    readString(in),
+                    readBytes(in),
+                    readBytes(in),
+                    readBytes(in),
+                    readString(in));
+            int count = in.readInt();
+            List<Reading> readings = new ArrayList<>(Math.min(count, 1024));
+            for (int r = 0; r < count; r++) {
+                Instant eventTs = readInstant(in);
+                String payloadJson = readString(in);
+                double[] sample = new double[in.readShort()];
+                for (int i = 0; i < sample.length; i++) {
+                    sample[i] = in.readDouble();
+                }
+                readings.add(new Reading(eventTs, payloadJson, sample));
+            }
+            Failure failure = null;
+            if (version == VERSION && in.readBoolean()) {
+                failure = new Failure(readString(in), readString(in), readString(in), readString(in), in.readInt());
+            }
+            return new SpoolRecord(raw, readings, failure);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Lettura decodificata: event_ts, payload JSON e valori per i rollup. */
+    public record Reading(Instant eventTs, String payloadJson, double[] sample) {}
+
+    /** Riga di processing_errors del messaggio; {@code target} è il topic di retry o la DLQ. */
+    public record Failure(String stage, String code, String message, String target, int attempts) {}
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, s == null ? null : s.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] b = readBytes(in);
+        return b == null ? null : new String(b, StandardCharsets.UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int len = in.readInt();
+        if (len < 0) return null;
+        byte[] b = in.readNBytes(len);
+        if (b.length != len) {
+            throw new EOFException("Truncated spool record");
+        }
+        return b;
+    }
+
+    private static void writeInstant(DataOutputStream out, Instant ts) throws IOException {
+        out.writeLong(ts.getEpochSecond());
+        out.writeInt(ts.getNano());
+    }
+
+    private static Instant readInstant(DataInputStream in) throws IOException {
+        return Instant.ofEpochSecond(in.readLong(), in.readInt());
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+}
@@ -0,0 +1,259 @@
+package it.floro.securemw.processor_svc.spool;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import it.floro.securemw.processor_svc.db.MessageRepository;
+import it.floro.securemw.processor_svc.metrics.PipelineMetrics;
+import it.floro.securemw.processor_svc.metrics.PipelineMetrics.Stage;
+import it.floro.securemw.processor_svc.retry.RetryPolicy;
+import it.floro.securemw.processor_svc.rollup.RollupAggregator;
+import it.floro.securemw.processor_svc.service.PersistenceService;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Spool write-behind del processor ({@code app.spool.enabled=true}, modalità batch).
+ *
+ * Il listener appende i messaggi già decifrati (e quelli falliti, con il loro errore) al
+ * {@link SpoolJournal} e fa fsync prima di restituire la poll: gli offset Kafka vengono committati
+ * solo per dati già durevoli su disco locale, e un Postgres lento non blocca più il thread del consumer.
+ * Il drenaggio periodico carica un segmento alla volta con gli inserimenti multi-riga e lo
+ * cancella dopo il commit; all'avvio drena prima i segmenti rimasti da un crash.
+ * Una riconsegna dopo un crash a metà drenaggio non duplica righe (insert raw/decoded idempotenti)
+ * né aggregati: nei rollup vanno solo le letture davvero inserite.
+ *
+ * Un segmento che non passa in blocco per un errore permanente (o dopo {@code max-drain-attempts}
+ * fallimenti) viene caricato un record per transazione: un record rifiutato lascia raw +
+ * processing_errors, uno illeggibile (o rifiutato anche come raw) resta solo nel segmento, che
+ * finisce in {@code <dir>/quarantine}. Così un record avvelenato non blocca i segmenti successivi.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(name = "app.spool.enabled", havingValue = "true")
+public class SpoolService {
+
+    private final SpoolJournal journal;
+    private final PersistenceService persistence;
+    private final RollupAggregator rollups;
+    private final PipelineMetrics metrics;
+    private final RetryPolicy retryPolicy;
+    private final long fullWaitMs;
+    private final int maxDrainAttempts;
+    private final Counter failedRecords;
+    private final Counter quarantinedSegments;
+
+    // fallimenti consecutivi del segmento più vecchio (solo il thread del drenaggio)
+    private int drainFailures;
+
+    public SpoolService(PersistenceService persistence,
+                        RollupAggregator rollups,
+                        PipelineMetrics metrics,
+                        RetryPolicy retryPolicy,
+                        MeterRegistry registry,
+                        @Value("${app.spool.dir:./spool}") String dir,
+                        @Value("${app.spool.segment-size:64MB}") DataSize segmentSize,
+                        @Value("${app.spool.max-size:1GB}") DataSize maxSize,
+                        @Value("${app.spool.full-wait-ms:30000}") long fullWaitMs,
+                        @Value("${app.spool.max-drain-attempts:5}") int maxDrainAttempts) {
+        this.persistence = persistence;
+        this.rollups = rollups;
+        this.metrics = metrics;
+        this.retryPolicy = retryPolicy;
+        this.fullWaitMs = fullWaitMs;
+        this.maxDrainAttempts = maxDrainAttempts;
+        int segmentBytes = (int) Math.min(Integer.MAX_VALUE, segmentSize.toBytes());
+        int maxSegments = (int) Math.max(2, maxSize.toBytes() / segmentBytes);
+        this.journal = new SpoolJournal(Path.of(dir), segmentBytes, maxSegments);
+        Gauge.builder("processor.spool.segments", journal, SpoolJournal::pendingSegments)
+                .description("Segmenti dello spool in attesa di drenaggio")
+                .register(registry);
+        this.failedRecords = Counter.builder("processor.spool.failed_records")
+                .description("Record dello spool rifiutati da Postgres al drenaggio (raw + processing_errors o quarantena)")
+                .register(registry);
+        this.quarantinedSegments = Counter.builder("processor.spool.quarantined_segments")
+                .description("Segmenti spostati in quarantena con record non caricabili")
+                .register(registry);
+    }
+
+    /**
+     * Appende i record e fa fsync. Con lo spool pieno attende il drenaggio fino a
+     * {@code app.spool.full-wait-ms} (backpressure sulla poll).
+     * @return quanti record, dall'inizio della lista, sono nello spool; i restanti vanno scritti su DB dal chiamante
+     */
+    public int offer(List<SpoolRecord> records) throws InterruptedException {
+        long t = System.nanoTime();
+        int n = 0;
+        while (n < records.size() && journal.append(records.get(n).encode(), fullWaitMs)) {
+            n++;
+        }
+        journal.sync();
+        metrics.lap(Stage.SPOOL_WRITE, t);
+        if (n < records.size()) {
+            log.warn("Spool full after {} ms, {} records go straight to Postgres", fullWaitMs, records.size() - n);
+        }
+        return n;
+    }
+
+    // Segmento attivo chiuso solo a coda vuota: niente segmenti quasi vuoti mentre si recupera un arretrato.
+    @Scheduled(fixedDelayString = "${app.spool.drain-ms:1000}")
+    public void drain() {
+        if (journal.oldest() == null) {
+            journal.rotate();
+        }
+        Path segment;
+        while ((segment = journal.oldest()) != null) {
+            long t = System.nanoTime();
+            List<byte[]> payloads = journal.read(segment);
+            int[] decoded = new int[1];
+            boolean loaded = false;
+            try {
+                List<SpoolRecord> records = payloads.stream().map(SpoolRecord::decode).toList();
+                persistence.inTransaction(() -> decoded[0] = persist(records));
+                loaded = true;
+            } catch (Exception e) {
+                drainFailures++;
+                if (retryPolicy.isTransient(e) && drainFailures < maxDrainAttempts) {
+                    // Postgres ancora giù o lento: il segmento resta su disco, si riprova al prossimo giro
+                    log.warn("Spool drain failed for {} ({} records, attempt {}): {}",
+                            segment.getFileName(), payloads.size(), drainFailures, e.getMessage());
+                    return;
+                }
+                log.warn("Spool drain failed for {} ({} records, attempt {}), loading one record at a time: {}",
+                        segment.getFileName(), payloads.size(), drainFailures, e.getMessage());
+                decoded[0] = drainOneByOne(segment, payloads);
+                if (decoded[0] < 0) {
+                    return;  // Postgres giù: si riprende dal segmento al prossimo giro (insert idempotenti)
+                }
+            }
+            if (loaded) {
+                journal.delete(segment);
+            }
+            drainFailures = 0;
+            metrics.lap(Stage.SPOOL_DRAIN, t);
+            metrics.processed(decoded[0]);
+            log.debug("Spool segment drained | segment={} | records={}", segment.getFileName(), payloads.size());
+        }
+    }
+
+    /**
+     * Ripiego per un segmento che non passa in blocco: un record per transazione.
+     * Il segmento viene cancellato, o messo in quarantena se qualche record non è finito su DB.
+     * @return messaggi decodificati caricati, -1 se Postgres non è disponibile (segmento lasciato in coda)
+     */
+    private int drainOneByOne(Path segment, List<byte[]> payloads) {
+        int decoded = 0;
+        int lost = 0;
+        for (int i = 0; i < payloads.size(); i++) {
+            SpoolRecord r;
+            try {
+                r = SpoolRecord.decode(payloads.get(i));
+            } catch (RuntimeException e) {
+                log.error("Spool record {} of {} unreadable: {}", i, segment.getFileName(), e.getMessage());
+                failedRecords.increment();
+                lost++;
+                continue;
+            }
+            try {
+                int[] n = new int[1];
+                persistence.inTransaction(() -> n[0] = persist(List.of(r)));
+                decoded += n[0];
+                continue;
+            } catch (Exception e) {
+                if (retryPolicy.isTransient(e)) return -1;
+                // permanente: resta l'audit (raw + processing_errors), come per i messaggi rifiutati dal consumer
+                var failure = new SpoolRecord.Failure("PERSIST", "SPOOL_DRAIN_ERROR",
+                        e.getClass().getSimpleName() + ": " + e.getMessage(), null, 1);
+                try {
+                    persistence.inTransaction(() -> persist(List.of(SpoolRecord.failed(r.raw(), failure))));
+                } catch (Exception e2) {
+                    if (retryPolicy.isTransient(e2)) return -1;
+                    log.error("Spool record {} of {} rejected also as raw row: {}", i, segment.getFileName(), e2.getMessage());
+                    lost++;
+                }
+                failedRecords.increment();
+            }
+        }
+        if (lost > 0) {
+            journal.quarantine(segment);
+            quarantinedSegments.increment();
+            log.error("Spool segment {} quarantined: {} of {} records not loaded", segment.getFileName(), lost, payloads.size());
+        } else {
+            journal.delete(segment);
+        }
+        return decoded;
+    }
+
+    public int pendingSegments() {
+        return journal.pendingSegments();
+    }
+
+    @PreDestroy
+    public void close() {
+        journal.close();
+    }
+
+    // Ritorna i messaggi decodificati (esclusi i falliti, che lasciano raw + processing_errors).
+    private int persist(List<SpoolRecord> all) {
+        // un offset riconsegnato dopo un rebalance può comparire due volte nello stesso segmento
+        Map<String, SpoolRecord> unique = new LinkedHashMap<>(all.size() * 2);
+        for (SpoolRecord r : all) {
+            unique.putIfAbsent(r.raw().topic() + ":" + r.raw().partition() + ":" + r.raw().offset(), r);
+        }
+        List<SpoolRecord> records = new ArrayList<>(unique.values());
+
+        List<MessageRepository.RawRow> rawRows = new ArrayList<>(records.size());
+        for (SpoolRecord r : records) {
+            rawRows.add(r.raw());
+        }
+        List<UUID> rawIds = persistence.saveRawBatch(rawRows);
+
+        int decoded = 0;
+        for (int i = 0; i < records.size(); i++) {
+            SpoolRecord.Failure f = records.get(i).failure();
+            if (f != null) {
+                persistence.saveError(rawIds.get(i), f.stage(), f.code(), f.message(), f.target(), f.attempts());
+            } else {
+                decoded++;
+            }
+        }
+
+        List<MessageRepository.DecodedRow> decodedRows = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            SpoolRecord r = records.get(i);
+            for (SpoolRecord.Reading reading : r.readings()) {
+                decodedRows.add(new MessageRepository.DecodedRow(
+                        rawIds.get(i), r.deviceId(), reading.eventTs(), r.raw().traceId(), reading.payloadJson(), true, true));
+            }
+        }
+        // segmento già drenato prima di un crash (commit fatto, delete no): nessuna riga nuova, nessun delta
+        Set<MessageRepository.DecodedKey> inserted = persistence.saveDecodedBatch(decodedRows);
+
+        RollupAggregator.Delta delta = rollups.delta();
+        int sampleSize = rollups.newSample().length;
+        for (int i = 0; i < records.size(); i++) {
+            SpoolRecord r = records.get(i);
+            for (SpoolRecord.Reading reading : r.readings()) {
+                if (reading.sample().length == sampleSize  // metriche di rollup cambiate dopo la scrittura: si salta
+                        && inserted.contains(MessageRepository.DecodedKey.of(rawIds.get(i), reading.eventTs()))) {
+                    delta.add(r.deviceId(), reading.eventTs(), reading.sample());
+                }
+            }
+        }
+        delta.write();
+        return decoded;
+    }
+}
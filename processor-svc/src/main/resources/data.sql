@@ -3,6 +3,12 @@ INSERT INTO device_registry (device_id, owner, model, fw_version, enabled, min_a
 VALUES ('cnc-23', 'Reparto CNC', 'CNC-X200', '1.0.3', TRUE, 'AES-256-GCM+HMAC-SHA256')
 ON CONFLICT (device_id) DO NOTHING;
 
+-- Device del generatore di carico del producer (app.load.*): load-0001 .. load-1000
+INSERT INTO device_registry (device_id, owner, model, fw_version, enabled, min_algo)
+SELECT 'load-' || lpad(g::text, 4, '0'), 'Load test', 'SIM', '0.0.0', TRUE, 'AES-256-GCM+HMAC-SHA256'
+FROM generate_series(1, 1000) AS g
+ON CONFLICT (device_id) DO NOTHING;
+
 -- Seeding chiavi
 INSERT INTO key_material (key_id, algo, status)
 VALUES ('k-2025-01', 'AES-256-GCM+HMAC-SHA256', 'ACTIVE')
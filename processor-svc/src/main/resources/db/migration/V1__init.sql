@@ -7,6 +7,13 @@
 CREATE EXTENSION IF NOT EXISTS "uuid-ossp";
 CREATE EXTENSION IF NOT EXISTS "pgcrypto";
 
+-- NB: messages_raw e messages_decoded sono partizionate per giorno (UTC).
+-- Le partizioni giornaliere (<tabella>_pYYYYMMDD) le crea e le elimina il processor
+-- (PartitionMaintenance); qui solo le tabelle padre e la partizione DEFAULT di riserva.
+-- Le tabelle create prima del partizionamento (heap) vanno ricreate: IF NOT EXISTS non le converte.
+-- Lo stesso vale per il layout compatto di messages_raw (colonne tipizzate + bytea, senza
+-- security/ciphertext_b64) e per messages_decoded senza meta: la forma precedente è nelle viste della sezione 8.
+
 -- ============================================================
 -- 1) RAW MESSAGES
 -- Memorizza i messaggi esattamente come ricevuti dal broker
@@ -14,25 +21,39 @@ CREATE EXTENSION IF NOT EXISTS "pgcrypto";
 -- ============================================================
 
 CREATE TABLE IF NOT EXISTS messages_raw (
-    id               UUID PRIMARY KEY DEFAULT uuid_generate_v4(),
+    id               UUID NOT NULL DEFAULT uuid_generate_v4(),
     topic            TEXT NOT NULL,
     kafka_partition  INT NOT NULL,
     kafka_offset     BIGINT NOT NULL,
-    received_at      TIMESTAMPTZ NOT NULL DEFAULT now(),
-
-    meta             JSONB NOT NULL,     -- deviceId, traceId, ts, schema, nonce...
-    security         JSONB NOT NULL,     -- iv, sig, alg...
-    ciphertext_b64   TEXT NOT NULL,
+    received_at      TIMESTAMPTZ NOT NULL DEFAULT now(),  -- timestamp del record Kafka: stabile sulle riconsegne
+
+    -- campi di meta promossi a colonne (tolti dal JSONB per non salvarli due volte)
+    device_id        TEXT NOT NULL,
+    event_ts         TIMESTAMPTZ NOT NULL,
+    trace_id         TEXT,
+    nonce            TEXT NOT NULL,
+
+    alg              TEXT NOT NULL,      -- security.alg, suffisso del codec compreso
+    key_id           TEXT,
+    meta             JSONB NOT NULL,     -- resto di meta (schema, campi aggiuntivi)
+    iv               BYTEA NOT NULL,
+    sig              BYTEA NOT NULL,
+    ciphertext       BYTEA NOT NULL,     -- byte grezzi: un terzo in meno del Base64, niente decodifica
     headers          JSONB,
 
-    UNIQUE(topic, kafka_partition, kafka_offset)
-);
+    -- la chiave di partizionamento deve far parte di PK e UNIQUE
+    PRIMARY KEY (id, received_at),
+    UNIQUE(topic, kafka_partition, kafka_offset, received_at)
+) PARTITION BY RANGE (received_at);
+
+CREATE TABLE IF NOT EXISTS messages_raw_default
+    PARTITION OF messages_raw DEFAULT;
 
 CREATE INDEX IF NOT EXISTS idx_messages_raw_received_at 
     ON messages_raw(received_at);
 
-CREATE INDEX IF NOT EXISTS idx_messages_raw_meta_gin 
-    ON messages_raw USING GIN(meta);
+CREATE INDEX IF NOT EXISTS idx_messages_raw_device
+    ON messages_raw(device_id, received_at);
 
 -- ============================================================
 -- 2) DECODED MESSAGES
@@ -40,16 +61,21 @@ CREATE INDEX IF NOT EXISTS idx_messages_raw_meta_gin
 -- ============================================================
 
 CREATE TABLE IF NOT EXISTS messages_decoded (
-    id              UUID PRIMARY KEY,   -- stesso id del raw
+    id              UUID NOT NULL,      -- stesso id del raw
     device_id       TEXT NOT NULL,
     event_ts        TIMESTAMPTZ NOT NULL,
+    trace_id        TEXT,               -- unico campo di meta ripetuto: la retention del raw è più breve
     processed_at    TIMESTAMPTZ NOT NULL DEFAULT now(),
 
-    meta            JSONB NOT NULL,
-    payload         JSONB NOT NULL,
+    payload         JSONB NOT NULL,     -- meta completo in messages_raw (stesso id)
     integrity_ok    BOOLEAN NOT NULL,
-    auth_ok         BOOLEAN NOT NULL
-);
+    auth_ok         BOOLEAN NOT NULL,
+
+    PRIMARY KEY (id, event_ts)
+) PARTITION BY RANGE (event_ts);
+
+CREATE TABLE IF NOT EXISTS messages_decoded_default
+    PARTITION OF messages_decoded DEFAULT;
 
 CREATE INDEX IF NOT EXISTS idx_messages_decoded_device_ts 
     ON messages_decoded(device_id, event_ts);
@@ -64,15 +90,21 @@ CREATE INDEX IF NOT EXISTS idx_messages_decoded_payload_gin
 
 CREATE TABLE IF NOT EXISTS processing_errors (
     id              UUID PRIMARY KEY DEFAULT uuid_generate_v4(),
-    raw_id          UUID NOT NULL REFERENCES messages_raw(id) ON DELETE CASCADE,
+    -- niente FK verso messages_raw (partizionata): le partizioni si eliminano con DROP,
+    -- gli errori vecchi li pulisce il job di retention
+    raw_id          UUID NOT NULL,
     stage           TEXT NOT NULL,  -- VERIFY | DECRYPT | PERSIST
     error_code      TEXT,
     error_msg       TEXT,
     error_at        TIMESTAMPTZ NOT NULL DEFAULT now(),
-    dlq_topic       TEXT,
+    dlq_topic       TEXT,           -- ultima destinazione: topic di retry o DLQ
     attempts        INT DEFAULT 1
 );
 
+-- una riga per messaggio, aggiornata a ogni tentativo
+CREATE UNIQUE INDEX IF NOT EXISTS ux_processing_errors_raw_id
+    ON processing_errors(raw_id);
+
 CREATE INDEX IF NOT EXISTS idx_processing_errors_stage 
     ON processing_errors(stage);
 
@@ -110,3 +142,113 @@ CREATE TABLE IF NOT EXISTS key_material (
 CREATE INDEX IF NOT EXISTS idx_key_material_status 
     ON key_material(status);
 
+-- ============================================================
+-- 6) ROLLUP
+-- Aggregati per device/metrica su bucket di minuto, ora e giorno,
+-- mantenuti dal processor con upsert incrementali (vedi RollupAggregator)
+-- ============================================================
+
+CREATE TABLE IF NOT EXISTS telemetry_rollups (
+    device_id       TEXT NOT NULL,
+    metric          TEXT NOT NULL,      -- temperature, vibration, ...
+    granularity     TEXT NOT NULL CHECK (granularity IN ('1m', '1h', '1d')),
+    bucket_start    TIMESTAMPTZ NOT NULL,
+    cnt             BIGINT NOT NULL,
+    min_value       DOUBLE PRECISION NOT NULL,
+    max_value       DOUBLE PRECISION NOT NULL,
+    sum_value       DOUBLE PRECISION NOT NULL,
+    last_value      DOUBLE PRECISION NOT NULL,
+    last_ts         TIMESTAMPTZ NOT NULL,
+    updated_at      TIMESTAMPTZ NOT NULL DEFAULT now(),
+
+    PRIMARY KEY (device_id, metric, granularity, bucket_start)
+);
+
+-- ============================================================
+-- 7) CONSUMER OFFSETS
+-- Prossimo offset da leggere per partizione, scritto nella stessa
+-- transazione dei messaggi (app.consumer.batch.transactional)
+-- ============================================================
+
+CREATE TABLE IF NOT EXISTS consumer_offsets (
+    group_id        TEXT NOT NULL,
+    topic           TEXT NOT NULL,
+    kafka_partition INT NOT NULL,
+    next_offset     BIGINT NOT NULL,
+    updated_at      TIMESTAMPTZ NOT NULL DEFAULT now(),
+
+    PRIMARY KEY (group_id, topic, kafka_partition)
+);
+
+-- ============================================================
+-- 8) VISTE DI COMPATIBILITÀ
+-- Forma precedente al layout compatto (meta completo, security JSONB,
+-- ciphertext in Base64) per query e strumenti esistenti
+-- ============================================================
+
+CREATE OR REPLACE VIEW messages_raw_compat AS
+SELECT r.id,
+       r.topic,
+       r.kafka_partition,
+       r.kafka_offset,
+       r.received_at,
+       -- ts ricostruito da event_ts: stesso istante, testo normalizzato ai microsecondi
+       r.meta || jsonb_strip_nulls(jsonb_build_object(
+               'deviceId', r.device_id,
+               'ts', to_char(r.event_ts AT TIME ZONE 'UTC', 'YYYY-MM-DD"T"HH24:MI:SS.US"Z"'),
+               'traceId', r.trace_id,
+               'nonce', r.nonce)) AS meta,
+       jsonb_strip_nulls(jsonb_build_object(
+               'alg', r.alg,
+               'keyId', r.key_id,
+               'iv', encode(r.iv, 'base64'),
+               'sig', encode(r.sig, 'base64'))) AS security,
+       -- encode(..., 'base64') va a capo ogni 76 caratteri
+       translate(encode(r.ciphertext, 'base64'), E'\n', '') AS ciphertext_b64,
+       r.headers
+FROM messages_raw r;
+
+-- LEFT JOIN: messages_decoded resta più a lungo di messages_raw (retention 90 vs 30 giorni); oltre la
+-- retention del raw meta si riduce ai campi salvati sul decodificato (deviceId, ts = event_ts, traceId)
+CREATE OR REPLACE VIEW messages_decoded_compat AS
+SELECT d.id,
+       d.device_id,
+       d.event_ts,
+       d.processed_at,
+       COALESCE(r.meta, jsonb_strip_nulls(jsonb_build_object(
+               'deviceId', d.device_id,
+               'ts', to_char(d.event_ts AT TIME ZONE 'UTC', 'YYYY-MM-DD"T"HH24:MI:SS.US"Z"'),
+               'traceId', d.trace_id))) AS meta,
+       d.payload,
+       d.integrity_ok,
+       d.auth_ok
+FROM messages_decoded d
+LEFT JOIN messages_raw_compat r ON r.id = d.id;
+
+-- ============================================================
+-- 9) REPROCESS JOBS
+-- Rielaborazione di messages_raw (verify + decrypt + upsert in messages_decoded)
+-- con checkpoint per riprendere i job lunghi (vedi ReprocessService)
+-- ============================================================
+
+CREATE TABLE IF NOT EXISTS reprocess_jobs (
+    id                  UUID PRIMARY KEY DEFAULT uuid_generate_v4(),
+    from_ts             TIMESTAMPTZ NOT NULL,   -- filtro su received_at: [from_ts, to_ts)
+    to_ts               TIMESTAMPTZ NOT NULL,
+    device_id           TEXT,                   -- null = tutti i device
+    error_stage         TEXT,                   -- solo messaggi con processing_errors.stage uguale
+    status              TEXT NOT NULL CHECK (status IN ('RUNNING', 'DONE', 'FAILED', 'CANCELLED')),
+
+    -- ultimo messaggio completato, in ordine (received_at, id): si riparte da qui
+    cursor_received_at  TIMESTAMPTZ,
+    cursor_id           UUID,
+    replayed            BIGINT NOT NULL DEFAULT 0,
+    failed              BIGINT NOT NULL DEFAULT 0,
+    last_error          TEXT,
+
+    created_at          TIMESTAMPTZ NOT NULL DEFAULT now(),
+    updated_at          TIMESTAMPTZ NOT NULL DEFAULT now()
+);
+
+CREATE INDEX IF NOT EXISTS idx_reprocess_jobs_status
+    ON reprocess_jobs(status);
@@ -0,0 +1,133 @@
+package it.floro.securemw.processor_svc;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.floro.securemw.common.crypto.Crypto;
+import it.floro.securemw.processor_svc.envelope.EnvelopeParser;
+import it.floro.securemw.processor_svc.metrics.PipelineMetrics;
+import it.floro.securemw.processor_svc.retry.RetryPolicy;
+import it.floro.securemw.processor_svc.retry.RetryState;
+import it.floro.securemw.processor_svc.retry.RetryStateSigner;
+import it.floro.securemw.processor_svc.rollup.RollupAggregator;
+import it.floro.securemw.processor_svc.security.DeviceRegistry;
+import it.floro.securemw.processor_svc.security.KeyRing;
+import it.floro.securemw.processor_svc.security.ReplayGuard;
+import it.floro.securemw.processor_svc.service.PersistenceService;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.kafka.core.KafkaTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class TelemetryConsumerTest {
+
+    private static final String KEY = Base64.getEncoder().encodeToString(new byte[32]);
+
+    private final Crypto crypto = new Crypto(KEY, KEY);
+    private final RetryStateSigner signer = new RetryStateSigner("", KEY);
+    private final DeviceRegistry registry = mock(DeviceRegistry.class);
+    private final PersistenceService persistence = mock(PersistenceService.class);
+    private final ReplayGuard replayGuard = new ReplayGuard(Duration.ofMinutes(5), 4, "");
+    @SuppressWarnings("unchecked")
+    private final KafkaTemplate<String, byte[]> kafka = mock(KafkaTemplate.class);
+
+    private TelemetryConsumer consumer;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void setUp() {
+        KeyRing keyRing = mock(KeyRing.class);
+        when(keyRing.forKeyId(any())).thenReturn(crypto);
+        when(kafka.send(any(ProducerRecord.class))).thenReturn(new CompletableFuture<>());
+        consumer = new TelemetryConsumer(new EnvelopeParser(new ObjectMapper()), keyRing, kafka, "telemetry.dlq",
+                persistence, replayGuard, registry, mock(ObjectProvider.class),
+                new PipelineMetrics(new SimpleMeterRegistry()),
+                new RetryPolicy(true, "telemetry.retry", List.of(Duration.ofSeconds(1), Duration.ofSeconds(10))),
+                signer,
+                mock(RollupAggregator.class), mock(ObjectProvider.class),
+                false, false, "processor", "telemetry.v1");
+    }
+
+    @Test
+    void registryFailureOnFirstAttemptLeavesNonceToTheRetry() throws Exception {
+        doThrow(new QueryTimeoutException("registry slow")).doNothing().when(registry).check(any(), any());
+        byte[] envelope = envelope("n-1");
+
+        consumer.onMessage(new ConsumerRecord<>("telemetry.v1", 0, 10L, "cnc-23", envelope));
+        ProducerRecord<String, byte[]> retry = sent(1);
+        assertThat(retry.topic()).isEqualTo("telemetry.retry.1");
+        assertThat(stateOf(retry).nonceAccepted()).isFalse();
+        assertThat(replayGuard.size()).isZero();
+
+        // il retry controlla e registra il nonce
+        consumer.onRetry(retried(retry));
+        verify(persistence).saveDecoded(any(), any(), any(), any(), any(), anyBoolean(), anyBoolean());
+        assertThat(replayGuard.size()).isEqualTo(1);
+
+        // una copia del retry, senza segno di nonce accettato, è un replay
+        consumer.onRetry(retried(retry));
+        assertThat(sent(2).topic()).isEqualTo("telemetry.dlq");
+    }
+
+    @Test
+    void retryAfterAcceptedNonceSkipsReplayCheck() throws Exception {
+        doNothing().when(registry).check(any(), any());
+        when(persistence.saveRaw(any())).thenThrow(new QueryTimeoutException("db slow")).thenReturn(UUID.randomUUID());
+
+        consumer.onMessage(new ConsumerRecord<>("telemetry.v1", 0, 10L, "cnc-23", envelope("n-2")));
+        ProducerRecord<String, byte[]> retry = sent(1);
+        assertThat(retry.topic()).isEqualTo("telemetry.retry.1");
+        assertThat(stateOf(retry).nonceAccepted()).isTrue();
+
+        consumer.onRetry(retried(retry));
+        verify(persistence).saveDecoded(any(), any(), any(), any(), any(), anyBoolean(), anyBoolean());
+    }
+
+    @SuppressWarnings("unchecked")
+    private ProducerRecord<String, byte[]> sent(int times) {
+        ArgumentCaptor<ProducerRecord<String, byte[]>> captor = ArgumentCaptor.forClass(ProducerRecord.class);
+        verify(kafka, times(times)).send(captor.capture());
+        return captor.getValue();
+    }
+
+    private static ConsumerRecord<String, byte[]> retried(ProducerRecord<String, byte[]> out) {
+        var record = new ConsumerRecord<>(out.topic(), 0, 1L, out.key(), out.value());
+        out.headers().forEach(h -> record.headers().add(h));
+        return record;
+    }
+
+    private RetryState stateOf(ProducerRecord<String, byte[]> out) {
+        return signer.from(retried(out));
+    }
+
+    private byte[] envelope(String nonce) {
+        Crypto.EncResult enc = crypto.encrypt("{\"temperature\":71.5}".getBytes(StandardCharsets.UTF_8));
+        String meta = "{\"schema\":\"telemetry.v1\",\"deviceId\":\"cnc-23\",\"ts\":\"" + Instant.now()
+                + "\",\"traceId\":\"t-1\",\"nonce\":\"" + nonce + "\"}";
+        String security = "{\"alg\":\"AES-256-GCM+HMAC-SHA256\",\"iv\":\"" + Crypto.b64(enc.iv())
+                + "\",\"sig\":\"" + Crypto.b64(crypto.sign(enc.iv(), enc.ciphertext())) + "\"}";
+        return ("{\"meta\":" + meta + ",\"security\":" + security + ",\"ciphertext\":\""
+                + Crypto.b64(enc.ciphertext()) + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+}
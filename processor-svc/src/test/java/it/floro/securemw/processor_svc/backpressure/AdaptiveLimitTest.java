@@ -0,0 +1,74 @@
+package it.floro.securemw.processor_svc.backpressure;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AdaptiveLimitTest {
+
+    private static final long TARGET = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final AtomicLong now = new AtomicLong(1_000_000_000L);
+
+    private AdaptiveLimit limit(int initial, long maxWaitNanos) {
+        return new AdaptiveLimit(1, 16, initial, TARGET, 0.7, maxWaitNanos, now::get);
+    }
+
+    @Test
+    void slowCallsShrinkLimitOncePerInterval() throws Exception {
+        AdaptiveLimit limit = limit(8, 0);
+
+        limit.acquire();
+        limit.acquire();
+        limit.release(2 * TARGET, false);
+        assertThat(limit.limit()).isEqualTo(5);
+
+        // stessa raffica di risposte lente: nessuna seconda riduzione
+        limit.release(2 * TARGET, false);
+        assertThat(limit.limit()).isEqualTo(5);
+
+        now.addAndGet(3 * TARGET);
+        limit.overload();
+        assertThat(limit.limit()).isEqualTo(3);
+    }
+
+    @Test
+    void fastCallsGrowLimitOnlyWhenItIsInUse() throws Exception {
+        AdaptiveLimit limit = limit(2, 0);
+
+        limit.acquire();
+        limit.release(TARGET / 2, false);
+        assertThat(limit.limit()).isEqualTo(2);
+
+        for (int i = 0; i < 3; i++) {
+            limit.acquire();
+            limit.acquire();
+            limit.release(TARGET / 2, false);
+            limit.release(TARGET / 2, false);
+        }
+        assertThat(limit.limit()).isEqualTo(3);
+        assertThat(limit.inFlight()).isZero();
+    }
+
+    @Test
+    void acquireProceedsOverLimitAfterMaxWait() throws Exception {
+        AdaptiveLimit limit = limit(1, 0);
+
+        assertThat(limit.acquire()).isTrue();
+        assertThat(limit.acquire()).isFalse();
+        assertThat(limit.inFlight()).isEqualTo(2);
+    }
+
+    @Test
+    void limitNeverDropsBelowMinimum() {
+        AdaptiveLimit limit = limit(4, 0);
+        for (int i = 0; i < 10; i++) {
+            now.addAndGet(2 * TARGET);
+            limit.overload();
+        }
+        assertThat(limit.limit()).isEqualTo(1);
+    }
+}
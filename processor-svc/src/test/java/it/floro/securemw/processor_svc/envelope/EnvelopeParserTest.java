@@ -0,0 +1,232 @@
+package it.floro.securemw.processor_svc.envelope;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import it.floro.securemw.common.crypto.Crypto;
+import it.floro.securemw.common.crypto.PayloadCodec;
+import it.floro.securemw.common.envelope.BinaryEnvelope;
+import it.floro.securemw.common.envelope.EnvelopeAad;
+import it.floro.securemw.common.envelope.EnvelopeAlg;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class EnvelopeParserTest {
+
+    private static final String META =
+            "{\"schema\":\"telemetry.v1\",\"deviceId\":\"cnc-23\",\"ts\":\"2025-01-01T00:00:00Z\",\"x\":{\"y\":[1,2]},\"nonce\":\"n-1\"}";
+
+    private final EnvelopeParser parser = new EnvelopeParser(new ObjectMapper());
+
+    @Test
+    void jsonEnvelopeKeepsOriginalMetaAndSecurityFields() throws Exception {
+        String security = "{\"alg\":\"AES-256-GCM+HMAC-SHA256\",\"keyId\":\"k1\",\"iv\":\"" + b64(12) + "\",\"sig\":\"" + b64(32) + "\"}";
+        String json = "{ \"meta\" : " + META + ", \"extra\":[1,{\"a\":2}], \"security\":" + security
+                + ", \"ciphertext\":\"" + b64(40) + "\"}";
+
+        Envelope env = parser.parse(json.getBytes(StandardCharsets.UTF_8));
+
+        assertThat(env.format()).isEqualTo(Envelope.Format.JSON);
+        assertThat(env.metaJson()).isEqualTo(META);
+        assertThat(env.alg()).isEqualTo("AES-256-GCM+HMAC-SHA256");
+        assertThat(env.algWithCodec()).isEqualTo("AES-256-GCM+HMAC-SHA256");
+        assertThat(env.deviceId()).isEqualTo("cnc-23");
+        assertThat(env.ts()).isEqualTo("2025-01-01T00:00:00Z");
+        assertThat(env.nonce()).isEqualTo("n-1");
+        assertThat(env.keyId()).isEqualTo("k1");
+        assertThat(env.iv().remaining()).isEqualTo(12);
+        assertThat(env.ciphertext().remaining()).isEqualTo(40);
+        assertThat(env.codec()).isEqualTo(PayloadCodec.NONE);
+    }
+
+    @Test
+    void codecIsSplitFromAlgInBothFormats() throws Exception {
+        String security = "{\"alg\":\"AES-256-GCM+HMAC-SHA256+DEFLATE-DICT\",\"iv\":\"" + b64(12) + "\",\"sig\":\"" + b64(32) + "\"}";
+        String json = "{\"meta\":" + META + ",\"security\":" + security + ",\"ciphertext\":\"" + b64(40) + "\"}";
+        byte[] binary = BinaryEnvelope.encode(EnvelopeAlg.AES256_GCM_HMAC_SHA256, PayloadCodec.DEFLATE, null,
+                META.getBytes(StandardCharsets.UTF_8), new byte[12], new byte[32], new byte[40]);
+
+        Envelope fromJson = parser.parse(json.getBytes(StandardCharsets.UTF_8));
+        Envelope fromBinary = parser.parse(binary);
+
+        assertThat(fromJson.alg()).isEqualTo("AES-256-GCM+HMAC-SHA256");
+        assertThat(fromJson.codec()).isEqualTo(PayloadCodec.DEFLATE_DICT);
+        assertThat(fromBinary.alg()).isEqualTo("AES-256-GCM+HMAC-SHA256");
+        assertThat(fromBinary.codec()).isEqualTo(PayloadCodec.DEFLATE);
+        assertThat(fromJson.algWithCodec()).isEqualTo("AES-256-GCM+HMAC-SHA256+DEFLATE-DICT");
+        assertThat(fromBinary.algWithCodec()).isEqualTo("AES-256-GCM+HMAC-SHA256+DEFLATE");
+    }
+
+    @Test
+    void aadEnvelopeAuthenticatesMetaInBothFormats() throws Exception {
+        Crypto crypto = new Crypto(b64(32), b64(32));
+        String alg = EnvelopeAlg.AES256_GCM_AAD.algName();
+        byte[] aad = EnvelopeAad.encode(alg, "k1", "cnc-23", Instant.parse("2025-01-01T00:00:00Z"), null, "n-1");
+        Crypto.EncResult enc = crypto.encryptWithAad("{\"t\":1}".getBytes(StandardCharsets.UTF_8), aad);
+        String security = "{\"alg\":\"" + alg + "\",\"keyId\":\"k1\",\"iv\":\"" + Crypto.b64(enc.iv()) + "\"}";
+        String json = "{\"meta\":" + META + ",\"security\":" + security
+                + ",\"ciphertext\":\"" + Crypto.b64(enc.ciphertext()) + "\"}";
+        byte[] binary = BinaryEnvelope.encode(EnvelopeAlg.AES256_GCM_AAD, PayloadCodec.NONE, "k1",
+                META.getBytes(StandardCharsets.UTF_8), enc.iv(), new byte[0], enc.ciphertext());
+
+        for (byte[] record : new byte[][]{json.getBytes(StandardCharsets.UTF_8), binary}) {
+            Envelope env = parser.parse(record);
+            assertThat(env.sig().remaining()).isZero();
+            assertThat(decrypt(crypto, env)).isEqualTo("{\"t\":1}");
+        }
+
+        // meta alterato (deviceId): il tag GCM non torna
+        Envelope tampered = parser.parse(json.replace("cnc-23", "cnc-24").getBytes(StandardCharsets.UTF_8));
+        assertThatThrownBy(() -> decrypt(crypto, tampered)).isInstanceOf(RuntimeException.class);
+    }
+
+    private static String decrypt(Crypto crypto, Envelope env) {
+        byte[] aad = EnvelopeAad.forEnvelope(env.algWithCodec(), env.keyId(), env.deviceId(), Instant.parse(env.ts()),
+                env.traceId(), env.nonce());
+        assertThat(aad).isNotNull();
+        byte[] plain = new byte[Crypto.plaintextLength(env.ciphertext().remaining())];
+        int n = crypto.decrypt(env.iv(), env.ciphertext().duplicate(), ByteBuffer.wrap(plain), aad);
+        return new String(plain, 0, n, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    void compressedPayloadRoundTripsWithinLimit() {
+        byte[] payload = "{\"temperature\":71.3,\"vibration\":0.012}".getBytes(StandardCharsets.UTF_8);
+
+        PayloadCodec.Compressed c = PayloadCodec.DEFLATE_DICT.compress(payload, 0);
+
+        assertThat(c.codec()).isEqualTo(PayloadCodec.DEFLATE_DICT);
+        assertThat(c.data().length).isLessThan(payload.length);
+        assertThat(c.codec().decompress(c.data(), 0, c.data().length, 1024)).isEqualTo(payload);
+        assertThatThrownBy(() -> c.codec().decompress(c.data(), 0, c.data().length, 10))
+                .isInstanceOf(IllegalStateException.class);
+        // senza dizionario un payload così piccolo non si riduce: resta in chiaro
+        assertThat(PayloadCodec.DEFLATE.compress(payload, 0).codec()).isEqualTo(PayloadCodec.NONE);
+    }
+
+    @Test
+    void binaryEnvelopeSlicesMetaFromRecord() throws Exception {
+        byte[] record = BinaryEnvelope.encode(EnvelopeAlg.AES256_GCM_HMAC_SHA256, "k1",
+                META.getBytes(StandardCharsets.UTF_8), new byte[12], new byte[32], new byte[40]);
+
+        Envelope env = parser.parse(record);
+
+        assertThat(env.format()).isEqualTo(Envelope.Format.BINARY);
+        assertThat(env.metaJson()).isEqualTo(META);
+        assertThat(env.deviceId()).isEqualTo("cnc-23");
+        assertThat(env.alg()).isEqualTo("AES-256-GCM+HMAC-SHA256");
+        assertThat(env.keyId()).isEqualTo("k1");
+        assertThat(env.sig().remaining()).isEqualTo(32);
+    }
+
+    @Test
+    void payloadMustBeASingleJsonObject() throws Exception {
+        byte[] buf = "xx{\"temperature\":71.3,\"n\":{\"z\":[]}}yy".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(parser.payloadJson(buf, 2, buf.length - 4)).isEqualTo("{\"temperature\":71.3,\"n\":{\"z\":[]}}");
+        assertThatThrownBy(() -> parser.payloadJson(buf, 2, buf.length - 3)).isInstanceOf(Exception.class);
+        assertThatThrownBy(() -> parser.payloadJson("[1]".getBytes(), 0, 3)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void batchPayloadYieldsOrderedReadings() throws Exception {
+        Instant t0 = Instant.parse("2025-01-01T00:00:00.000001Z");
+        String batch = " [{\"ts\":\"2025-01-01T00:00:00.000001Z\",\"payload\":{\"temperature\":71.3,\"n\":{\"z\":1}}},"
+                + "{\"payload\":{\"temperature\":71.5},\"ts\":\"2025-01-01T00:00:00.100001Z\"}]";
+        byte[] buf = ("xx" + batch).getBytes(StandardCharsets.UTF_8);
+        List<Double> temperatures = new ArrayList<>();
+
+        List<EnvelopeParser.Reading> readings = parser.readings(buf, 2, buf.length - 2, t0,
+                () -> (field, v) -> { if (field.equals("temperature")) temperatures.add(v); });
+
+        assertThat(readings).extracting(EnvelopeParser.Reading::ts)
+                .containsExactly(t0, Instant.parse("2025-01-01T00:00:00.100001Z"));
+        assertThat(readings).extracting(EnvelopeParser.Reading::payloadJson)
+                .containsExactly("{\"temperature\":71.3,\"n\":{\"z\":1}}", "{\"temperature\":71.5}");
+        assertThat(temperatures).containsExactly(71.3, 71.5);
+
+        // lettura singola: un oggetto, con il ts di meta
+        byte[] single = "{\"temperature\":70.0}".getBytes(StandardCharsets.UTF_8);
+        assertThat(parser.readings(single, 0, single.length, t0, () -> null))
+                .containsExactly(new EnvelopeParser.Reading(t0, "{\"temperature\":70.0}"));
+    }
+
+    @Test
+    void batchReadingsMustStartAtMetaTsAndIncrease() {
+        Instant t0 = Instant.parse("2025-01-01T00:00:00Z");
+        String first = "{\"ts\":\"2025-01-01T00:00:00Z\",\"payload\":{}}";
+
+        assertThatThrownBy(() -> readings("[{\"ts\":\"2025-01-01T00:00:01Z\",\"payload\":{}}]", t0))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> readings("[" + first + "," + first + "]", t0))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> readings("[" + first + ",{\"ts\":\"2025-01-01T00:00:00.0000001Z\",\"payload\":{}}]", t0))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> readings("[]", t0)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> readings("[{\"ts\":\"2025-01-01T00:00:00Z\"}]", t0))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> readings("[" + first + "] []", t0)).isInstanceOf(Exception.class);
+    }
+
+    @Test
+    void fieldsAreReadOnlyFromTheirOwnBlock() throws Exception {
+        // security.deviceId/nonce e meta.alg/keyId/sig non devono sovrascrivere l'altro blocco, in nessun ordine
+        String security = "{\"alg\":\"AES-256-GCM+HMAC-SHA256\",\"iv\":\"" + b64(12) + "\",\"sig\":\"" + b64(32)
+                + "\",\"deviceId\":\"evil\",\"nonce\":\"n-evil\",\"ts\":\"2030-01-01T00:00:00Z\"}";
+        String meta = "{\"deviceId\":\"cnc-23\",\"ts\":\"2025-01-01T00:00:00Z\",\"nonce\":\"n-1\","
+                + "\"alg\":\"AES-256-GCM-AAD\",\"keyId\":\"k-evil\",\"sig\":\"\"}";
+        for (String json : new String[]{
+                "{\"meta\":" + meta + ",\"security\":" + security + ",\"ciphertext\":\"" + b64(40) + "\"}",
+                "{\"security\":" + security + ",\"meta\":" + meta + ",\"ciphertext\":\"" + b64(40) + "\"}"}) {
+            Envelope env = parser.parse(json.getBytes(StandardCharsets.UTF_8));
+
+            assertThat(env.deviceId()).isEqualTo("cnc-23");
+            assertThat(env.nonce()).isEqualTo("n-1");
+            assertThat(env.ts()).isEqualTo("2025-01-01T00:00:00Z");
+            assertThat(env.alg()).isEqualTo("AES-256-GCM+HMAC-SHA256");
+            assertThat(env.keyId()).isNull();
+            assertThat(env.sig().remaining()).isEqualTo(32);
+        }
+    }
+
+    @Test
+    void rejectsDuplicateKeys() {
+        String security = "{\"alg\":\"AES-256-GCM+HMAC-SHA256\",\"iv\":\"" + b64(12) + "\",\"sig\":\"" + b64(32) + "\"}";
+        String dupMeta = "{\"deviceId\":\"cnc-23\",\"ts\":\"2025-01-01T00:00:00Z\",\"nonce\":\"n-1\",\"deviceId\":\"cnc-24\"}";
+        String dupBlock = "{\"meta\":" + META + ",\"security\":" + security + ",\"meta\":" + META
+                + ",\"ciphertext\":\"" + b64(40) + "\"}";
+        byte[] binary = BinaryEnvelope.encode(EnvelopeAlg.AES256_GCM_HMAC_SHA256, PayloadCodec.NONE, null,
+                dupMeta.getBytes(StandardCharsets.UTF_8), new byte[12], new byte[32], new byte[40]);
+
+        assertThatThrownBy(() -> parser.parse(("{\"meta\":" + dupMeta + ",\"security\":" + security
+                + ",\"ciphertext\":\"" + b64(40) + "\"}").getBytes(StandardCharsets.UTF_8)))
+                .isInstanceOf(IOException.class).hasMessageContaining("Duplicate field");
+        assertThatThrownBy(() -> parser.parse(dupBlock.getBytes(StandardCharsets.UTF_8)))
+                .isInstanceOf(IOException.class).hasMessageContaining("Duplicate field");
+        assertThatThrownBy(() -> parser.parse(binary))
+                .isInstanceOf(IOException.class).hasMessageContaining("Duplicate field");
+    }
+
+    @Test
+    void rejectsIncompleteEnvelope() {
+        assertThatThrownBy(() -> parser.parse("{\"meta\":{}}".getBytes(StandardCharsets.UTF_8)))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private List<EnvelopeParser.Reading> readings(String payload, Instant metaTs) throws Exception {
+        byte[] buf = payload.getBytes(StandardCharsets.UTF_8);
+        return parser.readings(buf, 0, buf.length, metaTs, () -> null);
+    }
+
+    private static String b64(int len) {
+        return Base64.getEncoder().encodeToString(new byte[len]);
+    }
+}
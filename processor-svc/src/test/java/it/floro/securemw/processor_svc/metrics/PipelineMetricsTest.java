@@ -0,0 +1,39 @@
+package it.floro.securemw.processor_svc.metrics;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import it.floro.securemw.processor_svc.metrics.PipelineMetrics.Stage;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PipelineMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final PipelineMetrics metrics = new PipelineMetrics(registry);
+
+    @Test
+    void lapRecordsStageAndReturnsNow() {
+        long start = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(5);
+        long now = metrics.lap(Stage.VERIFY, start);
+
+        var timer = registry.get("processor.stage").tag("stage", "verify").timer();
+        assertThat(timer.count()).isEqualTo(1);
+        assertThat(timer.totalTime(TimeUnit.NANOSECONDS)).isEqualTo(now - start);
+        assertThat(registry.get("processor.stage").tag("stage", "decrypt").timer().count()).isZero();
+    }
+
+    @Test
+    void countsOutcomesAndErrorsByClass() {
+        metrics.processed(3);
+        metrics.failed(new IllegalStateException("replay"));
+        metrics.failed(new IllegalStateException("replay"));
+        metrics.failed(new SecurityException("bad sig"));
+
+        assertThat(registry.get("processor.messages").tag("outcome", "ok").counter().count()).isEqualTo(3);
+        assertThat(registry.get("processor.messages").tag("outcome", "failed").counter().count()).isEqualTo(3);
+        assertThat(registry.get("processor.errors").tag("exception", "IllegalStateException").counter().count()).isEqualTo(2);
+        assertThat(registry.get("processor.errors").tag("exception", "SecurityException").counter().count()).isEqualTo(1);
+    }
+}
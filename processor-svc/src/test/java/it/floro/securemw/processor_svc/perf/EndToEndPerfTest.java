@@ -0,0 +1,335 @@
+package it.floro.securemw.processor_svc.perf;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+import it.floro.securemw.producer_svc.TelemetryProducer;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.kafka.core.DefaultKafkaProducerFactory;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.test.EmbeddedKafkaBroker;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+import org.springframework.test.context.DynamicPropertyRegistry;
+import org.springframework.test.context.DynamicPropertySource;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Suite end-to-end: envelope del {@link TelemetryProducer} → broker embedded → TelemetryConsumer vero →
+ * Postgres (embedded, oppure locale con {@code -Dperf.db.url}). Misura il throughput sostenuto, la latenza
+ * da {@code meta.ts} a {@code processed_at} (p50/p99/p99.9) e heap/GC, poi applica le soglie.
+ *
+ * Solo con {@code -Pperf}; parametri e soglie da system property {@code perf.*} (vedi README).
+ * La modalità del consumer si sceglie con le solite variabili d'ambiente (CONSUMER_BATCH_ENABLED, ...).
+ * Broker, generatore e processor condividono la JVM: le cifre di heap/GC li comprendono tutti.
+ */
+@Slf4j
+@Tag("perf")
+@SpringBootTest
+@EmbeddedKafka(partitions = 6, topics = {"telemetry.v1", "telemetry.dlq"},
+        bootstrapServersProperty = "spring.kafka.bootstrap-servers")
+class EndToEndPerfTest {
+
+    private static final String DEVICE_PREFIX = "perf-";
+    private static final String ALG = "AES-256-GCM+HMAC-SHA256";
+    private static final String AES_KEY_B64 = key((byte) 0x11);
+    private static final String HMAC_KEY_B64 = key((byte) 0x22);
+
+    private static EmbeddedPostgres postgres;
+
+    private final double rate = dbl("perf.rate", 2000);
+    private final int devices = integer("perf.devices", 100);
+    private final int threads = integer("perf.threads", 2);
+    private final double binaryRatio = dbl("perf.binary-ratio", 0);
+    private final String alg = System.getProperty("perf.alg", ALG);
+    private final long warmupSec = integer("perf.warmup-sec", 10);
+    private final long durationSec = integer("perf.duration-sec", 30);
+    private final long drainTimeoutSec = integer("perf.drain-timeout-sec", 60);
+
+    // soglie di rilascio
+    private final double minThroughput = dbl("perf.min-throughput", rate * 0.95);
+    private final double maxP99Ms = dbl("perf.max-p99-ms", 500);
+    private final double maxP999Ms = dbl("perf.max-p999-ms", 1000);
+    private final double maxGcPct = dbl("perf.max-gc-pct", 10);
+
+    @Autowired
+    private EmbeddedKafkaBroker broker;
+
+    @Autowired
+    private JdbcTemplate jdbc;
+
+    @DynamicPropertySource
+    static void properties(DynamicPropertyRegistry registry) throws IOException {
+        registry.add("app.security.aesKeyB64", () -> AES_KEY_B64);
+        registry.add("app.security.hmacKeyB64", () -> HMAC_KEY_B64);
+
+        String url = System.getProperty("perf.db.url", "");
+        if (!url.isBlank()) {
+            registry.add("spring.datasource.url", () -> url);
+            registry.add("spring.datasource.username", () -> System.getProperty("perf.db.user", "securemw"));
+            registry.add("spring.datasource.password", () -> System.getProperty("perf.db.password", "securemw"));
+            return;
+        }
+        postgres = EmbeddedPostgres.start();
+        String embedded = "jdbc:postgresql://localhost:" + postgres.getPort() + "/postgres?reWriteBatchedInserts=true";
+        registry.add("spring.datasource.url", () -> embedded);
+        registry.add("spring.datasource.username", () -> "postgres");
+        registry.add("spring.datasource.password", () -> "postgres");
+    }
+
+    @AfterAll
+    static void stopPostgres() throws IOException {
+        if (postgres != null) {
+            postgres.close();
+        }
+    }
+
+    @Test
+    void sustainedThroughputAndLatency() throws Exception {
+        jdbc.update("""
+                INSERT INTO device_registry (device_id, owner, model, fw_version, enabled, min_algo)
+                SELECT ? || lpad(g::text, 5, '0'), 'Perf test', 'SIM', '0.0.0', TRUE, ?
+                FROM generate_series(1, ?) AS g
+                ON CONFLICT (device_id) DO NOTHING
+                """, DEVICE_PREFIX, ALG, devices);
+
+        Map<String, Object> props = KafkaTestUtils.producerProps(broker);
+        props.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class);
+        props.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteArraySerializer.class);
+        props.put(ProducerConfig.LINGER_MS_CONFIG, 5);
+        var factory = new DefaultKafkaProducerFactory<String, byte[]>(props);
+        try {
+            var generator = new Generator(new KafkaTemplate<>(factory));
+
+            log.info("Perf | warmup {}s at {} msg/s, {} devices", warmupSec, rate, devices);
+            generator.run(warmupSec);
+
+            Instant from = Instant.now();
+            GcSnapshot gcBefore = GcSnapshot.take();
+            ManagementFactory.getMemoryPoolMXBeans().forEach(MemoryPoolMXBean::resetPeakUsage);
+            long t0 = System.nanoTime();
+
+            long sent = generator.run(durationSec);
+            long processed = awaitProcessed(from, sent);
+
+            double wallSec = (System.nanoTime() - t0) / 1e9;
+            GcSnapshot gc = GcSnapshot.take().minus(gcBefore);
+            Result r = measure(from, sent, processed, generator.errors.sum(), wallSec, gc);
+            report(r);
+
+            assertThat(r.sendErrors()).as("send errors").isZero();
+            assertThat(r.processed()).as("messages in messages_decoded").isEqualTo(sent);
+            assertThat(r.throughput()).as("sustained msg/s").isGreaterThanOrEqualTo(minThroughput);
+            assertThat(r.p99Ms()).as("p99 ms").isLessThanOrEqualTo(maxP99Ms);
+            assertThat(r.p999Ms()).as("p99.9 ms").isLessThanOrEqualTo(maxP999Ms);
+            assertThat(r.gcPct()).as("GC time %").isLessThanOrEqualTo(maxGcPct);
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    // Attende che il processor abbia scritto tutti i messaggi inviati (o il timeout di drenaggio).
+    private long awaitProcessed(Instant from, long expected) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(drainTimeoutSec);
+        long n = 0;
+        while (System.nanoTime() < deadline) {
+            n = jdbc.queryForObject(
+                    "SELECT count(*) FROM messages_decoded WHERE device_id LIKE ? AND event_ts >= ?",
+                    Long.class, DEVICE_PREFIX + "%", Timestamp.from(from));
+            if (n >= expected) break;
+            Thread.sleep(250);
+        }
+        return n;
+    }
+
+    private Result measure(Instant from, long sent, long processed, long sendErrors, double wallSec, GcSnapshot gc) {
+        // throughput lato processor: dal primo meta.ts misurato all'ultimo processed_at
+        return jdbc.queryForObject("""
+                SELECT extract(epoch FROM max(processed_at) - min(event_ts))    AS span,
+                       percentile_cont(0.5)   WITHIN GROUP (ORDER BY lat)      AS p50,
+                       percentile_cont(0.99)  WITHIN GROUP (ORDER BY lat)      AS p99,
+                       percentile_cont(0.999) WITHIN GROUP (ORDER BY lat)      AS p999,
+                       max(lat)                                                 AS max
+                FROM (SELECT event_ts, processed_at,
+                             extract(epoch FROM processed_at - event_ts) * 1000 AS lat
+                      FROM messages_decoded
+                      WHERE device_id LIKE ? AND event_ts >= ?) m
+                """, (rs, i) -> {
+            double span = rs.getDouble("span");
+            Runtime rt = Runtime.getRuntime();
+            return new Result(rate, devices, sent, processed, sendErrors,
+                    span > 0 ? processed / span : 0,
+                    rs.getDouble("p50"), rs.getDouble("p99"), rs.getDouble("p999"), rs.getDouble("max"),
+                    gc.count(), gc.timeMs(), 100.0 * gc.timeMs() / (wallSec * 1000),
+                    heapPeakMb(), (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024), rt.maxMemory() / (1024 * 1024));
+        }, DEVICE_PREFIX + "%", Timestamp.from(from));
+    }
+
+    private void report(Result r) throws IOException {
+        log.info("Perf summary | sent={} processed={} sendErrors={} | {} msg/s (target {}) "
+                        + "| latency ms p50={} p99={} p99.9={} max={} | GC {} collections, {} ms ({}%) "
+                        + "| heap peak={} MB used={} MB max={} MB",
+                r.sent(), r.processed(), r.sendErrors(), String.format("%.0f", r.throughput()), r.rate(),
+                fmt(r.p50Ms()), fmt(r.p99Ms()), fmt(r.p999Ms()), fmt(r.maxMs()),
+                r.gcCount(), r.gcTimeMs(), fmt(r.gcPct()), r.heapPeakMb(), r.heapUsedMb(), r.heapMaxMb());
+
+        var out = new LinkedHashMap<String, Object>();
+        out.put("result", r);
+        out.put("thresholds", Map.of(
+                "minThroughput", minThroughput, "maxP99Ms", maxP99Ms, "maxP999Ms", maxP999Ms, "maxGcPct", maxGcPct));
+        Path file = Path.of(System.getProperty("perf.result-file", "target/perf-result.json"));
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(file.toFile(), out);
+    }
+
+    /**
+     * Mittenti a rate fisso come il LoadGenerator del producer: ogni thread invia a rate/threads msg/s
+     * e serve i device lane, lane+threads, ...; invii asincroni con un tetto agli in-flight.
+     */
+    private class Generator {
+
+        private static final int MAX_IN_FLIGHT = 10_000;
+
+        private final TelemetryProducer producer;
+        private final KafkaTemplate<String, byte[]> template;
+        private final String[] deviceIds = new String[devices];
+        private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+        private final LongAdder acked = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        Generator(KafkaTemplate<String, byte[]> template) {
+            this.template = template;
+            this.producer = new TelemetryProducer(template, AES_KEY_B64, HMAC_KEY_B64);
+            this.producer.setAlg(alg);
+            for (int i = 0; i < devices; i++) {
+                deviceIds[i] = DEVICE_PREFIX + String.format("%05d", i + 1);
+            }
+        }
+
+        /** Invia per {@code seconds} secondi e attende gli ack; ritorna i messaggi confermati dal broker. */
+        long run(long seconds) throws InterruptedException {
+            long before = acked.sum();
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            ExecutorService senders = Executors.newFixedThreadPool(threads);
+            for (int t = 0; t < threads; t++) {
+                int lane = t;
+                senders.submit(() -> senderLoop(lane, end));
+            }
+            senders.shutdown();
+            senders.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+            inFlight.acquire(MAX_IN_FLIGHT);
+            inFlight.release(MAX_IN_FLIGHT);
+            return acked.sum() - before;
+        }
+
+        private void senderLoop(int lane, long end) {
+            long period = (long) (1e9 * threads / rate);
+            long next = System.nanoTime();
+            int d = lane % deviceIds.length;
+            while (System.nanoTime() < end) {
+                long now = System.nanoTime();
+                if (now < next) {
+                    LockSupport.parkNanos(next - now);
+                    continue;
+                }
+                next = Math.max(next + period, now - 1_000_000_000L);
+                String deviceId = deviceIds[d];
+                d = (d + threads) % deviceIds.length;
+                try {
+                    inFlight.acquire();
+                    boolean binary = binaryRatio > 0 && ThreadLocalRandom.current().nextDouble() < binaryRatio;
+                    byte[] envelope = producer.buildEnvelope(deviceId, TelemetryProducer.randomReading(), binary);
+                    template.send("telemetry.v1", deviceId, envelope).whenComplete((res, ex) -> {
+                        inFlight.release();
+                        if (ex != null) errors.increment(); else acked.increment();
+                    });
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (Exception e) {
+                    inFlight.release();
+                    errors.increment();
+                }
+            }
+        }
+    }
+
+    record Result(double rate, int devices, long sent, long processed, long sendErrors, double throughput,
+                  double p50Ms, double p99Ms, double p999Ms, double maxMs,
+                  long gcCount, long gcTimeMs, double gcPct,
+                  long heapPeakMb, long heapUsedMb, long heapMaxMb) {}
+
+    record GcSnapshot(long count, long timeMs) {
+        static GcSnapshot take() {
+            long count = 0, time = 0;
+            for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(0, gc.getCollectionCount());
+                time += Math.max(0, gc.getCollectionTime());
+            }
+            return new GcSnapshot(count, time);
+        }
+
+        GcSnapshot minus(GcSnapshot o) {
+            return new GcSnapshot(count - o.count, timeMs - o.timeMs);
+        }
+    }
+
+    // somma dei picchi dei pool di heap (limite superiore del picco reale)
+    private static long heapPeakMb() {
+        return ManagementFactory.getMemoryPoolMXBeans().stream()
+                .filter(p -> p.getType() == MemoryType.HEAP && p.getPeakUsage() != null)
+                .mapToLong(p -> p.getPeakUsage().getUsed())
+                .sum() / (1024 * 1024);
+    }
+
+    private static String fmt(double v) {
+        return String.format("%.1f", v);
+    }
+
+    private static String key(byte b) {
+        byte[] k = new byte[32];
+        Arrays.fill(k, b);
+        return Base64.getEncoder().encodeToString(k);
+    }
+
+    private static double dbl(String name, double def) {
+        String v = System.getProperty(name);
+        return v == null || v.isBlank() ? def : Double.parseDouble(v);
+    }
+
+    private static int integer(String name, int def) {
+        String v = System.getProperty(name);
+        return v == null || v.isBlank() ? def : Integer.parseInt(v);
+    }
+}
@@ -0,0 +1,40 @@
+package it.floro.securemw.processor_svc.pipeline;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KeyOrderedExecutorTest {
+
+    @Test
+    void preservesOrderPerKey() throws Exception {
+        int keys = 20;
+        int perKey = 500;
+        Map<String, List<Integer>> seen = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(keys * perKey);
+
+        try (KeyOrderedExecutor executor = new KeyOrderedExecutor("test-lane", 4, 64)) {
+            for (int i = 0; i < perKey; i++) {
+                for (int k = 0; k < keys; k++) {
+                    String key = "dev-" + k;
+                    int seq = i;
+                    executor.submit(key, () -> {
+                        seen.computeIfAbsent(key, x -> new ArrayList<>()).add(seq);
+                        done.countDown();
+                    });
+                }
+            }
+            assertThat(done.await(10, TimeUnit.SECONDS)).isTrue();
+        }
+
+        assertThat(seen).hasSize(keys);
+        seen.values().forEach(list -> assertThat(list).isSorted().hasSize(perKey));
+    }
+}
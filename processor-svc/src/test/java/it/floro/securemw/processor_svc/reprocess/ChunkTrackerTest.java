@@ -0,0 +1,38 @@
+package it.floro.securemw.processor_svc.reprocess;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ChunkTrackerTest {
+
+    @Test
+    void positionAdvancesOnlyOverContiguousChunks() {
+        ChunkTracker<String> tracker = new ChunkTracker<>();
+        long a = tracker.submit("a");
+        long b = tracker.submit("b");
+        long c = tracker.submit("c");
+
+        tracker.complete(b, 10, 1);
+        tracker.complete(c, 5, 0);
+        assertThat(tracker.drain()).isNull();   // il primo blocco è ancora in volo
+
+        tracker.complete(a, 7, 2);
+        assertThat(tracker.drain()).isEqualTo(new ChunkTracker.Advance<>("c", 22, 3));
+        assertThat(tracker.drain()).isNull();
+        assertThat(tracker.pending()).isZero();
+    }
+
+    @Test
+    void drainReturnsOnlyProgressSinceLastCall() {
+        ChunkTracker<String> tracker = new ChunkTracker<>();
+        long a = tracker.submit("a");
+        long b = tracker.submit("b");
+
+        tracker.complete(a, 3, 0);
+        assertThat(tracker.drain()).isEqualTo(new ChunkTracker.Advance<>("a", 3, 0));
+
+        tracker.complete(b, 4, 1);
+        assertThat(tracker.drain()).isEqualTo(new ChunkTracker.Advance<>("b", 4, 1));
+    }
+}
@@ -0,0 +1,109 @@
+package it.floro.securemw.processor_svc.retry;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.header.Headers;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.jdbc.CannotGetJdbcConnectionException;
+
+import javax.crypto.AEADBadTagException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RetryPolicyTest {
+
+    private final RetryPolicy policy = new RetryPolicy(true, "telemetry.retry",
+            List.of(Duration.ofSeconds(1), Duration.ofSeconds(10)));
+
+    @Test
+    void transientErrorsGoThroughTiersThenDlq() {
+        var dbDown = new RuntimeException("saveRaw failed", new CannotGetJdbcConnectionException("no connection"));
+
+        assertThat(policy.nextTopic(dbDown, 1)).isEqualTo("telemetry.retry.1");
+        assertThat(policy.nextTopic(dbDown, 2)).isEqualTo("telemetry.retry.2");
+        assertThat(policy.nextTopic(dbDown, 3)).isNull();
+        assertThat(policy.nextTopic(new QueryTimeoutException("slow"), 1)).isEqualTo("telemetry.retry.1");
+    }
+
+    @Test
+    void permanentErrorsGoStraightToDlq() {
+        assertThat(policy.nextTopic(new SecurityException("HMAC verification failed"), 1)).isNull();
+        assertThat(policy.nextTopic(new IllegalStateException("Replay detected"), 1)).isNull();
+        assertThat(policy.nextTopic(new AEADBadTagException(), 1)).isNull();
+    }
+
+    @Test
+    void disabledPolicyNeverRetries() {
+        var off = new RetryPolicy(false, "telemetry.retry", List.of(Duration.ofSeconds(1)));
+        assertThat(off.nextTopic(new QueryTimeoutException("slow"), 1)).isNull();
+    }
+
+    @Test
+    void stateRoundTripsThroughHeaders() {
+        var original = new ConsumerRecord<>("telemetry.v1", 2, 42L, "cnc-23", new byte[0]);
+        UUID rawId = UUID.randomUUID();
+        RetryState failed = RetryState.initial(original).withNonceAccepted(1_700_000_000_000L).failed(rawId);
+
+        var retried = new ConsumerRecord<>("telemetry.retry.1", 0, 7L, "cnc-23", new byte[0]);
+        failed.toHeaders().forEach(h -> retried.headers().add(h));
+        RetryState read = RetryState.from(retried);
+
+        assertThat(read).isEqualTo(failed);
+        assertThat(read.isRetry()).isTrue();
+        assertThat(read.topic()).isEqualTo("telemetry.v1");
+        assertThat(read.offset()).isEqualTo(42L);
+        assertThat(read.nonceAccepted()).isTrue();
+        assertThat(RetryState.initial(original).failed(rawId).nonceAccepted()).isFalse();
+        assertThat(read.failed(UUID.randomUUID()).rawId()).isEqualTo(rawId);
+    }
+
+    @Test
+    void signedStateIsAcceptedOnlyIfUntouched() {
+        var signer = new RetryStateSigner("", Base64.getEncoder().encodeToString(new byte[32]));
+        var original = new ConsumerRecord<>("telemetry.v1", 2, 42L, "cnc-23", new byte[0]);
+        RetryState failed = RetryState.initial(original).withNonceAccepted(1_700_000_000_000L).failed(UUID.randomUUID());
+        Headers signed = signer.toHeaders(failed);
+
+        assertThat(signer.from(retried(signed))).isEqualTo(failed);
+
+        // id raw e accettazione del nonce riscritti da chi produce sul topic di retry
+        Headers forgedRawId = signer.toHeaders(failed);
+        forgedRawId.remove(RetryState.RAW_ID);
+        forgedRawId.add(RetryState.RAW_ID, UUID.randomUUID().toString().getBytes(StandardCharsets.UTF_8));
+        Headers forgedNonce = signer.toHeaders(failed);
+        forgedNonce.remove(RetryState.NONCE_ACCEPTED_AT);
+        forgedNonce.add(RetryState.NONCE_ACCEPTED_AT, Long.toString(System.currentTimeMillis()).getBytes(StandardCharsets.UTF_8));
+        Headers unsigned = failed.toHeaders();
+
+        for (Headers h : List.of(forgedRawId, forgedNonce, unsigned)) {
+            RetryState read = signer.from(retried(h));
+            assertThat(read.isRetry()).isFalse();
+            assertThat(read.rawId()).isNull();
+            assertThat(read.nonceAccepted()).isFalse();
+            assertThat(read.topic()).isEqualTo("telemetry.retry.1");
+        }
+    }
+
+    @Test
+    void stateSignedWithAnotherKeyIsRejected() {
+        var ours = new RetryStateSigner("", Base64.getEncoder().encodeToString(new byte[32]));
+        var theirs = new RetryStateSigner(Base64.getEncoder().encodeToString(new byte[]{
+                1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16,
+                17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32}), "");
+        var original = new ConsumerRecord<>("telemetry.v1", 2, 42L, "cnc-23", new byte[0]);
+        RetryState failed = RetryState.initial(original).failed(UUID.randomUUID());
+
+        assertThat(ours.from(retried(theirs.toHeaders(failed))).isRetry()).isFalse();
+    }
+
+    private static ConsumerRecord<String, byte[]> retried(Headers headers) {
+        var retried = new ConsumerRecord<>("telemetry.retry.1", 0, 7L, "cnc-23", new byte[0]);
+        headers.forEach(h -> retried.headers().add(h));
+        return retried;
+    }
+}
@@ -0,0 +1,92 @@
+package it.floro.securemw.processor_svc.rollup;
+
+import it.floro.securemw.processor_svc.db.RollupRepository;
+import it.floro.securemw.processor_svc.db.RollupRepository.RollupRow;
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RollupAggregatorTest {
+
+    private final FakeRepo repo = new FakeRepo();
+    private final RollupAggregator agg = new RollupAggregator(repo, true, List.of("temperature", "vibration"));
+
+    @Test
+    void aggregatesPerGranularityWithLastByEventTime() {
+        add("cnc-23", "2025-01-01T10:00:10Z", 70.0);
+        add("cnc-23", "2025-01-01T10:00:50Z", 72.0);
+        add("cnc-23", "2025-01-01T10:00:30Z", 68.0);   // in ritardo: non diventa last
+
+        agg.flush();
+
+        RollupRow minute = row("1m", "2025-01-01T10:00:00Z");
+        assertThat(minute.count()).isEqualTo(3);
+        assertThat(minute.min()).isEqualTo(68.0);
+        assertThat(minute.max()).isEqualTo(72.0);
+        assertThat(minute.sum()).isEqualTo(210.0);
+        assertThat(minute.last()).isEqualTo(72.0);
+        assertThat(row("1h", "2025-01-01T10:00:00Z").count()).isEqualTo(3);
+        assertThat(row("1d", "2025-01-01T00:00:00Z").count()).isEqualTo(3);
+        assertThat(repo.rows).hasSize(3); // solo temperature: vibration assente
+        assertThat(agg.pendingSize()).isZero();
+    }
+
+    @Test
+    void failedFlushKeepsDeltasForNextFlush() {
+        add("cnc-23", "2025-01-01T10:00:10Z", 70.0);
+        repo.down = true;
+        agg.flush();
+        add("cnc-23", "2025-01-01T10:00:20Z", 71.0);
+
+        repo.down = false;
+        agg.flush();
+
+        assertThat(row("1m", "2025-01-01T10:00:00Z").count()).isEqualTo(2);
+    }
+
+    @Test
+    void deltaIsWrittenImmediatelyAndNotQueued() {
+        RollupAggregator.Delta delta = agg.delta();
+        double[] sample = agg.newSample();
+        agg.capture(sample, "vibration", 0.5);
+        delta.add("cnc-23", Instant.parse("2025-01-01T10:00:10Z"), sample);
+
+        delta.write();
+
+        assertThat(repo.rows).hasSize(3);
+        assertThat(row("1d", "2025-01-01T00:00:00Z").metric()).isEqualTo("vibration");
+        assertThat(agg.pendingSize()).isZero();
+    }
+
+    private void add(String device, String ts, double temperature) {
+        double[] sample = agg.newSample();
+        agg.capture(sample, "temperature", temperature);
+        agg.capture(sample, "pressure", 1.0);  // non configurata: ignorata
+        agg.add(device, Instant.parse(ts), sample);
+    }
+
+    private RollupRow row(String granularity, String bucket) {
+        return repo.rows.stream()
+                .filter(r -> r.granularity().equals(granularity) && r.bucketStart().equals(Instant.parse(bucket)))
+                .findFirst().orElseThrow();
+    }
+
+    private static final class FakeRepo extends RollupRepository {
+        final List<RollupRow> rows = new ArrayList<>();
+        boolean down;
+
+        FakeRepo() {
+            super(null);
+        }
+
+        @Override
+        public void upsert(List<RollupRow> batch) {
+            if (down) throw new IllegalStateException("db down");
+            rows.addAll(batch);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package it.floro.securemw.processor_svc.security;
+
+import com.github.benmanes.caffeine.cache.Ticker;
+import it.floro.securemw.processor_svc.db.DeviceRegistryRepository;
+import it.floro.securemw.processor_svc.db.DeviceRegistryRepository.DeviceRow;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.dao.TransientDataAccessResourceException;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class DeviceRegistryTest {
+
+    private static final String HMAC = "AES-256-GCM+HMAC-SHA256";
+    private static final String AAD = "AES-256-GCM-AAD";
+
+    private final FakeRepo repo = new FakeRepo();
+    private final FakeTicker ticker = new FakeTicker();
+
+    @Test
+    void knownDeviceIsCachedUntilRefreshOrInvalidate() {
+        DeviceRegistry registry = registry(100);
+        repo.devices.put("cnc-23", new DeviceRow("cnc-23", true, null));
+
+        registry.check("cnc-23", HMAC);
+        registry.check("cnc-23", HMAC);
+        assertThat(repo.queries).isEqualTo(1);
+
+        // modifica nel registry: invisibile fino a rilettura o invalidate
+        repo.devices.put("cnc-23", new DeviceRow("cnc-23", true, AAD));
+        registry.check("cnc-23", HMAC);
+        registry.invalidate("cnc-23");
+        assertThatThrownBy(() -> registry.check("cnc-23", HMAC)).isInstanceOf(IllegalStateException.class);
+        registry.check("cnc-23", AAD);
+        assertThat(repo.queries).isEqualTo(2);
+
+        ticker.advance(Duration.ofMinutes(6));
+        registry.check("cnc-23", AAD);
+        assertThat(repo.queries).isEqualTo(3);
+    }
+
+    @Test
+    void staleKnownDeviceIsServedWhileRefreshing() {
+        DeviceRegistry registry = registry(100);
+        repo.devices.put("cnc-23", new DeviceRow("cnc-23", true, null));
+        registry.check("cnc-23", HMAC);
+
+        // rilettura fallita: resta la policy in cache
+        ticker.advance(Duration.ofMinutes(6));
+        repo.failing = true;
+        registry.check("cnc-23", HMAC);
+        registry.check("cnc-23", HMAC);
+
+        // rilettura riuscita: la policy nuova vale dalla richiesta successiva
+        repo.failing = false;
+        repo.devices.put("cnc-23", new DeviceRow("cnc-23", true, AAD));
+        ticker.advance(Duration.ofMinutes(6));
+        registry.check("cnc-23", HMAC);
+        assertThatThrownBy(() -> registry.check("cnc-23", HMAC)).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void unknownDeviceIsCachedForNegativeTtl() {
+        DeviceRegistry registry = registry(100);
+
+        assertThatThrownBy(() -> registry.check("ghost", HMAC)).isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> registry.check("ghost", HMAC)).isInstanceOf(IllegalStateException.class);
+        assertThat(repo.queries).isEqualTo(1);
+
+        // registrato dopo: visibile alla scadenza del TTL negativo
+        repo.devices.put("ghost", new DeviceRow("ghost", true, null));
+        ticker.advance(Duration.ofSeconds(61));
+        registry.check("ghost", HMAC);
+        assertThat(repo.queries).isEqualTo(2);
+    }
+
+    @Test
+    void disabledDeviceIsRejected() {
+        DeviceRegistry registry = registry(100);
+        repo.devices.put("cnc-24", new DeviceRow("cnc-24", false, null));
+        repo.devices.put("cnc-25", new DeviceRow("cnc-25", true, "NO-SUCH-ALG"));
+
+        assertThatThrownBy(() -> registry.check("cnc-24", HMAC))
+                .isInstanceOf(IllegalStateException.class).hasMessageContaining("disabled");
+        assertThatThrownBy(() -> registry.check("cnc-25", AAD))
+                .isInstanceOf(IllegalStateException.class).hasMessageContaining("disabled");
+    }
+
+    @Test
+    void floodOfRandomIdsIsRateLimitedAndKeepsKnownDevices() {
+        DeviceRegistry registry = registry(10);
+        repo.devices.put("cnc-23", new DeviceRow("cnc-23", true, null));
+        registry.check("cnc-23", HMAC);
+
+        for (int i = 0; i < 9; i++) {
+            String id = "rnd-" + i;
+            assertThatThrownBy(() -> registry.check(id, HMAC)).isInstanceOf(IllegalStateException.class);
+        }
+        // limite raggiunto: errore transitorio (retry), anche per un device legittimo non in cache
+        repo.devices.put("cnc-24", new DeviceRow("cnc-24", true, null));
+        for (int i = 9; i < 1000; i++) {
+            String id = "rnd-" + i;
+            assertThatThrownBy(() -> registry.check(id, HMAC)).isInstanceOf(TransientDataAccessResourceException.class);
+        }
+        assertThatThrownBy(() -> registry.check("cnc-24", HMAC)).isInstanceOf(TransientDataAccessResourceException.class);
+        assertThat(repo.queries).isEqualTo(10);  // 1 per cnc-23 + 9 miss nella finestra
+
+        // i device noti non consumano il limite, neanche quando vanno riletti
+        registry.check("cnc-23", HMAC);
+        ticker.advance(Duration.ofMinutes(6));
+        registry.check("cnc-23", HMAC);
+        for (int i = 0; i < 10; i++) {
+            String id = "new-" + i;
+            assertThatThrownBy(() -> registry.check(id, HMAC)).isInstanceOf(IllegalStateException.class);
+        }
+
+        ticker.advance(Duration.ofSeconds(1));
+        registry.check("cnc-24", HMAC);
+    }
+
+    private DeviceRegistry registry(int maxMissesPerSecond) {
+        return new DeviceRegistry(repo, true, 1000, Duration.ofMinutes(5), 100, Duration.ofMinutes(1),
+                maxMissesPerSecond, ticker, Runnable::run);
+    }
+
+    private static final class FakeRepo extends DeviceRegistryRepository {
+        final Map<String, DeviceRow> devices = new HashMap<>();
+        int queries;
+        boolean failing;
+
+        FakeRepo() {
+            super(null);
+        }
+
+        @Override
+        public Optional<DeviceRow> findById(String deviceId) {
+            queries++;
+            if (failing) {
+                throw new QueryTimeoutException("registry slow");
+            }
+            return Optional.ofNullable(devices.get(deviceId));
+        }
+    }
+
+    private static final class FakeTicker implements Ticker {
+        private long nanos = 1;
+
+        void advance(Duration d) {
+            nanos += d.toNanos();
+        }
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package it.floro.securemw.processor_svc.security;
+
+import it.floro.securemw.common.crypto.Crypto;
+import it.floro.securemw.processor_svc.db.KeyMaterialRepository;
+import it.floro.securemw.processor_svc.db.KeyMaterialRepository.KeyMaterialRow;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.dao.TransientDataAccessException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class KeyRingTest {
+
+    private static final String AES = randomKey();
+    private static final String HMAC = randomKey();
+
+    @TempDir
+    Path dir;
+
+    private final FakeRepo repo = new FakeRepo();
+
+    @Test
+    void defaultKeyUsableBeforeAndWithoutKeyId() {
+        KeyRing ring = new KeyRing(repo, "k1", AES, HMAC, "");
+
+        assertThat(ring.forKeyId(null)).isSameAs(ring.forKeyId("k1"));
+        assertThat(ring.forKeyId("")).isSameAs(ring.forKeyId("k1"));
+        assertThatThrownBy(() -> ring.forKeyId("unknown")).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void rotationAddsNewKeyAndRetiresOld() throws Exception {
+        Path file = dir.resolve("keyring.properties");
+        String aes2 = randomKey(), hmac2 = randomKey();
+        Files.writeString(file, "k2.aes=" + aes2 + "\nk2.hmac=" + hmac2 + "\n");
+        KeyRing ring = new KeyRing(repo, "k1", AES, HMAC, file.toString());
+
+        repo.rows = List.of(new KeyMaterialRow("k1", "AES-256-GCM+HMAC-SHA256", "ACTIVE"),
+                new KeyMaterialRow("k2", "AES-256-GCM+HMAC-SHA256", "ACTIVE"));
+        ring.refresh();
+        Crypto k1 = ring.forKeyId("k1");
+        Crypto.EncResult enc = new Crypto(aes2, hmac2).encrypt(Crypto.utf8("{}"));
+        assertThat(ring.forKeyId("k2").decrypt(enc.iv(), enc.ciphertext())).isEqualTo(Crypto.utf8("{}"));
+
+        repo.rows = List.of(new KeyMaterialRow("k1", "AES-256-GCM+HMAC-SHA256", "RETIRED"),
+                new KeyMaterialRow("k2", "AES-256-GCM+HMAC-SHA256", "ACTIVE"));
+        ring.refresh();
+        assertThatThrownBy(() -> ring.forKeyId("k1")).isInstanceOf(IllegalStateException.class);
+        assertThat(ring.forKeyId("k2")).isNotSameAs(k1);
+    }
+
+    @Test
+    void retiredKeyStillOpensHistoricalData() throws Exception {
+        Path file = dir.resolve("keyring.properties");
+        String aes2 = randomKey(), hmac2 = randomKey();
+        Files.writeString(file, "k2.aes=" + aes2 + "\nk2.hmac=" + hmac2 + "\n");
+        KeyRing ring = new KeyRing(repo, "k1", AES, HMAC, file.toString());
+        Crypto.EncResult sealedWithK1 = new Crypto(AES, HMAC).encrypt(Crypto.utf8("{\"t\":1}"));
+
+        // rotazione: k2 attiva, k1 ritirata
+        repo.rows = List.of(new KeyMaterialRow("k1", "AES-256-GCM+HMAC-SHA256", "RETIRED"),
+                new KeyMaterialRow("k2", "AES-256-GCM+HMAC-SHA256", "ACTIVE"));
+        ring.refresh();
+
+        assertThatThrownBy(() -> ring.forKeyId("k1")).isInstanceOf(IllegalStateException.class);
+        Crypto historical = ring.forHistoricalKeyId("k1");
+        assertThat(historical.decrypt(sealedWithK1.iv(), sealedWithK1.ciphertext())).isEqualTo(Crypto.utf8("{\"t\":1}"));
+        assertThat(ring.forHistoricalKeyId("k1")).isSameAs(historical);
+        assertThat(ring.forHistoricalKeyId("k2")).isSameAs(ring.forKeyId("k2"));
+        assertThatThrownBy(() -> ring.forHistoricalKeyId("unknown")).isInstanceOf(IllegalStateException.class);
+
+        // in key_material ma senza materiale configurato
+        repo.rows = List.of(new KeyMaterialRow("k0", "AES-256-GCM+HMAC-SHA256", "RETIRED"));
+        ring.refresh();
+        assertThatThrownBy(() -> ring.forHistoricalKeyId("k0")).isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void unknownHistoricalKeyIdsDoNotHitTheDatabase() {
+        KeyRing ring = new KeyRing(repo, "k1", AES, HMAC, "");
+        assertThatThrownBy(() -> ring.forHistoricalKeyId("k9")).isInstanceOf(TransientDataAccessException.class);
+
+        repo.rows = List.of(new KeyMaterialRow("k1", "AES-256-GCM+HMAC-SHA256", "ACTIVE"));
+        ring.refresh();
+        int queries = repo.queries;
+        for (int i = 0; i < 1000; i++) {
+            String id = "k9-" + i;
+            assertThatThrownBy(() -> ring.forHistoricalKeyId(id)).isInstanceOf(IllegalStateException.class);
+        }
+        assertThat(repo.queries).isEqualTo(queries);
+
+        // visibile dal refresh successivo
+        repo.rows = List.of(new KeyMaterialRow("k1", "AES-256-GCM+HMAC-SHA256", "ACTIVE"),
+                new KeyMaterialRow("k9-0", "AES-256-GCM+HMAC-SHA256", "RETIRED"));
+        ring.refresh();
+        assertThatThrownBy(() -> ring.forHistoricalKeyId("k9-0")).hasMessageContaining("No key material");
+    }
+
+    @Test
+    void keepsCurrentKeysWhenDatabaseIsDown() {
+        KeyRing ring = new KeyRing(repo, "k1", AES, HMAC, "");
+        repo.rows = List.of(new KeyMaterialRow("k1", "AES-256-GCM+HMAC-SHA256", "ACTIVE"));
+        ring.refresh();
+        Crypto before = ring.forKeyId("k1");
+
+        repo.down = true;
+        ring.refresh();
+
+        assertThat(ring.forKeyId("k1")).isSameAs(before);
+    }
+
+    private static String randomKey() {
+        byte[] k = new byte[32];
+        ThreadLocalRandom.current().nextBytes(k);
+        return Base64.getEncoder().encodeToString(k);
+    }
+
+    private static final class FakeRepo extends KeyMaterialRepository {
+        List<KeyMaterialRow> rows = List.of();
+        boolean down;
+        int queries;
+
+        FakeRepo() {
+            super(null);
+        }
+
+        @Override
+        public List<KeyMaterialRow> findAll() {
+            queries++;
+            if (down) throw new IllegalStateException("db down");
+            return rows;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package it.floro.securemw.processor_svc.security;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ReplayGuardTest {
+
+    private final MutableClock clock = new MutableClock(Instant.parse("2025-01-01T00:00:00Z"));
+
+    @Test
+    void rejectsDuplicateNonceEvenWithDifferentTs() {
+        ReplayGuard guard = new ReplayGuard(clock, Duration.ofMinutes(5), 4, null);
+        guard.check("n1", clock.instant());
+
+        assertThatThrownBy(() -> guard.check("n1", clock.instant()))
+                .isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> guard.check("n1", clock.instant().plusSeconds(60)))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void concurrentCopiesWithDifferentTsAcceptOnlyOne() throws Exception {
+        ReplayGuard guard = new ReplayGuard(clock, Duration.ofMinutes(5), 4, null);
+        int threads = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int round = 0; round < 200; round++) {
+                String nonce = "race-" + round;
+                CountDownLatch start = new CountDownLatch(1);
+                List<Future<Boolean>> results = new ArrayList<>();
+                for (int i = 0; i < threads; i++) {
+                    // ts diversi => bucket di scadenza diversi
+                    Instant ts = clock.instant().minusSeconds(280).plusSeconds(80L * i);
+                    results.add(pool.submit(() -> {
+                        start.await();
+                        try {
+                            guard.check(nonce, ts);
+                            return true;
+                        } catch (IllegalStateException e) {
+                            return false;
+                        }
+                    }));
+                }
+                start.countDown();
+                int accepted = 0;
+                for (Future<Boolean> r : results) {
+                    if (r.get()) accepted++;
+                }
+                assertThat(accepted).as("round %d", round).isEqualTo(1);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    void rejectsTimestampOutsideSkew() {
+        ReplayGuard guard = new ReplayGuard(clock, Duration.ofMinutes(5), 4, null);
+
+        assertThatThrownBy(() -> guard.check("old", clock.instant().minusSeconds(301)))
+                .isInstanceOf(IllegalStateException.class);
+        assertThatThrownBy(() -> guard.check("future", clock.instant().plusSeconds(301)))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    @Test
+    void windowCheckAppliesSkewWithoutTouchingNonces() {
+        ReplayGuard guard = new ReplayGuard(clock, Duration.ofMinutes(5), 4, null);
+
+        long acceptedAt = guard.check("n1", clock.instant());
+        clock.advance(Duration.ofMinutes(10));  // retry molto dopo: la finestra resta quella dell'accettazione
+
+        guard.checkWindow(clock.instant().minusSeconds(600 - 299), acceptedAt);
+        assertThatThrownBy(() -> guard.checkWindow(clock.instant().minusSeconds(600 - 301), acceptedAt))
+                .isInstanceOf(IllegalStateException.class);
+        assertThat(guard.size()).isEqualTo(1);
+    }
+
+    @Test
+    void memoryStaysBoundedAtConstantRate() {
+        ReplayGuard guard = new ReplayGuard(clock, Duration.ofMinutes(5), 4, null);
+        long max = 0;
+        for (int s = 0; s < 3600; s++) {
+            clock.advance(Duration.ofSeconds(1));
+            for (int k = 0; k < 50; k++) {
+                guard.check(s + "-" + k, clock.instant());
+            }
+            max = Math.max(max, guard.size());
+        }
+        // 50 msg/s * (skew + un bucket) al massimo
+        assertThat(max).isLessThanOrEqualTo(50L * (300 + 75));
+    }
+
+    @Test
+    void snapshotSurvivesRestart(@TempDir Path dir) {
+        Path file = dir.resolve("replay.bin");
+        ReplayGuard guard = new ReplayGuard(clock, Duration.ofMinutes(5), 4, file);
+        guard.check("n1", clock.instant());
+        guard.snapshot();
+
+        ReplayGuard restarted = new ReplayGuard(clock, Duration.ofMinutes(5), 4, file);
+        restarted.load();
+
+        assertThatThrownBy(() -> restarted.check("n1", clock.instant()))
+                .isInstanceOf(IllegalStateException.class);
+    }
+
+    private static final class MutableClock extends Clock {
+        private Instant now;
+
+        MutableClock(Instant now) {
+            this.now = now;
+        }
+
+        void advance(Duration d) {
+            now = now.plus(d);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return now;
+        }
+    }
+}
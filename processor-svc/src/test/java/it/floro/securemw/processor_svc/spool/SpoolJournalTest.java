@@ -0,0 +1,153 @@
+package it.floro.securemw.processor_svc.spool;
+
+import it.floro.securemw.processor_svc.db.MessageRepository.RawRow;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class SpoolJournalTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void rotatedSegmentsAreReadInOrderAndDeleted() throws Exception {
+        SpoolJournal journal = new SpoolJournal(dir, 64, 4);
+        assertThat(journal.append(bytes("a"), 0)).isTrue();
+        assertThat(journal.append(bytes("b"), 0)).isTrue();
+        journal.sync();
+        assertThat(journal.oldest()).isNull();
+
+        journal.rotate();
+
+        Path first = journal.oldest();
+        assertThat(journal.read(first)).extracting(SpoolJournalTest::text).containsExactly("a", "b");
+        journal.delete(first);
+        assertThat(journal.oldest()).isNull();
+        assertThat(journal.pendingSegments()).isZero();
+    }
+
+    @Test
+    void quarantinedSegmentLeavesTheQueueAndIsNotRecovered() throws Exception {
+        SpoolJournal journal = new SpoolJournal(dir, 16, 4);  // un record per segmento
+        journal.append(bytes("11111111"), 0);
+        journal.append(bytes("22222222"), 0);
+        journal.rotate();
+
+        Path poison = journal.oldest();
+        journal.quarantine(poison);
+        assertThat(dir.resolve("quarantine").resolve(poison.getFileName())).exists();
+        assertThat(Files.exists(poison)).isFalse();
+        assertThat(journal.read(journal.oldest())).extracting(SpoolJournalTest::text).containsExactly("22222222");
+
+        assertThat(new SpoolJournal(dir, 16, 4).pendingSegments()).isEqualTo(1);
+    }
+
+    @Test
+    void fullSegmentRollsOverToNext() throws Exception {
+        SpoolJournal journal = new SpoolJournal(dir, 32, 4);  // 2 record da 8+8 byte per segmento
+        for (String s : List.of("11111111", "22222222", "33333333")) {
+            assertThat(journal.append(bytes(s), 0)).isTrue();
+        }
+        journal.rotate();
+
+        Path first = journal.oldest();
+        assertThat(journal.read(first)).extracting(SpoolJournalTest::text).containsExactly("11111111", "22222222");
+        journal.delete(first);
+        assertThat(journal.read(journal.oldest())).extracting(SpoolJournalTest::text).containsExactly("33333333");
+    }
+
+    @Test
+    void appendTimesOutWhenAllSegmentsArePending() throws Exception {
+        SpoolJournal journal = new SpoolJournal(dir, 16, 2);  // un record per segmento
+        assertThat(journal.append(bytes("11111111"), 0)).isTrue();
+        assertThat(journal.append(bytes("22222222"), 0)).isTrue();
+
+        assertThat(journal.append(bytes("33333333"), 50)).isFalse();
+
+        journal.delete(journal.oldest());
+        assertThat(journal.append(bytes("33333333"), 0)).isTrue();
+    }
+
+    @Test
+    void reopenRecoversUndrainedSegmentsUpToTornRecord() throws Exception {
+        SpoolJournal journal = new SpoolJournal(dir, 64, 4);
+        journal.append(bytes("ok"), 0);
+        journal.append(bytes("torn"), 0);
+        journal.close();
+        Path segment = dir.resolve("spool-00000000000000000000.seg");
+        try (FileChannel ch = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.wrap(new byte[]{'X'}), SpoolJournal.ENTRY_HEADER + 2 + SpoolJournal.ENTRY_HEADER);
+        }
+
+        SpoolJournal recovered = new SpoolJournal(dir, 64, 4);
+
+        assertThat(recovered.oldest()).isEqualTo(segment);
+        assertThat(recovered.read(segment)).extracting(SpoolJournalTest::text).containsExactly("ok");
+        recovered.append(bytes("new"), 0);
+        recovered.rotate();
+        recovered.delete(segment);
+        assertThat(recovered.oldest().getFileName().toString()).isEqualTo("spool-00000000000000000001.seg");
+    }
+
+    @Test
+    void rejectsRecordLargerThanSegment() {
+        SpoolJournal journal = new SpoolJournal(dir, 16, 2);
+        assertThatThrownBy(() -> journal.append(new byte[9], 0)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void recordRoundTrip() {
+        RawRow raw = new RawRow("telemetry.v1", 2, 42L, Instant.parse("2025-01-01T10:00:00Z"),
+                "cnc-23", Instant.parse("2025-01-01T09:59:59.123456Z"), null, "n-1",
+                "AES-256-GCM+HMAC-SHA256+DEFLATE", "k1", "{\"deviceId\":\"cnc-23\"}",
+                new byte[12], new byte[]{1, 2, 3}, new byte[40], null);
+        SpoolRecord in = new SpoolRecord(raw, List.of(
+                new SpoolRecord.Reading(raw.eventTs(), "{\"temperature\":71.5}", new double[]{71.5, Double.NaN}),
+                new SpoolRecord.Reading(raw.eventTs().plusMillis(100), "{\"temperature\":71.7}", new double[]{71.7, 0.012})));
+
+        SpoolRecord out = SpoolRecord.decode(in.encode());
+
+        // RawRow e Reading contengono array: confronto campo per campo
+        assertThat(out.raw()).usingRecursiveComparison().isEqualTo(raw);
+        assertThat(out.deviceId()).isEqualTo("cnc-23");
+        assertThat(out.eventTs()).isEqualTo(raw.eventTs());
+        assertThat(out.readings()).usingRecursiveFieldByFieldElementComparator().isEqualTo(in.readings());
+        assertThat(out.readings().get(0).sample()).containsExactly(71.5, Double.NaN);
+        assertThat(out.failure()).isNull();
+    }
+
+    @Test
+    void failedRecordKeepsItsError() {
+        RawRow raw = new RawRow("telemetry.v1", 0, 7L, Instant.parse("2025-01-01T10:00:00Z"),
+                "cnc-23", Instant.parse("2025-01-01T10:00:00Z"), "t-1", "n-2",
+                "AES-256-GCM+HMAC-SHA256", null, "{}", new byte[12], new byte[32], new byte[16], null);
+        var failure = new SpoolRecord.Failure("DECRYPT_OR_VERIFY", "PROCESSING_ERROR",
+                "SecurityException: HMAC mismatch", "telemetry.dlq", 1);
+
+        SpoolRecord out = SpoolRecord.decode(SpoolRecord.failed(raw, failure).encode());
+
+        assertThat(out.readings()).isEmpty();
+        assertThat(out.failure()).isEqualTo(failure);
+        assertThat(out.raw()).usingRecursiveComparison().isEqualTo(raw);
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String text(byte[] b) {
+        return new String(b, StandardCharsets.UTF_8);
+    }
+}
@@ -2,29 +2,69 @@ package it.floro.securemw.producer_svc;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import it.floro.securemw.common.crypto.Crypto;
+import it.floro.securemw.common.crypto.PayloadCodec;
+import it.floro.securemw.common.envelope.BinaryEnvelope;
+import it.floro.securemw.common.envelope.EnvelopeAad;
+import it.floro.securemw.common.envelope.EnvelopeAlg;
+import it.floro.securemw.producer_svc.batch.ReadingBatcher;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Component;
 
+import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ThreadLocalRandom;
 
 
+@Slf4j
 @Component
 public class TelemetryProducer {
 
-    private final KafkaTemplate<String, String> kafkaTemplate;
+    private final KafkaTemplate<String, byte[]> kafkaTemplate;
     private final ObjectMapper mapper = new ObjectMapper();
     private final Crypto crypto;
 
     @Value("${app.topics.telemetry}")
     private String telemetryTopic;
 
+    // quota di messaggi inviati in formato binario (0 = solo JSON, 1 = solo binario): rollout graduale
+    @Value("${app.envelope.binary-ratio:0}")
+    private double binaryRatio;
+
+    // compressione del payload prima della cifratura (NONE | DEFLATE | DEFLATE_DICT), solo oltre la soglia
+    // default anche fuori da Spring (benchmark, suite end-to-end costruiscono il producer a mano)
+    @Value("${app.envelope.codec:NONE}")
+    private PayloadCodec codec = PayloadCodec.NONE;
+
+    @Value("${app.envelope.compress-min-bytes:32}")
+    private int compressMinBytes = 32;
+
+    // alg dell'envelope: con AES-256-GCM-AAD niente HMAC, meta autenticato dal tag GCM
+    private EnvelopeAlg alg = EnvelopeAlg.AES256_GCM_HMAC_SHA256;
+
+    // keyId con cui il processor seleziona la chiave (vuoto = chiave di default del processor)
+    @Value("${app.security.keyId:}")
+    private String keyId;
+
+    // in modalità generatore di carico l'invio schedulato è spento (vedi load.LoadGenerator)
+    @Value("${app.load.enabled:false}")
+    private boolean loadMode;
+
+    // micro-batch per device (app.envelope.batch.enabled); null se il producer è costruito a mano
+    @Autowired
+    private ObjectProvider<ReadingBatcher> batcher;
+
     public TelemetryProducer(
-            KafkaTemplate<String, String> kafkaTemplate,
+            KafkaTemplate<String, byte[]> kafkaTemplate,
             @Value("${app.security.aesKeyB64}") String aesKeyB64,
             @Value("${app.security.hmacKeyB64}") String hmacKeyB64
     ) {
@@ -35,6 +75,39 @@ public class TelemetryProducer {
     //Invia un messaggio cifrato ogni secondo
     @Scheduled(fixedDelay = 1000)
     public void sendSecureTelemetry() throws Exception {
+        if (loadMode) return;
+        String key = "cnc-23";
+        ReadingBatcher b = batcher != null ? batcher.getIfAvailable() : null;
+        if (b != null) {
+            b.add(key, randomReading());
+            return;
+        }
+        boolean binary = nextIsBinary();
+
+        byte[] envelope = buildEnvelope(key, randomReading(), binary);
+
+        // 6️ Invio al topic Kafka
+        kafkaTemplate.send(telemetryTopic, key, envelope);
+
+        // (Facoltativo) log locale per debug
+        if (log.isDebugEnabled()) {
+            log.debug("Sent encrypted telemetry | key={} | {}", key,
+                    binary ? "binary=" + envelope.length + " bytes" : "json=" + new String(envelope, StandardCharsets.UTF_8));
+        }
+    }
+
+    @Value("${app.envelope.alg:AES-256-GCM+HMAC-SHA256}")
+    public void setAlg(String algName) {
+        this.alg = EnvelopeAlg.fromName(algName);
+    }
+
+    // Formato del prossimo envelope secondo app.envelope.binary-ratio.
+    public boolean nextIsBinary() {
+        return binaryRatio > 0 && ThreadLocalRandom.current().nextDouble() < binaryRatio;
+    }
+
+    // 1️ Lettura simulata del sensore
+    public static Map<String, Object> randomReading() {
         var rnd = ThreadLocalRandom.current();
 
         // genera temperatura tra 68.0 e 75.0
@@ -47,44 +120,92 @@ public class TelemetryProducer {
         temperature = Math.round(temperature * 10.0) / 10.0;
         vibration = Math.round(vibration * 1000.0) / 1000.0;
 
-        var payload = Map.of(
+        return Map.of(
                 "temperature", temperature,
                 "vibration", vibration
         );
+    }
 
+    /**
+     * Serializza il payload, costruisce i metadati, cifra + firma e restituisce l'envelope
+     * pronto per Kafka (JSON+Base64 oppure binario).
+     */
+    public byte[] buildEnvelope(String deviceId, Map<String, ?> payload, boolean binary) throws Exception {
         // 2️ Serializzazione del payload in JSON
-        String plaintext = mapper.writeValueAsString(payload);
+        return seal(deviceId, "telemetry.v1", Instant.now(), mapper.writeValueAsBytes(payload), binary);
+    }
 
+    /**
+     * Micro-batch: più letture dello stesso device in un solo envelope (una cifratura, un nonce).
+     * Il payload è {@code [{"ts": ..., "payload": {...}}, ...]} e meta.ts è il ts della prima lettura;
+     * i ts devono essere al microsecondo e strettamente crescenti (il processor rifiuta il batch altrimenti).
+     */
+    public byte[] buildBatchEnvelope(String deviceId, List<TimedReading> readings, boolean binary) throws Exception {
+        if (readings.isEmpty()) {
+            throw new IllegalArgumentException("Empty batch for " + deviceId);
+        }
+        var items = new ArrayList<Map<String, Object>>(readings.size());
+        for (TimedReading r : readings) {
+            var item = new LinkedHashMap<String, Object>();
+            item.put("ts", r.ts().toString());
+            item.put("payload", r.values());
+            items.add(item);
+        }
+        return seal(deviceId, "telemetry.batch.v1", readings.get(0).ts(), mapper.writeValueAsBytes(items), binary);
+    }
+
+    private byte[] seal(String deviceId, String schema, Instant ts, byte[] plaintext, boolean binary) throws Exception {
         // 3️ Costruzione dei metadati (in chiaro)
+        String traceId = UUID.randomUUID().toString();
+        String nonce = UUID.randomUUID().toString(); // protegge da replay
         var meta = Map.of(
-                "schema", "telemetry.v1",
-                "deviceId", "cnc-23",
-                "ts", Instant.now().toString(),
-                "traceId", UUID.randomUUID().toString(),
-                "nonce", UUID.randomUUID().toString() // protegge da replay
+                "schema", schema,
+                "deviceId", deviceId,
+                "ts", ts.toString(),
+                "traceId", traceId,
+                "nonce", nonce
         );
 
-        // 4️ Cifratura + firma
-        var sec = crypto.encryptAndSign(plaintext);
+        // 4️ Compressione (se conviene), cifratura + firma o associated data
+        PayloadCodec.Compressed packed = codec.compress(plaintext, compressMinBytes);
+        String kid = keyId != null && !keyId.isBlank() ? keyId : null;
+        Crypto.EncResult enc;
+        byte[] sig;
+        if (alg.aad()) {
+            byte[] aad = EnvelopeAad.encode(alg.algName() + packed.codec().suffix(), kid, deviceId, ts, traceId, nonce);
+            enc = crypto.encryptWithAad(packed.data(), aad);
+            sig = new byte[0];
+        } else {
+            enc = crypto.encrypt(packed.data());
+            sig = crypto.sign(enc.iv(), enc.ciphertext());
+        }
+
+        // 5️ Costruzione dell’envelope
+        if (binary) {
+            // header fisso + meta JSON + iv/sig/ciphertext grezzi (niente Base64)
+            return BinaryEnvelope.encode(alg, packed.codec(), kid, mapper.writeValueAsBytes(meta),
+                    enc.iv(), sig, enc.ciphertext());
+        }
+
+        var security = new LinkedHashMap<String, Object>();
+        security.put("alg", alg.algName() + packed.codec().suffix());
+        if (kid != null) {
+            security.put("keyId", kid);
+        }
+        security.put("iv", Crypto.b64(enc.iv()));
+        if (sig.length > 0) {
+            security.put("sig", Crypto.b64(sig));
+        }
 
-        // 5️ Costruzione dell’envelope sicuro
         var secureMessage = Map.of(
                 "meta", meta,
-                "security", Map.of(
-                        "alg", "AES-256-GCM+HMAC-SHA256",
-                        "iv", sec.get("iv"),
-                        "sig", sec.get("sig")
-                ),
-                "ciphertext", sec.get("ciphertext")
+                "security", security,
+                "ciphertext", Crypto.b64(enc.ciphertext())
         );
 
-        // 6️ Invio al topic Kafka
-        String key = (String) meta.get("deviceId");
-        String json = mapper.writeValueAsString(secureMessage);
-
-        kafkaTemplate.send(telemetryTopic, key, json);
-
-        // (Facoltativo) log locale per debug
-        System.out.printf("Sent encrypted telemetry | key=%s | json=%s%n", key, json);
+        return mapper.writeValueAsBytes(secureMessage);
     }
-}
\ No newline at end of file
+
+    /** Lettura con il proprio timestamp, per {@link #buildBatchEnvelope}. */
+    public record TimedReading(Instant ts, Map<String, ?> values) {}
+}
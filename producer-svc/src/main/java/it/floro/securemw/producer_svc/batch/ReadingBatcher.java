@@ -0,0 +1,143 @@
+package it.floro.securemw.producer_svc.batch;
+
+import it.floro.securemw.producer_svc.TelemetryProducer;
+import it.floro.securemw.producer_svc.TelemetryProducer.TimedReading;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Micro-batch delle letture per device ({@code app.envelope.batch.enabled}): le letture si accumulano
+ * fino a {@code max-readings} o per al più {@code max-delay-ms}, poi partono in un solo envelope
+ * (una cifratura, un nonce, un record Kafka) costruito da {@link TelemetryProducer#buildBatchEnvelope}.
+ *
+ * Ogni lettura prende il ts all'aggiunta, al microsecondo e strettamente crescente per device;
+ * costruzione e invio avvengono sotto il lock del buffer, così i batch di un device arrivano
+ * sulla partizione nell'ordine delle letture.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "app.envelope.batch.enabled", havingValue = "true")
+public class ReadingBatcher {
+
+    private final TelemetryProducer producer;
+    private final KafkaTemplate<String, byte[]> kafkaTemplate;
+    private final String topic;
+    private final int maxReadings;
+    private final long maxDelayNanos;
+
+    private final Map<String, Buffer> buffers = new ConcurrentHashMap<>();
+
+    public ReadingBatcher(TelemetryProducer producer,
+                          KafkaTemplate<String, byte[]> kafkaTemplate,
+                          @Value("${app.topics.telemetry}") String topic,
+                          @Value("${app.envelope.batch.max-readings:50}") int maxReadings,
+                          @Value("${app.envelope.batch.max-delay-ms:200}") long maxDelayMs) {
+        if (maxReadings < 1 || maxDelayMs < 0) {
+            throw new IllegalArgumentException("app.envelope.batch.max-readings must be > 0 and max-delay-ms >= 0");
+        }
+        this.producer = producer;
+        this.kafkaTemplate = kafkaTemplate;
+        this.topic = topic;
+        this.maxReadings = maxReadings;
+        this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMs);
+    }
+
+    /**
+     * Accoda una lettura del device.
+     * @return completato all'ack del broker per il batch che la contiene (eccezionalmente se l'invio fallisce)
+     */
+    public CompletableFuture<Void> add(String deviceId, Map<String, ?> values) {
+        Buffer b = buffers.computeIfAbsent(deviceId, Buffer::new);
+        synchronized (b) {
+            Instant ts = Instant.now().truncatedTo(ChronoUnit.MICROS);
+            if (b.lastTs != null && !ts.isAfter(b.lastTs)) {
+                ts = b.lastTs.plus(1, ChronoUnit.MICROS);
+            }
+            b.lastTs = ts;
+            if (b.readings.isEmpty()) {
+                b.firstAt = System.nanoTime();
+            }
+            b.readings.add(new TimedReading(ts, values));
+            CompletableFuture<Void> done = b.done;
+            if (b.readings.size() >= maxReadings) {
+                flush(b);
+            }
+            return done;
+        }
+    }
+
+    // Invia i buffer più vecchi di max-delay.
+    @Scheduled(fixedDelayString = "${app.envelope.batch.sweep-ms:20}")
+    public void sweep() {
+        long now = System.nanoTime();
+        for (Buffer b : buffers.values()) {
+            synchronized (b) {
+                if (!b.readings.isEmpty() && now - b.firstAt >= maxDelayNanos) {
+                    flush(b);
+                }
+            }
+        }
+    }
+
+    @PreDestroy
+    public void flushAll() {
+        for (Buffer b : buffers.values()) {
+            synchronized (b) {
+                if (!b.readings.isEmpty()) {
+                    flush(b);
+                }
+            }
+        }
+        kafkaTemplate.flush();
+    }
+
+    // Chiamato col lock del buffer.
+    private void flush(Buffer b) {
+        List<TimedReading> readings = b.readings;
+        CompletableFuture<Void> done = b.done;
+        b.readings = new ArrayList<>(Math.min(maxReadings, 64));
+        b.done = new CompletableFuture<>();
+        try {
+            byte[] envelope = producer.buildBatchEnvelope(b.deviceId, readings, producer.nextIsBinary());
+            kafkaTemplate.send(topic, b.deviceId, envelope).whenComplete((res, ex) -> {
+                if (ex != null) {
+                    done.completeExceptionally(ex);
+                } else {
+                    done.complete(null);
+                }
+            });
+            if (log.isDebugEnabled()) {
+                log.debug("Sent telemetry batch | key={} | readings={} bytes={}", b.deviceId, readings.size(), envelope.length);
+            }
+        } catch (Exception e) {
+            done.completeExceptionally(e);
+            log.warn("Telemetry batch for {} dropped ({} readings): {}", b.deviceId, readings.size(), e.getMessage());
+        }
+    }
+
+    private static final class Buffer {
+        final String deviceId;
+        List<TimedReading> readings = new ArrayList<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Instant lastTs;
+        long firstAt;
+
+        Buffer(String deviceId) {
+            this.deviceId = deviceId;
+        }
+    }
+}
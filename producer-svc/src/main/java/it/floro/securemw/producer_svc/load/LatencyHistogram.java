@@ -0,0 +1,65 @@
+package it.floro.securemw.producer_svc.load;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Istogramma di latenze (microsecondi) lock-free, a bucket log-lineari: errore relativo
+ * sotto il 2% su tutto il range, memoria fissa (~18 KB), {@link #record} senza allocazioni.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 7;
+    private static final int SUB = 1 << SUB_BITS;           // 128 bucket lineari per i valori piccoli
+    private static final int HALF = SUB >> 1;               // 64 sotto-bucket per ogni potenza di 2
+    private static final long MAX_VALUE = (1L << 40) - 1;   // ~12 giorni in µs
+    private static final int BUCKETS = SUB + (40 - SUB_BITS + 1) * HALF;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long micros) {
+        long v = Math.min(Math.max(micros, 0), MAX_VALUE);
+        counts.incrementAndGet(index(v));
+        total.incrementAndGet();
+        max.accumulateAndGet(v, Math::max);
+    }
+
+    public long count() {
+        return total.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /** Percentile (0..100) in µs, arrotondato al limite superiore del bucket. */
+    public long percentile(double p) {
+        long n = total.get();
+        if (n == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(n * p / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= target) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    static int index(long v) {
+        if (v < SUB) return (int) v;
+        int shift = (63 - Long.numberOfLeadingZeros(v)) - SUB_BITS + 1;
+        int sub = (int) (v >>> shift);                      // in [HALF, SUB)
+        return SUB + (shift - 1) * HALF + (sub - HALF);
+    }
+
+    static long upperBound(int index) {
+        if (index < SUB) return index;
+        int shift = (index - SUB) / HALF + 1;
+        long sub = HALF + (index - SUB) % HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,219 @@
+package it.floro.securemw.producer_svc.load;
+
+import it.floro.securemw.producer_svc.TelemetryProducer;
+import it.floro.securemw.producer_svc.batch.ReadingBatcher;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generatore di carico: N device simulati, rate obiettivo ripartito su più thread mittenti,
+ * invii asincroni con tetto agli in-flight e report periodico di throughput, percentili di
+ * latenza di invio (send → ack del broker) ed errori.
+ *
+ * Attivo con {@code app.load.enabled=true}; in questa modalità l'invio schedulato di
+ * {@link TelemetryProducer} è spento. Con {@code app.envelope.batch.enabled=true} le letture passano
+ * dal {@link ReadingBatcher} e la latenza misurata include l'attesa nel micro-batch.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "app.load.enabled", havingValue = "true")
+public class LoadGenerator {
+
+    private final TelemetryProducer producer;
+    private final KafkaTemplate<String, byte[]> kafkaTemplate;
+    private final ReadingBatcher batcher;
+    private final String topic;
+    private final String[] devices;
+    private final double rate;
+    private final int threads;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final long durationNanos;
+    private final long reportIntervalSec;
+
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private volatile LatencyHistogram interval = new LatencyHistogram();
+
+    private volatile boolean running;
+    private final AtomicBoolean summarized = new AtomicBoolean();
+    private volatile long startedAt;
+    private ExecutorService senders;
+    private ScheduledExecutorService reporter;
+
+    public LoadGenerator(TelemetryProducer producer,
+                         KafkaTemplate<String, byte[]> kafkaTemplate,
+                         ObjectProvider<ReadingBatcher> batcher,
+                         @Value("${app.topics.telemetry}") String topic,
+                         @Value("${app.load.devices:100}") int devices,
+                         @Value("${app.load.device-prefix:load-}") String devicePrefix,
+                         @Value("${app.load.rate:1000}") double rate,
+                         @Value("${app.load.threads:4}") int threads,
+                         @Value("${app.load.max-in-flight:10000}") int maxInFlight,
+                         @Value("${app.load.duration-sec:0}") long durationSec,
+                         @Value("${app.load.report-interval-sec:5}") long reportIntervalSec) {
+        if (devices <= 0 || rate <= 0 || threads <= 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("app.load.devices/rate/threads/max-in-flight must be > 0");
+        }
+        this.producer = producer;
+        this.kafkaTemplate = kafkaTemplate;
+        this.batcher = batcher.getIfAvailable();
+        this.topic = topic;
+        this.devices = new String[devices];
+        for (int i = 0; i < devices; i++) {
+            this.devices[i] = devicePrefix + String.format("%04d", i + 1);
+        }
+        this.rate = rate;
+        this.threads = threads;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSec);
+        this.reportIntervalSec = reportIntervalSec;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        log.info("Load generator | devices={} rate={} msg/s threads={} maxInFlight={} duration={}s batch={}",
+                devices.length, rate, threads, maxInFlight, TimeUnit.NANOSECONDS.toSeconds(durationNanos), batcher != null);
+        running = true;
+        startedAt = System.nanoTime();
+
+        AtomicInteger n = new AtomicInteger();
+        senders = Executors.newFixedThreadPool(threads, r -> daemon(r, "load-sender-" + n.incrementAndGet()));
+        for (int t = 0; t < threads; t++) {
+            int lane = t;
+            senders.submit(() -> senderLoop(lane));
+        }
+        senders.shutdown();
+
+        reporter = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "load-reporter"));
+        reporter.scheduleAtFixedRate(this::report, reportIntervalSec, reportIntervalSec, TimeUnit.SECONDS);
+        daemon(this::awaitEnd, "load-summary").start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (running) {
+            running = false;
+            summary();
+        }
+        if (reporter != null) {
+            reporter.shutdownNow();
+        }
+    }
+
+    // Ogni thread invia a rate/threads msg/s a intervalli fissi e serve i device lane, lane+threads, ...
+    private void senderLoop(int lane) {
+        long period = (long) (1e9 * threads / rate);
+        long next = System.nanoTime();
+        int d = lane;
+        while (running && !expired()) {
+            long now = System.nanoTime();
+            if (now < next) {
+                LockSupport.parkNanos(next - now);
+                continue;
+            }
+            // in ritardo (broker lento, in-flight pieno): si recupera al massimo un secondo di arretrato
+            next = Math.max(next + period, now - 1_000_000_000L);
+
+            String deviceId = devices[d];
+            d = (d + threads) % devices.length;
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            send(deviceId);
+        }
+    }
+
+    private void send(String deviceId) {
+        long t0 = System.nanoTime();
+        try {
+            CompletableFuture<?> acked;
+            if (batcher != null) {
+                acked = batcher.add(deviceId, TelemetryProducer.randomReading());
+            } else {
+                byte[] envelope = producer.buildEnvelope(deviceId, TelemetryProducer.randomReading(), producer.nextIsBinary());
+                acked = kafkaTemplate.send(topic, deviceId, envelope);
+            }
+            acked.whenComplete((res, ex) -> {
+                inFlight.release();
+                if (ex != null) {
+                    errors.increment();
+                    return;
+                }
+                long micros = (System.nanoTime() - t0) / 1_000;
+                sent.increment();
+                total.record(micros);
+                interval.record(micros);
+            });
+        } catch (Exception e) {
+            inFlight.release();
+            errors.increment();
+            log.debug("Send failed for {}: {}", deviceId, e.getMessage());
+        }
+    }
+
+    private void awaitEnd() {
+        try {
+            senders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            // attendo gli ack ancora in volo prima del riepilogo
+            inFlight.tryAcquire(maxInFlight, 30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        running = false;
+        summary();
+        reporter.shutdown();
+    }
+
+    private void report() {
+        LatencyHistogram h = interval;
+        interval = new LatencyHistogram();
+        log.info("Load | {} msg/s | send latency µs p50={} p95={} p99={} max={} | errors={} inFlight={}",
+                h.count() / Math.max(1, reportIntervalSec),
+                h.percentile(50), h.percentile(95), h.percentile(99), h.max(),
+                errors.sum(), maxInFlight - inFlight.availablePermits());
+    }
+
+    private void summary() {
+        if (!summarized.compareAndSet(false, true)) return;
+        double secs = (System.nanoTime() - startedAt) / 1e9;
+        log.info("Load summary | sent={} errors={} in {}s | {} msg/s (target {}) | send latency µs p50={} p90={} p99={} p99.9={} max={}",
+                sent.sum(), errors.sum(), String.format("%.1f", secs),
+                String.format("%.0f", sent.sum() / secs), rate,
+                total.percentile(50), total.percentile(90), total.percentile(99), total.percentile(99.9), total.max());
+    }
+
+    private boolean expired() {
+        return durationNanos > 0 && System.nanoTime() - startedAt >= durationNanos;
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+}
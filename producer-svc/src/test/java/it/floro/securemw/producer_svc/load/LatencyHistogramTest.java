@@ -0,0 +1,42 @@
+package it.floro.securemw.producer_svc.load;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class LatencyHistogramTest {
+
+    @Test
+    void percentilesWithinTwoPercent() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 100_000; v++) {
+            h.record(v);
+        }
+
+        assertThat(h.count()).isEqualTo(100_000);
+        assertThat(h.max()).isEqualTo(100_000);
+        assertThat((double) h.percentile(50)).isCloseTo(50_000, within(1_000.0));
+        assertThat((double) h.percentile(99)).isCloseTo(99_000, within(1_980.0));
+        assertThat(h.percentile(100)).isEqualTo(100_000);
+    }
+
+    @Test
+    void smallValuesAreExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(3);
+        h.record(7);
+
+        assertThat(h.percentile(50)).isEqualTo(3);
+        assertThat(h.percentile(99)).isEqualTo(7);
+    }
+
+    @Test
+    void bucketsAreContiguous() {
+        for (long v = 0; v < 1 << 20; v++) {
+            int i = LatencyHistogram.index(v);
+            assertThat(LatencyHistogram.upperBound(i)).isGreaterThanOrEqualTo(v);
+        }
+        assertThat(new LatencyHistogram().percentile(50)).isZero();
+    }
+}